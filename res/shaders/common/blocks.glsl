@@ -0,0 +1,15 @@
+#ifndef BLOCKS_GLSL
+#define BLOCKS_GLSL
+
+layout(std140) uniform Camera { // variables constant for all draws in a single frame
+    mat4 view;          // View matrix, shared by all draws in the frame.
+    mat4 proj;          // Projection matrix, shared by all draws in the frame.
+    vec4 eyePosition;
+};
+
+layout(std140) uniform Object { // variables constant for all vertices in a single draw
+    mat4 model;         // A constant representing the model matrix of the drawn object, unused by instances.
+    mat4 mv;            // A constant representing the matrix used for lighting, shared by all instances.
+};
+
+#endif
@@ -0,0 +1,25 @@
+#ifndef LIGHTING_GLSL
+#define LIGHTING_GLSL
+
+//Based on code by https://www.learnopengles.com/tag/per-vertex-lighting/
+
+uniform vec3 lightPosition;
+
+// Diffuse illumination level of a point in eye space.
+float diffuseLight(vec3 position, vec3 normal)
+{
+    // Will be used for attenuation.
+    float distance = length(lightPosition - position);
+
+    // Get a lighting direction vector from the light to the vertex.
+    vec3 lightVector = normalize(lightPosition - position);
+
+    // Calculate the dot product of the light vector and vertex normal. If the normal and light vector are
+    // pointing in the same direction then it will get max illumination.
+    float diffuse = max(dot(normal, lightVector), 0.25);
+
+    // Add attenuation.
+    return diffuse * (1.1 / (0.7 + (0.01 * distance * distance)));
+}
+
+#endif
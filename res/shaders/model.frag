@@ -0,0 +1,37 @@
+#version 330
+#ifdef TEXTURED
+#include "common/lighting.glsl"
+
+uniform sampler2D textureID;
+
+in vec2 texCoord;
+in vec3 v_Position;
+in vec3 v_Normal;
+#else
+in vec3 vertColor;
+#endif
+
+#ifdef INSTANCED
+in vec4 v_Color;
+#endif
+
+out vec4 outColor;
+
+void main()
+{
+#ifdef TEXTURED
+    float diffuse = diffuseLight(v_Position, v_Normal);
+
+    // Multiply the color by the diffuse illumination level and the texture color data to get final output color.
+    vec4 interColor = texture(textureID, texCoord);
+#ifdef INSTANCED
+    interColor *= v_Color;
+#endif
+    outColor = vec4(interColor.r * diffuse * 1.35, interColor.gba * diffuse);
+#else
+    outColor = vec4(vertColor, 1.0);
+#ifdef INSTANCED
+    outColor *= v_Color;
+#endif
+#endif
+}
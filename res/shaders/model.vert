@@ -0,0 +1,42 @@
+#version 330
+// Variants: TEXTURED lit by a point light and textured, otherwise colored by
+// the normal; INSTANCED takes the model matrix and a color from instances.
+#include "common/blocks.glsl"
+
+in vec3 inPosition;     // Per-vertex position information we will pass in.
+in vec3 inNormal;       // Per-vertex normal information we will pass in.
+in vec2 inTexCoord;
+
+#ifdef INSTANCED
+in mat4 inInstanceModel;  // Per-instance model matrix.
+in vec4 inInstanceColor;  // Per-instance color multiplying the texture.
+out vec4 v_Color;
+#endif
+
+#ifdef TEXTURED
+out vec3 v_Position;       // This will be passed into the fragment shader.
+out vec3 v_Normal;         // This will be passed into the fragment shader.
+out vec2 texCoord;         // This will be passed into the fragment shader.
+#else
+out vec3 vertColor;        // output from this shader to the next pipleline stage
+#endif
+
+void main()
+{
+#ifdef INSTANCED
+    mat4 modelMatrix = inInstanceModel;
+    v_Color = inInstanceColor;
+#else
+    mat4 modelMatrix = model;
+#endif
+    gl_Position = proj * view * modelMatrix * vec4(inPosition, 1.0);
+
+#ifdef TEXTURED
+    // Transform the vertex and the normal's orientation into eye space, all instances are lit as the single aircraft.
+    v_Position = vec3(mv * vec4(inPosition, 1.0));
+    v_Normal = vec3(mv * vec4(inNormal, 1.0));
+    texCoord = inTexCoord;
+#else
+    vertColor = inNormal * 0.5 + 0.5;
+#endif
+}
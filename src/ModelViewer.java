@@ -5,12 +5,14 @@ import org.lwjgl.opengl.GL;
 import org.lwjgl.system.MemoryStack;
 import transforms.*;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.nio.DoubleBuffer;
 import java.nio.IntBuffer;
 
 import static org.lwjgl.glfw.GLFW.*;
-import static org.lwjgl.opengl.GL11.glViewport;
 import static org.lwjgl.opengl.GL33.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
@@ -42,13 +44,17 @@ public class ModelViewer {
     OGLTexture2D modelTexture;
     OGLModelOBJ prop;
 
-    OGLModelOBJ skybox;
-    OGLBuffers skyboxBuffers;
-    OGLTexture2D skyboxTexture;
+    OGLSkybox skybox;
 
     OGLTextRenderer textRenderer;
-    int locMat, locMV, locHeight;
-    int skyboxShader, teapotShaderProgram, piperShader, lightPosition;
+    OGLUniformBuffer cameraBlock, objectBlocks;
+    OGLState state;
+    OGLRenderQueue renderQueue;
+    OGLInstanceStream bodyInstances, propInstances;
+    OGLTextureStreamer textureStreamer;
+    OGLReadback readback;
+    OGLShaderProgram modelShader;
+    OGLShaderWatcher shaderWatcher;
     double lastTime;
     double currentTime, tick, tick2 = 0;
     Mat4 animateBody;
@@ -62,6 +68,20 @@ public class ModelViewer {
     });
 
     boolean textured = true;
+    boolean airfield = false;
+    boolean screenshot = false;
+
+    static final int AIRFIELD_SIZE = 100;
+    static final float AIRFIELD_SPACING = 15;
+
+    static final int CAMERA_BINDING = 0, OBJECT_BINDING = 1;
+    static final OGLUniformBuffer.Layout CAMERA_LAYOUT = new OGLUniformBuffer.Layout(
+            new OGLUniformBuffer.Member("view", OGLUniformBuffer.Type.MAT4),
+            new OGLUniformBuffer.Member("proj", OGLUniformBuffer.Type.MAT4),
+            new OGLUniformBuffer.Member("eyePosition", OGLUniformBuffer.Type.VEC4));
+    static final OGLUniformBuffer.Layout OBJECT_LAYOUT = new OGLUniformBuffer.Layout(
+            new OGLUniformBuffer.Member("model", OGLUniformBuffer.Type.MAT4),
+            new OGLUniformBuffer.Member("mv", OGLUniformBuffer.Type.MAT4));
 
     private void init() {
         GLFWErrorCallback.createPrint(System.err).set();
@@ -107,6 +127,12 @@ public class ModelViewer {
                     case GLFW_KEY_F:
                         textured = !textured;
                         break;
+                    case GLFW_KEY_I:
+                        airfield = !airfield;
+                        break;
+                    case GLFW_KEY_O:
+                        screenshot = true;
+                        break;
                     case GLFW_KEY_C:
                         vsync = !vsync;
                         break;
@@ -195,14 +221,37 @@ public class ModelViewer {
         glfwShowWindow(window);
 
         GL.createCapabilities();
+        state = OGLState.get();
+        // binaries of linked programs, compiled only on the first run or after changes
+        ShaderUtils.setProgramCache(new OGLProgramCache("shadercache"));
+
+        // one shader, TEXTURED and INSTANCED variants are compiled on demand and cached
+        modelShader = new OGLShaderProgram("/shaders/model", program -> {
+            OGLUniformBuffer.bindBlock(program, "Camera", CAMERA_BINDING);
+            OGLUniformBuffer.bindBlock(program, "Object", OBJECT_BINDING);
+            glUniform3f(glGetUniformLocation(program, "lightPosition"), -5, 1, 5);
+        });
+        // variants of the first frames are submitted before waiting for any of them
+        OGLProgramBatch programs = new OGLProgramBatch();
+        modelShader.compile(programs);
+        modelShader.compile(programs, "TEXTURED");
+        modelShader.compile(programs, "TEXTURED", "INSTANCED");
+        programs.finish();
+        // edits of res/shaders are compiled while running, when started from the project directory
+        try {
+            shaderWatcher = new OGLShaderWatcher("res");
+            shaderWatcher.watch(modelShader);
+        } catch (IOException e) {
+            System.out.println("Shader hot reload disabled: " + e.getMessage());
+        }
 
-        teapotShaderProgram = ShaderUtils.loadProgram("/shaders/teapot");
-        piperShader = ShaderUtils.loadProgram("/shaders/piper");
-        skyboxShader = ShaderUtils.loadProgram("/shaders/sky");
+        cameraBlock = new OGLUniformBuffer(CAMERA_LAYOUT);
+        objectBlocks = new OGLUniformBuffer(OBJECT_LAYOUT, 256);
+        renderQueue = new OGLRenderQueue();
+        renderQueue.setObjectBlock(objectBlocks, OBJECT_BINDING);
 
         model = new OGLModelOBJ("/obj/piper_crushed_noprop.obj");
         prop = new OGLModelOBJ("/obj/piper_crushed_justprop.obj");
-        skybox = new OGLModelOBJ("/obj/skybox2.obj");
 
         propToRoot = new Mat4Transl(new Vec3D(0, -3.125, -1.235));
         rootToProp = new Mat4Transl(new Vec3D(0, +3.125, +1.235));
@@ -210,22 +259,37 @@ public class ModelViewer {
         tick2 = 0;
 
         modelBuffers = model.getBuffers();
-        skyboxBuffers = skybox.getBuffers();
 
-        glClearColor(0.2f, 0.2f, 0.2f, 1.0f);
-
-        glUseProgram(this.piperShader);
-
-        locMV = glGetUniformLocation(piperShader, "mv");
-        lightPosition = glGetUniformLocation(piperShader, "lightPosition");
-
-        glUniform3f(lightPosition, -5, 1, 5);
+        // stress scene, whole airfield drawn by one instanced call per mesh
+        bodyInstances = new OGLInstanceStream(modelBuffers, AIRFIELD_SIZE * AIRFIELD_SIZE);
+        propInstances = new OGLInstanceStream(prop.getBuffers(), AIRFIELD_SIZE * AIRFIELD_SIZE);
+        for (int i = 0; i < AIRFIELD_SIZE * AIRFIELD_SIZE; i++) {
+            float tint = 0.6f + 0.4f * ((i * 7919) % 101) / 100f;
+            bodyInstances.setColor(bodyInstances.add(), tint, 1, 2 - tint, 1);
+            propInstances.setColor(propInstances.add(), 1, 1, 1, 1);
+        }
 
+        glClearColor(0.2f, 0.2f, 0.2f, 1.0f);
 
         try {
             System.out.println("LOADING TEXTURES");
-            modelTexture = new OGLTexture2D("textures/piper_diffuse2.jpg");
-            skyboxTexture = new OGLTexture2D("textures/skybox2.jpg");
+            // grey placeholder until the streamed texture is uploaded
+            byte grey = (byte) 160;
+            modelTexture = new OGLTexture2D(new OGLTexImageByte(1, 1, 4, new byte[]{grey, grey, grey, (byte) 255}));
+            textureStreamer = new OGLTextureStreamer();
+            readback = new OGLReadback();
+            textureStreamer.load("textures/piper_diffuse2.jpg", true).whenComplete((texture, error) -> {
+                if (error != null) {
+                    error.printStackTrace();
+                    return;
+                }
+                modelTexture.close();
+                modelTexture = texture;
+                modelTexture.bind();
+                state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+            });
+            // faces of the cross start at [55, 24], the margin of the image is left out
+            skybox = new OGLSkybox(OGLTextureCube.fromCross("textures/skybox2.jpg", 55, 24, 638));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -234,7 +298,7 @@ public class ModelViewer {
                 .withAzimuth(Math.PI * 1.25)
                 .withZenith(Math.PI * -0.085);
 
-        glEnable(GL_DEPTH_TEST);
+        state.enable(GL_DEPTH_TEST);
         lastTime = glfwGetTime();
         textRenderer = new OGLTextRenderer(width, height);
     }
@@ -259,66 +323,115 @@ public class ModelViewer {
             propRot = animateProp(tick);
             animateBody = animateBody(tick, frametimeScalar);
 
-            String text = new String("[LMB] camera, [WSAD] to move, [L-Shift], [L-Ctrl] for camera up/down, [F] to swap shaders, [P] to pause animations, [C] to change sync interval.");
+            String text = new String("[LMB] camera, [WSAD] to move, [L-Shift], [L-Ctrl] for camera up/down, [F] to swap shaders, [P] to pause animations, [C] to change sync interval, [I] for airfield, [O] for screenshot.");
             String attribution = new String("Zadání A2, Petr Veselý, PGRF2, 5.2.2020");
+            String stateCalls = "GL state calls: " + state.getIssuedCount() + " issued, " + state.getSkippedCount() + " skipped";
+            state.resetCounters();
+
+            textureStreamer.update();
+            readback.update();
+            if (shaderWatcher != null)
+                shaderWatcher.update();
 
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-            glUniform1f(locHeight, height);
+            state.viewport(0, 0, width, height);
 
-            glViewport(0, 0, width, height);
+            cameraBlock.reset();
+            cameraBlock.set("view", cam.getViewMatrix());
+            cameraBlock.set("proj", proj);
+            cameraBlock.set("eyePosition", cam.getEye());
+            cameraBlock.upload();
+            cameraBlock.bind(CAMERA_BINDING);
 
-            modelTexture.bind(piperShader, "piper_diffuse2.png", 0);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+            objectBlocks.reset();
+            int bodySlot = objectBlocks.add();
+            objectBlocks.set(bodySlot, "model", swapYZ.mul(animateBody));
+            objectBlocks.set(bodySlot, "mv", swapYZ);
+            int propSlot = objectBlocks.add();
+            objectBlocks.set(propSlot, "model", swapYZ.mul(propToRoot).mul(propRot).mul(rootToProp).mul(animateBody));
+            objectBlocks.set(propSlot, "mv", swapYZ.mul(propRot));
+            objectBlocks.upload();
 
+            if (airfield)
+                drawAirfield(bodySlot, propSlot);
 
+            double depth = cam.getEye().length();
             if (textured) {
-                glUseProgram(piperShader);
-
-                locMat = glGetUniformLocation(piperShader, "mat");
-                locHeight = glGetUniformLocation(piperShader, "height");
-
-                glUniformMatrix4fv(locMat, false, ToFloatArray.convert(swapYZ.mul(animateBody).mul(cam.getViewMatrix()).mul(proj)));
-                glUniformMatrix4fv(locMV, false, ToFloatArray.convert(swapYZ));
-                modelBuffers.draw(model.getTopology(), piperShader);
-
-                glUniformMatrix4fv(locMat, false, ToFloatArray.convert(swapYZ.mul(propToRoot).mul(propRot).mul(rootToProp).mul(animateBody).mul(cam.getViewMatrix()).mul(proj)));
-                glUniformMatrix4fv(locMV, false, ToFloatArray.convert(swapYZ.mul(propRot)));
-                prop.getBuffers().draw(model.getTopology(), piperShader);
+                int piperShader = modelShader.get("TEXTURED");
+                renderQueue.submit(modelBuffers, model.getTopology(), piperShader, modelTexture, "textureID",
+                        bodySlot, (float) depth, OGLRenderQueue.PASS_OPAQUE);
+                renderQueue.submit(prop.getBuffers(), prop.getTopology(), piperShader, modelTexture, "textureID",
+                        propSlot, (float) depth, OGLRenderQueue.PASS_OPAQUE);
             } else {
-                glUseProgram(teapotShaderProgram);
-
-                locMat = glGetUniformLocation(teapotShaderProgram, "mat");
-                locHeight = glGetUniformLocation(teapotShaderProgram, "height");
-
-                glUniformMatrix4fv(locMat, false, ToFloatArray.convert(swapYZ.mul(animateBody).mul(cam.getViewMatrix()).mul(proj)));
-                modelBuffers.draw(model.getTopology(), teapotShaderProgram);
-                glUniformMatrix4fv(locMat, false, ToFloatArray.convert(swapYZ.mul(propToRoot).mul(propRot).mul(rootToProp).mul(animateBody).mul(cam.getViewMatrix()).mul(proj)));
-                prop.getBuffers().draw(model.getTopology(), teapotShaderProgram);
+                int normalShader = modelShader.get();
+                renderQueue.submit(modelBuffers, model.getTopology(), normalShader,
+                        bodySlot, (float) depth, OGLRenderQueue.PASS_OPAQUE);
+                renderQueue.submit(prop.getBuffers(), prop.getTopology(), normalShader,
+                        propSlot, (float) depth, OGLRenderQueue.PASS_OPAQUE);
             }
-
-            glUseProgram(skyboxShader);
-
-            locMat = glGetUniformLocation(skyboxShader, "mat");
-            locHeight = glGetUniformLocation(skyboxShader, "height");
-            glUniformMatrix4fv(locMat, false, ToFloatArray.convert(swapYZ.mul(new Mat4Scale(500)).mul(cam.getViewMatrix()).mul(proj)));
-
-            skyboxTexture.bind(skyboxShader, "skybox", 0);
-            skyboxBuffers.draw(model.getTopology(), skyboxShader);
-
+            skybox.setCamera(cam.getViewMatrix(), proj);
+            skybox.submit(renderQueue);
+            renderQueue.flush();
 
             textRenderer.clear();
             textRenderer.addStr2D(3, 20, text);
             textRenderer.addStr2D(width - 225, height - 5, attribution);
+            textRenderer.addStr2D(3, 35, stateCalls);
+            if (shaderWatcher != null && shaderWatcher.getErrors() != null) {
+                // the previous programs are drawn until the shader compiles
+                textRenderer.setColor(Color.RED);
+                String[] errors = shaderWatcher.getErrors().split("\n");
+                for (int i = 0; i < Math.min(errors.length, 20); i++)
+                    textRenderer.addStr2D(3, 55 + 15 * i, errors[i]);
+                textRenderer.setColor(Color.WHITE);
+            }
             textRenderer.draw();
 
 
+            if (screenshot) {
+                screenshot = false;
+                readback.readImage(0, 0, width, height).thenAcceptAsync(image -> {
+                    try {
+                        ImageIO.write(image, "png", new File("screenshot.png"));
+                        System.out.println("Screenshot saved to screenshot.png");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+
             glfwSwapBuffers(window);
+            OGLResourceTracker.processLeaks();
 
             glfwPollEvents();
         }
     }
 
+    private void drawAirfield(int bodySlot, int propSlot) {
+        float[] body = swapYZ.mul(animateBody).floatArray();
+        float[] propeller = swapYZ.mul(propToRoot).mul(propRot).mul(rootToProp).mul(animateBody).floatArray();
+        float offset = (AIRFIELD_SIZE - 1) / 2f;
+        for (int i = 0; i < AIRFIELD_SIZE; i++) {
+            for (int j = 0; j < AIRFIELD_SIZE; j++) {
+                float x = (i - offset) * AIRFIELD_SPACING;
+                float y = (j - offset) * AIRFIELD_SPACING;
+                bodyInstances.set(i * AIRFIELD_SIZE + j, body, x, y, 0);
+                propInstances.set(i * AIRFIELD_SIZE + j, propeller, x, y, 0);
+            }
+        }
+        bodyInstances.upload();
+        propInstances.upload();
+
+        int piperInstancedShader = modelShader.get("TEXTURED", "INSTANCED");
+        state.useProgram(piperInstancedShader);
+        modelTexture.bind(piperInstancedShader, "textureID", 0);
+        objectBlocks.bind(OBJECT_BINDING, bodySlot);
+        bodyInstances.draw(model.getTopology(), piperInstancedShader);
+        objectBlocks.bind(OBJECT_BINDING, propSlot);
+        propInstances.draw(prop.getTopology(), piperInstancedShader);
+    }
+
     public void run() {
         init();
         loop();
@@ -0,0 +1,307 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Encoder and decoder of BC1 (DXT1) and BC3 (DXT5) block compression working
+ * on RGBA byte images. The encoder fits the color endpoints along the
+ * principal axis of each 4x4 block, it is meant for offline conversion of
+ * assets; the decoder allows checking compressed data without GPU.
+ * <p>
+ * Conversion of an image file with mipmaps into DDS:
+ *
+ * <pre>
+ * java lwjglutils.OGLBlockCompression input.jpg output.dds [bc1|bc3]
+ * </pre>
+ */
+public class OGLBlockCompression {
+
+	private OGLBlockCompression() {
+	}
+
+	/**
+	 * Compress RGBA image
+	 *
+	 * @param image
+	 *            image with 4 components
+	 * @param alpha
+	 *            true for BC3 with alpha, false for opaque BC1
+	 * @return compressed blocks in row order
+	 */
+	public static ByteBuffer encode(OGLTexImageByte image, boolean alpha) {
+		if (image.getFormat().getComponentCount() != 4)
+			throw new IllegalArgumentException("RGBA image is required.");
+		int width = image.getWidth(), height = image.getHeight();
+		int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+		int blockSize = alpha ? 16 : 8;
+		ByteBuffer data = image.getDataBuffer();
+		byte[] output = new byte[blocksX * blocksY * blockSize];
+
+		IntStream.range(0, blocksY).parallel().forEach(by -> {
+			int[] block = new int[16 * 4];
+			for (int bx = 0; bx < blocksX; bx++) {
+				// texels outside the image repeat the edge
+				for (int i = 0; i < 16; i++) {
+					int x = Math.min(bx * 4 + i % 4, width - 1);
+					int y = Math.min(by * 4 + i / 4, height - 1);
+					for (int c = 0; c < 4; c++)
+						block[i * 4 + c] = data.get((y * width + x) * 4 + c) & 0xff;
+				}
+				int offset = (by * blocksX + bx) * blockSize;
+				if (alpha) {
+					encodeAlpha(block, output, offset);
+					offset += 8;
+				}
+				encodeColor(block, output, offset);
+			}
+		});
+		ByteBuffer buffer = BufferUtils.createByteBuffer(output.length);
+		buffer.put(output).flip();
+		return buffer;
+	}
+
+	private static void encodeColor(int[] block, byte[] output, int offset) {
+		// principal axis of the colors by power iteration of covariance
+		double[] mean = new double[3];
+		for (int i = 0; i < 16; i++)
+			for (int c = 0; c < 3; c++)
+				mean[c] += block[i * 4 + c] / 16.0;
+		double[] cov = new double[6];
+		for (int i = 0; i < 16; i++) {
+			double r = block[i * 4] - mean[0], g = block[i * 4 + 1] - mean[1], b = block[i * 4 + 2] - mean[2];
+			cov[0] += r * r; cov[1] += r * g; cov[2] += r * b;
+			cov[3] += g * g; cov[4] += g * b; cov[5] += b * b;
+		}
+		double ax = 1, ay = 1, az = 1;
+		for (int k = 0; k < 8; k++) {
+			double nx = cov[0] * ax + cov[1] * ay + cov[2] * az;
+			double ny = cov[1] * ax + cov[3] * ay + cov[4] * az;
+			double nz = cov[2] * ax + cov[4] * ay + cov[5] * az;
+			double length = Math.max(Math.max(Math.abs(nx), Math.abs(ny)), Math.abs(nz));
+			if (length < 1e-9)
+				break;
+			ax = nx / length; ay = ny / length; az = nz / length;
+		}
+		int min = 0, max = 0;
+		double minDot = Double.MAX_VALUE, maxDot = -Double.MAX_VALUE;
+		for (int i = 0; i < 16; i++) {
+			double dot = block[i * 4] * ax + block[i * 4 + 1] * ay + block[i * 4 + 2] * az;
+			if (dot < minDot) { minDot = dot; min = i; }
+			if (dot > maxDot) { maxDot = dot; max = i; }
+		}
+		int c0 = to565(block, max * 4), c1 = to565(block, min * 4);
+		if (c0 < c1) {
+			int swap = c0; c0 = c1; c1 = swap;
+		}
+
+		int indices = 0;
+		if (c0 != c1) {
+			// four color mode requires c0 > c1
+			int[] palette = new int[12];
+			from565(c0, palette, 0);
+			from565(c1, palette, 3);
+			for (int c = 0; c < 3; c++) {
+				palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+				palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+			}
+			for (int i = 0; i < 16; i++)
+				indices |= nearest(block, i * 4, palette, 4, 3) << (2 * i);
+		}
+		output[offset] = (byte) c0;
+		output[offset + 1] = (byte) (c0 >> 8);
+		output[offset + 2] = (byte) c1;
+		output[offset + 3] = (byte) (c1 >> 8);
+		for (int k = 0; k < 4; k++)
+			output[offset + 4 + k] = (byte) (indices >> (8 * k));
+	}
+
+	private static void encodeAlpha(int[] block, byte[] output, int offset) {
+		int a0 = 0, a1 = 255;
+		for (int i = 0; i < 16; i++) {
+			a0 = Math.max(a0, block[i * 4 + 3]);
+			a1 = Math.min(a1, block[i * 4 + 3]);
+		}
+		long indices = 0;
+		if (a0 != a1) {
+			// eight alpha mode requires a0 > a1
+			int[] palette = new int[8];
+			palette[0] = a0;
+			palette[1] = a1;
+			for (int k = 1; k < 7; k++)
+				palette[k + 1] = ((7 - k) * a0 + k * a1) / 7;
+			for (int i = 0; i < 16; i++) {
+				int best = 0, bestError = Integer.MAX_VALUE;
+				for (int k = 0; k < 8; k++) {
+					int error = Math.abs(palette[k] - block[i * 4 + 3]);
+					if (error < bestError) {
+						bestError = error;
+						best = k;
+					}
+				}
+				indices |= (long) best << (3 * i);
+			}
+		}
+		output[offset] = (byte) a0;
+		output[offset + 1] = (byte) a1;
+		for (int k = 0; k < 6; k++)
+			output[offset + 2 + k] = (byte) (indices >> (8 * k));
+	}
+
+	private static int to565(int[] block, int i) {
+		int r = (block[i] * 31 + 127) / 255, g = (block[i + 1] * 63 + 127) / 255, b = (block[i + 2] * 31 + 127) / 255;
+		return (r << 11) | (g << 5) | b;
+	}
+
+	private static void from565(int color, int[] rgb, int offset) {
+		int r = (color >> 11) & 31, g = (color >> 5) & 63, b = color & 31;
+		rgb[offset] = (r << 3) | (r >> 2);
+		rgb[offset + 1] = (g << 2) | (g >> 4);
+		rgb[offset + 2] = (b << 3) | (b >> 2);
+	}
+
+	private static int nearest(int[] block, int i, int[] palette, int count, int stride) {
+		int best = 0, bestError = Integer.MAX_VALUE;
+		for (int k = 0; k < count; k++) {
+			int dr = block[i] - palette[k * stride], dg = block[i + 1] - palette[k * stride + 1],
+					db = block[i + 2] - palette[k * stride + 2];
+			int error = dr * dr + dg * dg + db * db;
+			if (error < bestError) {
+				bestError = error;
+				best = k;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Decompress image
+	 *
+	 * @param blocks
+	 *            compressed blocks in row order
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 * @param alpha
+	 *            true for BC3, false for BC1
+	 * @return RGBA image
+	 */
+	public static OGLTexImageByte decode(ByteBuffer blocks, int width, int height, boolean alpha) {
+		ByteBuffer source = blocks.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int base = source.position();
+		int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+		int blockSize = alpha ? 16 : 8;
+		OGLTexImageByte image = new OGLTexImageByte(width, height, 1, 4);
+		ByteBuffer data = image.getDataBuffer();
+
+		IntStream.range(0, blocksY).parallel().forEach(by -> {
+			int[] colors = new int[16];
+			int[] alphas = new int[8];
+			for (int bx = 0; bx < blocksX; bx++) {
+				int offset = base + (by * blocksX + bx) * blockSize;
+				long alphaIndices = 0;
+				if (alpha) {
+					int a0 = source.get(offset) & 0xff, a1 = source.get(offset + 1) & 0xff;
+					alphas[0] = a0;
+					alphas[1] = a1;
+					if (a0 > a1) {
+						for (int k = 1; k < 7; k++)
+							alphas[k + 1] = ((7 - k) * a0 + k * a1) / 7;
+					} else {
+						for (int k = 1; k < 5; k++)
+							alphas[k + 1] = ((5 - k) * a0 + k * a1) / 5;
+						alphas[6] = 0;
+						alphas[7] = 255;
+					}
+					for (int k = 0; k < 6; k++)
+						alphaIndices |= (long) (source.get(offset + 2 + k) & 0xff) << (8 * k);
+					offset += 8;
+				}
+				int c0 = source.getShort(offset) & 0xffff, c1 = source.getShort(offset + 2) & 0xffff;
+				int indices = source.getInt(offset + 4);
+				int[] palette = new int[12];
+				from565(c0, palette, 0);
+				from565(c1, palette, 3);
+				boolean transparent = false;
+				for (int c = 0; c < 3; c++) {
+					if (c0 > c1 || alpha) {
+						palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+						palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+					} else {
+						palette[6 + c] = (palette[c] + palette[3 + c]) / 2;
+						palette[9 + c] = 0;
+						transparent = true;
+					}
+				}
+				for (int i = 0; i < 16; i++) {
+					int x = bx * 4 + i % 4, y = by * 4 + i / 4;
+					if (x >= width || y >= height)
+						continue;
+					int index = (indices >>> (2 * i)) & 3;
+					int target = (y * width + x) * 4;
+					for (int c = 0; c < 3; c++)
+						data.put(target + c, (byte) palette[index * 3 + c]);
+					if (alpha)
+						data.put(target + 3, (byte) alphas[(int) (alphaIndices >>> (3 * i)) & 7]);
+					else
+						data.put(target + 3, (byte) (transparent && index == 3 ? 0 : 255));
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Compress image with its mipmap chain
+	 *
+	 * @param image
+	 *            RGBA level 0
+	 * @param alpha
+	 *            true for BC3 with alpha, false for opaque BC1
+	 * @return compressed image with all levels
+	 */
+	public static OGLCompressedImage compress(OGLTexImageByte image, boolean alpha) {
+		List<ByteBuffer> levels = new ArrayList<>();
+		for (OGLTexImageByte level : new OGLMipmapBuilder().build(image))
+			levels.add(encode(level, alpha));
+		return new OGLCompressedImage(image.getWidth(), image.getHeight(),
+				alpha ? OGLCompressedImage.GL_COMPRESSED_RGBA_S3TC_DXT5 : OGLCompressedImage.GL_COMPRESSED_RGBA_S3TC_DXT1,
+				levels);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: OGLBlockCompression input output.dds [bc1|bc3]");
+			return;
+		}
+		BufferedImage input = ImageIO.read(new File(args[0]));
+		if (input == null)
+			throw new IOException("Unsupported image: " + args[0]);
+		int width = input.getWidth(), height = input.getHeight();
+		int[] argb = input.getRGB(0, 0, width, height, null, 0, width);
+		byte[] rgba = new byte[width * height * 4];
+		for (int i = 0; i < argb.length; i++) {
+			rgba[i * 4] = (byte) (argb[i] >> 16);
+			rgba[i * 4 + 1] = (byte) (argb[i] >> 8);
+			rgba[i * 4 + 2] = (byte) argb[i];
+			rgba[i * 4 + 3] = (byte) (argb[i] >> 24);
+		}
+		boolean alpha = args.length > 2 ? args[2].equalsIgnoreCase("bc3") : input.getColorModel().hasAlpha();
+		long start = System.nanoTime();
+		OGLCompressedImage compressed = compress(new OGLTexImageByte(width, height, 4, rgba), alpha);
+		compressed.writeDDS(Paths.get(args[1]));
+		System.out.printf("%s -> %s %s in %.0f ms%n", args[0], args[1], compressed,
+				(System.nanoTime() - start) / 1e6);
+	}
+}
@@ -0,0 +1,578 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+import transforms.Mat4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Byte volume divided into bricks for datasets larger than video memory. The
+ * volume is split offline into a brick file (writeBrickFile) storing each
+ * brick with a border of neighbouring voxels and its value range. At run
+ * time only bricks inside the view frustum and not empty for the current
+ * threshold are kept in a 3D atlas texture of fixed size, the least recently
+ * visible bricks are evicted.
+ * <p>
+ * Bricks are read from the brick file by worker threads with positional
+ * reads of a shared channel, update uploads them into atlas slots within a
+ * budget per frame. The file is not memory mapped: every brick is copied into
+ * native memory for the upload anyway, and a mapping per brick would stay
+ * alive until garbage collection and lock the file on Windows. The brick table
+ * texture stores for each brick its atlas slot and state (resident, empty or
+ * missing), shaders include GLSL and sample the volume with bvSample; empty
+ * bricks reported by bvIsEmpty can be skipped by ray marching.
+ * <p>
+ * Bricks are stored uncompressed, the atlas uses plain 8-bit formats.
+ */
+public class OGLBrickedVolume implements AutoCloseable {
+
+	/**
+	 * Functions for sampling, the uniforms are set by bind
+	 */
+	public static final String GLSL = ""
+			+ "uniform sampler3D bvTable;\n"
+			+ "uniform sampler3D bvAtlas;\n"
+			+ "uniform vec4 bvSize; // volume width, height, depth, brick size\n"
+			+ "uniform vec4 bvAtlasSize; // padded brick size, border\n"
+			+ "uniform vec3 bvAtlasTexels;\n"
+			+ "\n"
+			+ "vec4 bvEntry(vec3 p, out vec3 local) {\n"
+			+ "	vec3 texel = clamp(p, 0.0, 1.0) * bvSize.xyz;\n"
+			+ "	ivec3 brick = min(ivec3(texel / bvSize.w), textureSize(bvTable, 0) - 1);\n"
+			+ "	local = texel - vec3(brick) * bvSize.w;\n"
+			+ "	return floor(texelFetch(bvTable, brick, 0) * 255.0 + 0.5);\n"
+			+ "}\n"
+			+ "\n"
+			+ "bool bvIsEmpty(vec3 p) {\n"
+			+ "	vec3 local;\n"
+			+ "	return bvEntry(p, local).a == 128.0;\n"
+			+ "}\n"
+			+ "\n"
+			+ "vec4 bvSample(vec3 p) {\n"
+			+ "	vec3 local;\n"
+			+ "	vec4 entry = bvEntry(p, local);\n"
+			+ "	if (entry.a < 255.0)\n"
+			+ "		return vec4(0.0); // empty or not loaded\n"
+			+ "	vec3 coord = entry.xyz * bvAtlasSize.x + bvAtlasSize.y + local;\n"
+			+ "	return texture(bvAtlas, coord / bvAtlasTexels);\n"
+			+ "}\n";
+
+	private static final int MAGIC = 0x4f42564c; // OBVL
+	private static final int HEADER_SIZE = 64;
+	private static final byte MISSING = 0, EMPTY = (byte) 128, RESIDENT = (byte) 255;
+
+	private static class Brick {
+		final int index, x, y, z;
+		int slot = -1;
+		long seen;
+		float distance;
+
+		Brick(int index, int x, int y, int z) {
+			this.index = index;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+	}
+
+	private static class Loaded {
+		final Brick brick;
+		final ByteBuffer data;
+
+		Loaded(Brick brick, ByteBuffer data) {
+			this.brick = brick;
+			this.data = data;
+		}
+	}
+
+	private final FileChannel channel;
+	private final int width, height, depth, components, brickSize, border;
+	private final int bricksX, bricksY, bricksZ;
+	private final int paddedSize, brickBytes;
+	private final long dataOffset;
+	private final byte[] minValues, maxValues;
+	private final int[] slotCounts;
+	private final Storage3D atlas, table;
+	private final ByteBuffer tableData;
+	private final Brick[] bricks;
+	private final Executor executor;
+	// access order, the eldest resident brick is evicted first
+	private final LinkedHashMap<Integer, Brick> resident = new LinkedHashMap<>(64, 0.75f, true);
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+	private final ConcurrentLinkedQueue<Loaded> loaded = new ConcurrentLinkedQueue<>();
+	private final List<Brick> missing = new ArrayList<>();
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLBrickedVolume");
+	private int threshold = 1;
+	private int maxLoads = 32, maxUploads = 8, loading = 0;
+	private long frame = 0;
+	private long loadedBricks = 0, evictedBricks = 0;
+	private int visibleBricks = 0;
+	private boolean dirty = true;
+
+	/**
+	 * 3D texture without image data, allocated with a sized format
+	 */
+	private class Storage3D {
+		final int id, width, height, depth;
+
+		Storage3D(int width, int height, int depth, int internalFormat, int pixelFormat, int filter) {
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			id = glGenTextures();
+			OGLState state = OGLState.get();
+			state.bindTexture(GL_TEXTURE_3D, id);
+			glTexImage3D(GL_TEXTURE_3D, 0, internalFormat, width, height, depth, 0, pixelFormat, GL_UNSIGNED_BYTE,
+					(ByteBuffer) null);
+			state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_MIN_FILTER, filter);
+			state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_MAG_FILTER, filter);
+			state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+			state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+			state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+			handle.add(OGLResourceTracker.TEXTURE, id,
+					(long) width * height * depth * OGLResourceTracker.bytesPerTexel(internalFormat));
+		}
+
+		void bind(int shaderProgram, String name, int slot) {
+			OGLState.get().activeTexture(GL_TEXTURE0 + slot);
+			OGLState.get().bindTexture(GL_TEXTURE_3D, id);
+			glUniform1i(glGetUniformLocation(shaderProgram, name), slot);
+		}
+	}
+
+	/**
+	 * Open brick file, loading uses the common fork-join pool
+	 *
+	 * @param brickFileName
+	 *            path of the brick file
+	 * @param cacheBricks
+	 *            size of the atlas in bricks along x, y and z, at most 256
+	 * @throws IOException
+	 *             if the brick file cannot be read
+	 */
+	public OGLBrickedVolume(String brickFileName, int[] cacheBricks) throws IOException {
+		this(brickFileName, cacheBricks, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Open brick file
+	 *
+	 * @param brickFileName
+	 *            path of the brick file
+	 * @param cacheBricks
+	 *            size of the atlas in bricks along x, y and z, at most 256
+	 * @param executor
+	 *            threads copying the bricks from the file
+	 * @throws IOException
+	 *             if the brick file cannot be read
+	 */
+	public OGLBrickedVolume(String brickFileName, int[] cacheBricks, Executor executor) throws IOException {
+		for (int count : cacheBricks)
+			if (count < 1 || count > 256)
+				throw new IllegalArgumentException("Atlas of " + count + " bricks, 1 to 256 supported.");
+		this.executor = executor;
+		this.slotCounts = cacheBricks.clone();
+
+		channel = FileChannel.open(Paths.get(brickFileName), StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a brick file: " + brickFileName);
+		}
+		width = header.getInt();
+		height = header.getInt();
+		depth = header.getInt();
+		components = header.getInt();
+		brickSize = header.getInt();
+		border = header.getInt();
+		bricksX = header.getInt();
+		bricksY = header.getInt();
+		bricksZ = header.getInt();
+		int count = bricksX * bricksY * bricksZ;
+		paddedSize = brickSize + 2 * border;
+		brickBytes = paddedSize * paddedSize * paddedSize * components;
+		dataOffset = HEADER_SIZE + 2L * count;
+		if (channel.size() < dataOffset + (long) count * brickBytes) {
+			channel.close();
+			throw new IOException("Brick file " + brickFileName + " is truncated.");
+		}
+		ByteBuffer ranges = ByteBuffer.allocate(2 * count);
+		read(ranges, HEADER_SIZE);
+		ranges.flip();
+		minValues = new byte[count];
+		maxValues = new byte[count];
+		ranges.get(minValues).get(maxValues);
+
+		bricks = new Brick[count];
+		for (int z = 0, i = 0; z < bricksZ; z++)
+			for (int y = 0; y < bricksY; y++)
+				for (int x = 0; x < bricksX; x++, i++)
+					bricks[i] = new Brick(i, x, y, z);
+
+		int internalFormat = new int[] { GL_R8, GL_RG8, GL_RGB8, GL_RGBA8 }[components - 1];
+		int pixelFormat = new int[] { GL_RED, GL_RG, GL_RGB, GL_RGBA }[components - 1];
+		atlas = new Storage3D(slotCounts[0] * paddedSize, slotCounts[1] * paddedSize,
+				slotCounts[2] * paddedSize, internalFormat, pixelFormat, GL_LINEAR);
+		table = new Storage3D(bricksX, bricksY, bricksZ, GL_RGBA8, GL_RGBA, GL_NEAREST);
+		tableData = BufferUtils.createByteBuffer(count * 4);
+		for (int i = 0; i < slotCounts[0] * slotCounts[1] * slotCounts[2]; i++)
+			freeSlots.add(i);
+	}
+
+	/**
+	 * Split volume into a brick file
+	 *
+	 * @param volume
+	 *            byte volume with 1 to 4 components
+	 * @param brickFileName
+	 *            path of the created file
+	 * @param brickSize
+	 *            size of the bricks in voxels, e.g. 64
+	 * @param border
+	 *            voxels repeated from the neighbouring bricks, at least 1 for
+	 *            trilinear filtering
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static void writeBrickFile(OGLTexImageByte volume, String brickFileName, int brickSize, int border)
+			throws IOException {
+		int width = volume.getWidth(), height = volume.getHeight(), depth = volume.getDepth();
+		int components = volume.getFormat().getComponentCount();
+		int bricksX = (width + brickSize - 1) / brickSize;
+		int bricksY = (height + brickSize - 1) / brickSize;
+		int bricksZ = (depth + brickSize - 1) / brickSize;
+		int count = bricksX * bricksY * bricksZ;
+		int paddedSize = brickSize + 2 * border;
+		int brickBytes = paddedSize * paddedSize * paddedSize * components;
+		long dataOffset = HEADER_SIZE + 2L * count;
+		byte[] minValues = new byte[count], maxValues = new byte[count];
+		ByteBuffer source = volume.getDataBuffer();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(brickFileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// positional writes of independent bricks
+			IntStream.range(0, count).parallel().forEach(i -> {
+				int bx = i % bricksX, by = i / bricksX % bricksY, bz = i / (bricksX * bricksY);
+				ByteBuffer brick = ByteBuffer.allocate(brickBytes);
+				int min = 255, max = 0;
+				for (int z = 0; z < paddedSize; z++) {
+					int sz = Math.min(Math.max(bz * brickSize + z - border, 0), depth - 1);
+					for (int y = 0; y < paddedSize; y++) {
+						int sy = Math.min(Math.max(by * brickSize + y - border, 0), height - 1);
+						for (int x = 0; x < paddedSize; x++) {
+							int sx = Math.min(Math.max(bx * brickSize + x - border, 0), width - 1);
+							int o = ((sz * height + sy) * width + sx) * components;
+							for (int c = 0; c < components; c++) {
+								int value = source.get(o + c) & 0xff;
+								min = Math.min(min, value);
+								max = Math.max(max, value);
+								brick.put((byte) value);
+							}
+						}
+					}
+				}
+				minValues[i] = (byte) min;
+				maxValues[i] = (byte) max;
+				brick.flip();
+				try {
+					long position = dataOffset + (long) i * brickBytes;
+					while (brick.hasRemaining())
+						position += channel.write(brick, position);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+			header.putInt(MAGIC).putInt(width).putInt(height).putInt(depth).putInt(components).putInt(brickSize)
+					.putInt(border).putInt(bricksX).putInt(bricksY).putInt(bricksZ);
+			header.position(HEADER_SIZE);
+			header.put(minValues).put(maxValues);
+			header.clear();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param threshold
+	 *            smallest value of visible voxels, bricks whose maximum is
+	 *            lower are empty and never loaded
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+		dirty = true;
+	}
+
+	private boolean isEmpty(int brick) {
+		return (maxValues[brick] & 0xff) < threshold;
+	}
+
+	/**
+	 * Upload loaded bricks and request bricks visible in the view, must be
+	 * called on the OpenGL thread once per frame
+	 *
+	 * @param modelViewProj
+	 *            transformation of the unit cube of the volume into clip
+	 *            space
+	 */
+	public void update(Mat4 modelViewProj) {
+		frame++;
+		upload();
+
+		missing.clear();
+		visibleBricks = 0;
+		for (Brick brick : bricks) {
+			if (isEmpty(brick.index) || !isVisible(brick, modelViewProj))
+				continue;
+			visibleBricks++;
+			if (resident.get(brick.index) != null)
+				brick.seen = frame;
+			else if (brick.slot < 0) // not loading
+				missing.add(brick);
+		}
+		// near bricks first
+		Collections.sort(missing, (a, b) -> Float.compare(a.distance, b.distance));
+		for (Brick brick : missing) {
+			if (loading >= maxLoads)
+				break;
+			int slot = allocateSlot();
+			if (slot < 0)
+				break;
+			load(brick, slot);
+		}
+
+		if (dirty) {
+			updateTable();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Clip test of the corners of the brick, visible unless all corners are
+	 * outside one plane of the frustum
+	 */
+	private boolean isVisible(Brick brick, Mat4 m) {
+		int outside = 0x3f;
+		float nearest = Float.MAX_VALUE;
+		for (int corner = 0; corner < 8; corner++) {
+			double x = Math.min((brick.x + (corner & 1)) * brickSize, width) / (double) width;
+			double y = Math.min((brick.y + (corner >> 1 & 1)) * brickSize, height) / (double) height;
+			double z = Math.min((brick.z + (corner >> 2)) * brickSize, depth) / (double) depth;
+			double cx = m.get(0, 0) * x + m.get(1, 0) * y + m.get(2, 0) * z + m.get(3, 0);
+			double cy = m.get(0, 1) * x + m.get(1, 1) * y + m.get(2, 1) * z + m.get(3, 1);
+			double cz = m.get(0, 2) * x + m.get(1, 2) * y + m.get(2, 2) * z + m.get(3, 2);
+			double cw = m.get(0, 3) * x + m.get(1, 3) * y + m.get(2, 3) * z + m.get(3, 3);
+			int planes = (cx < -cw ? 1 : 0) | (cx > cw ? 2 : 0) | (cy < -cw ? 4 : 0) | (cy > cw ? 8 : 0)
+					| (cz < -cw ? 16 : 0) | (cz > cw ? 32 : 0);
+			outside &= planes;
+			nearest = Math.min(nearest, (float) cw);
+		}
+		brick.distance = nearest;
+		return outside == 0;
+	}
+
+	/**
+	 * @return free slot or slot of the least recently visible brick not
+	 *         visible in the current frame, -1 if all bricks are in use
+	 */
+	private int allocateSlot() {
+		if (!freeSlots.isEmpty())
+			return freeSlots.poll();
+		for (Iterator<Brick> it = resident.values().iterator(); it.hasNext();) {
+			Brick brick = it.next();
+			if (brick.seen >= frame)
+				break;
+			it.remove();
+			int slot = brick.slot;
+			brick.slot = -1;
+			evictedBricks++;
+			dirty = true;
+			return slot;
+		}
+		return -1;
+	}
+
+	private void load(Brick brick, int slot) {
+		loading++;
+		brick.slot = slot;
+		long offset = dataOffset + (long) brick.index * brickBytes;
+		executor.execute(() -> {
+			ByteBuffer data = MemoryUtil.memAlloc(brickBytes);
+			try {
+				read(data, offset);
+				data.flip();
+			} catch (IOException e) {
+				System.err.println(e);
+				MemoryUtil.memFree(data);
+				data = null;
+			}
+			loaded.add(new Loaded(brick, data));
+		});
+	}
+
+	/**
+	 * Positional read filling the buffer, the channel is shared by the workers
+	 */
+	private void read(ByteBuffer target, long offset) throws IOException {
+		long position = offset - target.position();
+		while (target.hasRemaining())
+			if (channel.read(target, position + target.position()) < 0)
+				throw new IOException("Unexpected end of brick file.");
+	}
+
+	private void upload() {
+		Loaded item;
+		int uploads = 0;
+		OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		while (uploads < maxUploads && (item = loaded.poll()) != null) {
+			Brick brick = item.brick;
+			loading--;
+			if (item.data == null) {
+				freeSlots.add(brick.slot);
+				brick.slot = -1;
+				continue;
+			}
+			int slot = brick.slot;
+			int sx = slot % slotCounts[0], sy = slot / slotCounts[0] % slotCounts[1];
+			int sz = slot / (slotCounts[0] * slotCounts[1]);
+			OGLState.get().bindTexture(GL_TEXTURE_3D, atlas.id);
+			glTexSubImage3D(GL_TEXTURE_3D, 0, sx * paddedSize, sy * paddedSize, sz * paddedSize, paddedSize,
+					paddedSize, paddedSize, new int[] { GL_RED, GL_RG, GL_RGB, GL_RGBA }[components - 1],
+					GL_UNSIGNED_BYTE, item.data);
+			MemoryUtil.memFree(item.data);
+			brick.seen = frame;
+			resident.put(brick.index, brick);
+			loadedBricks++;
+			uploads++;
+			dirty = true;
+		}
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	private void updateTable() {
+		for (Brick brick : bricks) {
+			int i = brick.index * 4;
+			int slot = resident.containsKey(brick.index) ? brick.slot : -1;
+			if (isEmpty(brick.index)) {
+				tableData.putInt(i, 0);
+				tableData.put(i + 3, EMPTY);
+			} else if (slot >= 0) {
+				tableData.put(i, (byte) (slot % slotCounts[0]));
+				tableData.put(i + 1, (byte) (slot / slotCounts[0] % slotCounts[1]));
+				tableData.put(i + 2, (byte) (slot / (slotCounts[0] * slotCounts[1])));
+				tableData.put(i + 3, RESIDENT);
+			} else {
+				tableData.putInt(i, 0);
+				tableData.put(i + 3, MISSING);
+			}
+		}
+		OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		OGLState.get().bindTexture(GL_TEXTURE_3D, table.id);
+		glTexSubImage3D(GL_TEXTURE_3D, 0, 0, 0, 0, bricksX, bricksY, bricksZ, GL_RGBA, GL_UNSIGNED_BYTE,
+				tableData);
+	}
+
+	/**
+	 * Bind textures and uniforms of bvSample
+	 *
+	 * @param shaderProgram
+	 *            shader program including GLSL
+	 * @param tableSlot
+	 *            texture unit of the brick table
+	 * @param atlasSlot
+	 *            texture unit of the atlas
+	 */
+	public void bind(int shaderProgram, int tableSlot, int atlasSlot) {
+		table.bind(shaderProgram, "bvTable", tableSlot);
+		atlas.bind(shaderProgram, "bvAtlas", atlasSlot);
+		glUniform4f(glGetUniformLocation(shaderProgram, "bvSize"), width, height, depth, brickSize);
+		glUniform4f(glGetUniformLocation(shaderProgram, "bvAtlasSize"), paddedSize, border, 0, 0);
+		glUniform3f(glGetUniformLocation(shaderProgram, "bvAtlasTexels"), atlas.width, atlas.height,
+				atlas.depth);
+	}
+
+	/**
+	 * @param maxLoads
+	 *            bricks copied from the file at the same time at most
+	 * @param maxUploads
+	 *            bricks uploaded per update at most
+	 */
+	public void setBudget(int maxLoads, int maxUploads) {
+		this.maxLoads = maxLoads;
+		this.maxUploads = maxUploads;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return number of non-empty bricks in the view of the last update
+	 */
+	public int getVisibleCount() {
+		return visibleBricks;
+	}
+
+	public int getResidentCount() {
+		return resident.size();
+	}
+
+	/**
+	 * Close the brick file and delete the textures, bricks still being
+	 * copied by workers are not released
+	 */
+	@Override
+	public void close() {
+		Loaded item;
+		while ((item = loaded.poll()) != null)
+			if (item.data != null)
+				MemoryUtil.memFree(item.data);
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+		handle.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLBrickedVolume: [%dx%dx%d] bricks: %d^3 (%dx%dx%d), atlas: %dx%dx%d "
+				+ "bricks, resident: %d, visible: %d, loaded: %d, evicted: %d", width, height, depth, brickSize,
+				bricksX, bricksY, bricksZ, slotCounts[0], slotCounts[1], slotCounts[2], resident.size(),
+				visibleBricks, loadedBricks, evictedBricks);
+	}
+}
@@ -12,12 +12,13 @@ import static org.lwjgl.opengl.GL33.*;
 
 //import static org.lwjgl.opengl.GL15.*;
 
-public class OGLBuffers {
+public class OGLBuffers implements AutoCloseable {
 	static public class Attrib {
 		String name;
 		int dimension;
 		boolean normalize = false;
 		int offset = -1;
+		int divisor = 0;
 
 		public Attrib(String name, int dimension) {
 			this.name = name;
@@ -42,6 +43,28 @@ public class OGLBuffers {
 			this.normalize = normalize;
 			this.offset = 4 * offsetInFloats;
 		}
+
+		/**
+		 * Create per-instance attribute, dimension 9 or 16 declares mat3 or mat4
+		 * occupying three or four consecutive locations
+		 * 
+		 * @param name
+		 *            name of the attribute in GLSL
+		 * @param dimension
+		 *            number of floats
+		 * @param offsetInFloats
+		 *            offset in the buffer, negative for attributes following
+		 *            each other
+		 * @param divisor
+		 *            number of instances sharing one value, 0 for per-vertex
+		 *            attribute
+		 */
+		public Attrib(String name, int dimension, int offsetInFloats, int divisor) {
+			this.name = name;
+			this.dimension = dimension;
+			this.offset = offsetInFloats < 0 ? -1 : 4 * offsetInFloats;
+			this.divisor = divisor;
+		}
 		
 		@Override
 		public String toString() {
@@ -49,13 +72,18 @@ public class OGLBuffers {
 					 "new Attrib( /*name:*/ " + name +
 					 ", /*dimension:*/ "+ dimension + 
 					 ", /*normalize:*/ " + normalize +
-					 ", /*offset:*/ " + offset + ")");
+					 ", /*offset:*/ " + offset +
+					 ", /*divisor:*/ " + divisor + ")");
 		}
 	}
 
 	protected class VertexBuffer {
 		int id, stride;
 		Attrib[] attributes;
+		// per-instance buffers only, attributes with divisor 0 use divisor 1
+		boolean instanced;
+		int capacity;
+		FloatBuffer staging;
 
 		public VertexBuffer(int id, int stride, Attrib[] attributes) {
 			this.id = id;
@@ -69,7 +97,8 @@ public class OGLBuffers {
 			text += String.format(Locale.US, 
 					 "VertexBuffer ID: " + id +
 					 ", stride: " + stride +
-					 ", length: " + attributes.length );
+					 ", length: " + attributes.length +
+					 (staging != null ? ", instance capacity: " + capacity : ""));
 			for (int i = 0; i< attributes.length; i++ ){
 				text += "\n\t\t" + i + ": " + attributes[i].toString() ;
 			}
@@ -78,10 +107,12 @@ public class OGLBuffers {
 	}
 
 	protected List<VertexBuffer> vertexBuffers = new ArrayList<>();
-	protected List<Integer> attribArrays = null;
+	protected List<Integer> attribArrays = new ArrayList<>();
+	protected List<Integer> attribDivisors = new ArrayList<>();
 	protected int indexBuffer;
 	protected int indexCount = -1;
 	protected int vertexCount = -1;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLBuffers");
 
 	public OGLBuffers(float[] vertexData, Attrib[] attributes, int[] indexData) {
 		addVertexBuffer(vertexData, attributes);
@@ -111,8 +142,9 @@ public class OGLBuffers {
 		FloatBuffer buffer = (FloatBuffer) BufferUtils.createFloatBuffer(data.length)
 				.put(data).rewind();
 		int bufferID = glGenBuffers();
-		glBindBuffer(GL_ARRAY_BUFFER, bufferID);
+		OGLState.get().bindBuffer(GL_ARRAY_BUFFER, bufferID);
 		glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+		handle.add(OGLResourceTracker.BUFFER, bufferID, 4L * data.length);
 
 		if (data.length % floatsPerVertex != 0)
 			throw new RuntimeException(
@@ -125,58 +157,159 @@ public class OGLBuffers {
 		vertexBuffers.add(new VertexBuffer(bufferID, floatsPerVertex * 4, attributes));
 	}
 
+	/**
+	 * Add buffer of per-instance attributes, the data are streamed by
+	 * setInstanceData, attributes with divisor 0 are bound with divisor 1, the
+	 * Attrib objects are not modified
+	 * 
+	 * @param maxInstanceCount
+	 *            number of instances the buffer is allocated for
+	 * @param attributes
+	 *            per-instance attributes
+	 * @return index of the buffer used by setInstanceData
+	 */
+	public int addInstanceBuffer(int maxInstanceCount, Attrib[] attributes) {
+		int floatsPerInstance = 0;
+		for (Attrib attrib : attributes) {
+			floatsPerInstance += attrib.dimension;
+		}
+		int bufferID = glGenBuffers();
+		OGLState.get().bindBuffer(GL_ARRAY_BUFFER, bufferID);
+		glBufferData(GL_ARRAY_BUFFER, (long) maxInstanceCount * floatsPerInstance * 4, GL_STREAM_DRAW);
+		handle.add(OGLResourceTracker.BUFFER, bufferID, (long) maxInstanceCount * floatsPerInstance * 4);
+
+		VertexBuffer vb = new VertexBuffer(bufferID, floatsPerInstance * 4, attributes);
+		vb.instanced = true;
+		vb.capacity = maxInstanceCount;
+		vb.staging = BufferUtils.createFloatBuffer(maxInstanceCount * floatsPerInstance);
+		vertexBuffers.add(vb);
+		return vertexBuffers.size() - 1;
+	}
+
+	/**
+	 * Replace content of per-instance buffer, the previous storage is orphaned
+	 * so that the upload does not wait for draws still reading it
+	 * 
+	 * @param buffer
+	 *            index returned by addInstanceBuffer
+	 * @param data
+	 *            per-instance attributes of consecutive instances
+	 * @param instanceCount
+	 *            number of instances taken from data
+	 */
+	public void setInstanceData(int buffer, float[] data, int instanceCount) {
+		VertexBuffer vb = vertexBuffers.get(buffer);
+		if (vb.staging == null)
+			throw new RuntimeException("Buffer " + buffer + " is not a per-instance buffer.");
+		int floatsPerInstance = vb.stride / 4;
+		if (instanceCount > vb.capacity) {
+			vb.capacity = Math.max(instanceCount, vb.capacity * 2);
+			vb.staging = BufferUtils.createFloatBuffer(vb.capacity * floatsPerInstance);
+			handle.add(OGLResourceTracker.BUFFER, vb.id, (long) vb.capacity * vb.stride);
+		}
+		vb.staging.clear();
+		vb.staging.put(data, 0, instanceCount * floatsPerInstance).flip();
+		OGLState.get().bindBuffer(GL_ARRAY_BUFFER, vb.id);
+		glBufferData(GL_ARRAY_BUFFER, (long) vb.capacity * vb.stride, GL_STREAM_DRAW);
+		glBufferSubData(GL_ARRAY_BUFFER, 0, vb.staging);
+	}
+
 	public void setIndexBuffer(int[] data) {
 		indexCount = data.length;
 		IntBuffer indexBufferBuffer = (IntBuffer) BufferUtils.createIntBuffer(indexCount)
 				.put(data).rewind();
 		indexBuffer = glGenBuffers();
-		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		OGLState.get().bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
 		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indexBufferBuffer,
 				GL_STATIC_DRAW);
+		handle.add(OGLResourceTracker.BUFFER, indexBuffer, 4L * indexCount);
 	}
 
 	public void bind(int shaderProgram) {
-		if (attribArrays != null)
-			for (Integer attrib : attribArrays)
-				glDisableVertexAttribArray(attrib);
-		attribArrays = new ArrayList<>();
+		OGLState state = OGLState.get();
+		unbind();
 		for (VertexBuffer vb : vertexBuffers) {
-			glBindBuffer(GL_ARRAY_BUFFER, vb.id);
+			state.bindBuffer(GL_ARRAY_BUFFER, vb.id);
 			int offset = 0;
 			for (int j = 0; j < vb.attributes.length; j++) {
-				int location = glGetAttribLocation(shaderProgram, vb.attributes[j].name);
+				Attrib attrib = vb.attributes[j];
+				int location = glGetAttribLocation(shaderProgram, attrib.name);
 				if (location >= 0) {// due to optimization GLSL on a graphic card
-					attribArrays.add(location);
-					glEnableVertexAttribArray(location);
-					glVertexAttribPointer(location, vb.attributes[j].dimension, GL_FLOAT,
-							vb.attributes[j].normalize, vb.stride,
-							vb.attributes[j].offset < 0 ? offset : vb.attributes[j].offset);
+					int start = attrib.offset < 0 ? offset : attrib.offset;
+					// matrices occupy one location per column
+					int rows = attrib.dimension > 4 ? (attrib.dimension == 9 ? 3 : 4) : attrib.dimension;
+					for (int c = 0; c < attrib.dimension / rows; c++) {
+						attribArrays.add(location + c);
+						glEnableVertexAttribArray(location + c);
+						glVertexAttribPointer(location + c, rows, GL_FLOAT,
+								attrib.normalize, vb.stride, start + 4 * c * rows);
+						int divisor = attrib.divisor == 0 && vb.instanced ? 1 : attrib.divisor;
+						if (divisor != 0) {
+							attribDivisors.add(location + c);
+							glVertexAttribDivisor(location + c, divisor);
+						}
+					}
 				}
-				offset += 4 * vb.attributes[j].dimension;
+				offset += 4 * attrib.dimension;
 			}
 		}
 
 		if (indexBuffer !=0)
-			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+			state.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
 
 	}
 
 	public void unbind() {
-		if (attribArrays != null) {
-			for (Integer attrib : attribArrays)
-				glDisableVertexAttribArray(attrib);
-			attribArrays = null;
-		}
+		for (Integer attrib : attribArrays)
+			glDisableVertexAttribArray(attrib);
+		attribArrays.clear();
+		// divisor is a state of the location, other buffers may use it per vertex
+		for (Integer attrib : attribDivisors)
+			glVertexAttribDivisor(attrib, 0);
+		attribDivisors.clear();
 	}
 
-	public void draw(int topology, int shaderProgram) {
-		// gl.glUseProgram(shaderProgram);
-		bind(shaderProgram);
+	/**
+	 * Draw buffers previously bound by bind(int), buffers stay bound so that
+	 * consecutive draws of the same buffers do not repeat the binding
+	 * 
+	 * @param topology
+	 *            primitive type
+	 */
+	public void drawBound(int topology) {
 		if (indexBuffer == 0) {
 			glDrawArrays(topology, 0, vertexCount);
 		} else {
 			glDrawElements(topology, indexCount, GL_UNSIGNED_INT, 0);
 		}
+	}
+
+	/**
+	 * Draw instances of buffers previously bound by bind(int)
+	 * 
+	 * @param topology
+	 *            primitive type
+	 * @param instanceCount
+	 *            number of instances
+	 */
+	public void drawBoundInstanced(int topology, int instanceCount) {
+		if (indexBuffer == 0) {
+			glDrawArraysInstanced(topology, 0, vertexCount, instanceCount);
+		} else {
+			glDrawElementsInstanced(topology, indexCount, GL_UNSIGNED_INT, 0, instanceCount);
+		}
+	}
+
+	public void drawInstanced(int topology, int shaderProgram, int instanceCount) {
+		bind(shaderProgram);
+		drawBoundInstanced(topology, instanceCount);
+		unbind();
+	}
+
+	public void draw(int topology, int shaderProgram) {
+		// gl.glUseProgram(shaderProgram);
+		bind(shaderProgram);
+		drawBound(topology);
 		unbind();
 	}
 
@@ -207,14 +340,12 @@ public class OGLBuffers {
 		}
 		return  text;
 	}
-	
-	/*@Override
-	public void finalize() throws Throwable {
-		super.finalize();
-		if (indexBuffer != 0)
-			glDeleteBuffers(indexBuffer);
-		for (int i = 0; i < vertexBuffers.size(); i++)
-			glDeleteBuffers(vertexBuffers.get(i).id);
-		
-	}*/
+
+	/**
+	 * Delete all buffers, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
 }
@@ -0,0 +1,319 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Block-compressed image with its mipmap chain read from a DDS or KTX (1.1)
+ * container. Supported formats are BC1 (DXT1), BC3 (DXT5) and BC7, linear or
+ * sRGB. The level data are uploaded as they are by glCompressedTexImage2D.
+ */
+public class OGLCompressedImage {
+	public static final int GL_COMPRESSED_RGB_S3TC_DXT1 = 0x83F0;
+	public static final int GL_COMPRESSED_RGBA_S3TC_DXT1 = 0x83F1;
+	public static final int GL_COMPRESSED_RGBA_S3TC_DXT5 = 0x83F3;
+	public static final int GL_COMPRESSED_SRGB_S3TC_DXT1 = 0x8C4C;
+	public static final int GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1 = 0x8C4D;
+	public static final int GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5 = 0x8C4F;
+	public static final int GL_COMPRESSED_RGBA_BPTC_UNORM = 0x8E8C;
+	public static final int GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM = 0x8E8D;
+
+	private static final int DDS_MAGIC = 0x20534444; // "DDS "
+	private static final int FOURCC_DXT1 = 0x31545844;
+	private static final int FOURCC_DXT5 = 0x35545844;
+	private static final int FOURCC_DX10 = 0x30315844;
+	private static final int DXGI_BC1 = 71, DXGI_BC1_SRGB = 72, DXGI_BC3 = 77, DXGI_BC3_SRGB = 78,
+			DXGI_BC7 = 98, DXGI_BC7_SRGB = 99;
+	private static final byte[] KTX_IDENTIFIER = { (byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB, '\r',
+			'\n', 0x1A, '\n' };
+
+	private final int width, height;
+	private final int internalFormat;
+	private final List<ByteBuffer> levels;
+
+	public OGLCompressedImage(int width, int height, int internalFormat, List<ByteBuffer> levels) {
+		this.width = width;
+		this.height = height;
+		this.internalFormat = internalFormat;
+		this.levels = levels;
+	}
+
+	/**
+	 * Read DDS or KTX container, the type is recognized by its header
+	 *
+	 * @param fileName
+	 *            resource path of the file
+	 * @return image with all levels stored in the file
+	 * @throws IOException
+	 *             if the file cannot be read or its format is not supported
+	 */
+	public static OGLCompressedImage read(String fileName) throws IOException {
+		ByteBuffer data = ResourceUtils.read(fileName);
+		OGLCompressedImage image = read(data);
+		System.out.println("Compressed texture " + fileName + " ... OK " + image);
+		return image;
+	}
+
+	/**
+	 * Parse DDS or KTX container
+	 *
+	 * @param data
+	 *            content of the file
+	 * @return image with all levels stored in the container
+	 * @throws IOException
+	 *             if the format is not supported
+	 */
+	public static OGLCompressedImage read(ByteBuffer data) throws IOException {
+		data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (data.remaining() >= 128 && data.getInt(0) == DDS_MAGIC)
+			return readDDS(data);
+		boolean ktx = data.remaining() >= 64;
+		for (int i = 0; ktx && i < KTX_IDENTIFIER.length; i++)
+			ktx = data.get(i) == KTX_IDENTIFIER[i];
+		if (ktx)
+			return readKTX(data);
+		throw new IOException("Unknown compressed texture container.");
+	}
+
+	private static OGLCompressedImage readDDS(ByteBuffer data) throws IOException {
+		int height = data.getInt(12);
+		int width = data.getInt(16);
+		int levelCount = Math.max(1, data.getInt(28));
+		int fourCC = data.getInt(84);
+		int offset = 128;
+		int format;
+		if (fourCC == FOURCC_DXT1) {
+			format = GL_COMPRESSED_RGBA_S3TC_DXT1;
+		} else if (fourCC == FOURCC_DXT5) {
+			format = GL_COMPRESSED_RGBA_S3TC_DXT5;
+		} else if (fourCC == FOURCC_DX10) {
+			offset += 20;
+			switch (data.getInt(128)) {
+			case DXGI_BC1: format = GL_COMPRESSED_RGBA_S3TC_DXT1; break;
+			case DXGI_BC1_SRGB: format = GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1; break;
+			case DXGI_BC3: format = GL_COMPRESSED_RGBA_S3TC_DXT5; break;
+			case DXGI_BC3_SRGB: format = GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5; break;
+			case DXGI_BC7: format = GL_COMPRESSED_RGBA_BPTC_UNORM; break;
+			case DXGI_BC7_SRGB: format = GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM; break;
+			default:
+				throw new IOException("Unsupported DXGI format " + data.getInt(128) + " in DDS.");
+			}
+		} else {
+			throw new IOException("Unsupported DDS pixel format, only BC1, BC3 and BC7 are supported.");
+		}
+
+		List<ByteBuffer> levels = new ArrayList<>();
+		for (int level = 0; level < levelCount; level++) {
+			int size = levelSize(format, Math.max(1, width >> level), Math.max(1, height >> level));
+			if (offset + size > data.limit())
+				throw new IOException("DDS file is truncated.");
+			levels.add(slice(data, offset, size));
+			offset += size;
+		}
+		return new OGLCompressedImage(width, height, format, levels);
+	}
+
+	private static OGLCompressedImage readKTX(ByteBuffer data) throws IOException {
+		if (data.getInt(12) != 0x04030201)
+			data.order(ByteOrder.BIG_ENDIAN);
+		int glType = data.getInt(16);
+		int format = data.getInt(28);
+		int width = data.getInt(36);
+		int height = data.getInt(40);
+		int depth = data.getInt(44);
+		int arrayElements = data.getInt(48);
+		int faces = data.getInt(52);
+		int levelCount = Math.max(1, data.getInt(56));
+		int keyValueBytes = data.getInt(60);
+		if (glType != 0 || depth > 1 || arrayElements > 0 || faces != 1)
+			throw new IOException("Only compressed 2D textures are supported in KTX.");
+		if (!isSupported(format))
+			throw new IOException(String.format(Locale.US, "Unsupported compressed format 0x%x in KTX.", format));
+
+		List<ByteBuffer> levels = new ArrayList<>();
+		int offset = 64 + keyValueBytes;
+		for (int level = 0; level < levelCount; level++) {
+			int size = data.getInt(offset);
+			offset += 4;
+			if (offset + size > data.limit())
+				throw new IOException("KTX file is truncated.");
+			levels.add(slice(data, offset, size));
+			offset += (size + 3) & ~3;
+		}
+		return new OGLCompressedImage(width, height, format, levels);
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int offset, int size) {
+		ByteBuffer level = BufferUtils.createByteBuffer(size);
+		ByteBuffer source = data.duplicate();
+		source.position(offset).limit(offset + size);
+		level.put(source).flip();
+		return level;
+	}
+
+	/**
+	 * @param format
+	 *            internal format
+	 * @return true if the format is BC1, BC3 or BC7
+	 */
+	public static boolean isSupported(int format) {
+		return isS3TC(format) || format == GL_COMPRESSED_RGBA_BPTC_UNORM
+				|| format == GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+	}
+
+	/**
+	 * @param format
+	 *            internal format
+	 * @return true for BC1 and BC3 formats, which the driver supports by
+	 *         GL_EXT_texture_compression_s3tc only
+	 */
+	public static boolean isS3TC(int format) {
+		switch (format) {
+		case GL_COMPRESSED_RGB_S3TC_DXT1:
+		case GL_COMPRESSED_RGBA_S3TC_DXT1:
+		case GL_COMPRESSED_SRGB_S3TC_DXT1:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1:
+		case GL_COMPRESSED_RGBA_S3TC_DXT5:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param format
+	 *            compressed internal format
+	 * @return true if the color is stored in sRGB
+	 */
+	public static boolean isSRGB(int format) {
+		return format == GL_COMPRESSED_SRGB_S3TC_DXT1 || format == GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1
+				|| format == GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5 || format == GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM;
+	}
+
+	/**
+	 * @param format
+	 *            compressed internal format
+	 * @return size of 4x4 block in bytes
+	 */
+	public static int blockSize(int format) {
+		switch (format) {
+		case GL_COMPRESSED_RGB_S3TC_DXT1:
+		case GL_COMPRESSED_RGBA_S3TC_DXT1:
+		case GL_COMPRESSED_SRGB_S3TC_DXT1:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT1:
+			return 8;
+		case GL_COMPRESSED_RGBA_S3TC_DXT5:
+		case GL_COMPRESSED_SRGB_ALPHA_S3TC_DXT5:
+		case GL_COMPRESSED_RGBA_BPTC_UNORM:
+		case GL_COMPRESSED_SRGB_ALPHA_BPTC_UNORM:
+			return 16;
+		default:
+			throw new RuntimeException(String.format(Locale.US, "Unsupported compressed format 0x%x.", format));
+		}
+	}
+
+	public static int levelSize(int format, int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * blockSize(format);
+	}
+
+	/**
+	 * Write the image into DDS file, BC1 and BC3 only
+	 *
+	 * @param path
+	 *            output file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void writeDDS(Path path) throws IOException {
+		int fourCC;
+		if (internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT1 || internalFormat == GL_COMPRESSED_RGB_S3TC_DXT1)
+			fourCC = FOURCC_DXT1;
+		else if (internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5)
+			fourCC = FOURCC_DXT5;
+		else
+			throw new IOException("Only BC1 and BC3 images can be written to DDS.");
+
+		ByteBuffer header = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, DDS_MAGIC);
+		header.putInt(4, 124);
+		// caps, height, width, pixel format, mipmap count, linear size
+		header.putInt(8, 0x1 | 0x2 | 0x4 | 0x1000 | 0x20000 | 0x80000);
+		header.putInt(12, height);
+		header.putInt(16, width);
+		header.putInt(20, levels.get(0).remaining());
+		header.putInt(28, levels.size());
+		header.putInt(76, 32);
+		header.putInt(80, 0x4); // fourCC
+		header.putInt(84, fourCC);
+		// texture, mipmap, complex
+		header.putInt(108, 0x1000 | (levels.size() > 1 ? 0x400000 | 0x8 : 0));
+
+		try (OutputStream out = Files.newOutputStream(path)) {
+			out.write(header.array());
+			for (ByteBuffer level : levels) {
+				byte[] bytes = new byte[level.remaining()];
+				level.duplicate().get(bytes);
+				out.write(bytes);
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getWidth(int level) {
+		return Math.max(1, width >> level);
+	}
+
+	public int getHeight(int level) {
+		return Math.max(1, height >> level);
+	}
+
+	public int getInternalFormat() {
+		return internalFormat;
+	}
+
+	public int getLevelCount() {
+		return levels.size();
+	}
+
+	/**
+	 * @param level
+	 *            mipmap level
+	 * @return compressed blocks of the level
+	 */
+	public ByteBuffer getLevel(int level) {
+		return levels.get(level).duplicate();
+	}
+
+	/**
+	 * @return size of all levels in bytes
+	 */
+	public long getSize() {
+		long size = 0;
+		for (ByteBuffer level : levels)
+			size += level.remaining();
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "[%dx%d] format: 0x%x, levels: %d, %d B", width, height, internalFormat,
+				levels.size(), getSize());
+	}
+}
@@ -0,0 +1,144 @@
+package lwjglutils;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Conversion of panoramic images to the six faces of a cube map, faces are in
+ * the order of OGLTextureCube (+x, -x, +y, -y, +z, -z) and oriented by the
+ * OpenGL cube map convention, i.e. uploaded without flipping.
+ */
+public class OGLCubeMapConverter {
+
+	private OGLCubeMapConverter() {
+	}
+
+	/**
+	 * Resample equirectangular (longitude-latitude) image, the center of the
+	 * image is the +z direction, the top row is +y; faces are computed in
+	 * parallel with bilinear filtering
+	 *
+	 * @param image
+	 *            RGBA image with aspect ratio 2:1
+	 * @param faceSize
+	 *            width and height of the faces, width / 4 keeps the resolution
+	 *            at the equator
+	 * @return six RGBA faces
+	 */
+	public static OGLTexImageByte[] fromEquirectangular(OGLTexImageByte image, int faceSize) {
+		if (image.getFormat().getComponentCount() != 4)
+			throw new IllegalArgumentException("RGBA image expected.");
+		OGLTexImageByte[] faces = new OGLTexImageByte[6];
+		ByteBuffer source = image.getDataBuffer();
+		int width = image.getWidth(), height = image.getHeight();
+		IntStream.range(0, 6).parallel().forEach(face -> {
+			OGLTexImageByte target = new OGLTexImageByte(faceSize, faceSize, 1, 4);
+			ByteBuffer data = target.getDataBuffer();
+			float[] direction = new float[3];
+			float[] texel = new float[4];
+			for (int j = 0; j < faceSize; j++) {
+				for (int i = 0; i < faceSize; i++) {
+					direction(face, 2 * (i + 0.5f) / faceSize - 1, 2 * (j + 0.5f) / faceSize - 1, direction);
+					float x = direction[0], y = direction[1], z = direction[2];
+					double length = Math.sqrt(x * x + y * y + z * z);
+					float u = (float) (0.5 + Math.atan2(x, z) / (2 * Math.PI));
+					float v = (float) (Math.acos(y / length) / Math.PI);
+					sample(source, width, height, u * width - 0.5f, v * height - 0.5f, texel);
+					int o = (j * faceSize + i) * 4;
+					for (int c = 0; c < 4; c++)
+						data.put(o + c, (byte) Math.round(texel[c]));
+				}
+			}
+			faces[face] = target;
+		});
+		return faces;
+	}
+
+	/**
+	 * Cut faces of horizontal cross layout: +y above, -y below the second
+	 * column of the middle row -x, +z, +x, -z
+	 *
+	 * @param image
+	 *            RGBA image of the cross
+	 * @param x
+	 *            left of the cross in texels
+	 * @param y
+	 *            top of the cross in texels
+	 * @param faceSize
+	 *            width and height of the faces in the image
+	 * @return six RGBA faces
+	 */
+	public static OGLTexImageByte[] fromCross(OGLTexImageByte image, int x, int y, int faceSize) {
+		if (image.getFormat().getComponentCount() != 4)
+			throw new IllegalArgumentException("RGBA image expected.");
+		if (x + 4 * faceSize > image.getWidth() || y + 3 * faceSize > image.getHeight())
+			throw new IllegalArgumentException("Cross of " + faceSize + " texel faces at [" + x + ", " + y
+					+ "] exceeds the image.");
+		// column and row of +x, -x, +y, -y, +z, -z
+		int[][] cells = { { 2, 1 }, { 0, 1 }, { 1, 0 }, { 1, 2 }, { 1, 1 }, { 3, 1 } };
+		OGLTexImageByte[] faces = new OGLTexImageByte[6];
+		ByteBuffer source = image.getDataBuffer();
+		int rowBytes = faceSize * 4;
+		IntStream.range(0, 6).parallel().forEach(face -> {
+			OGLTexImageByte target = new OGLTexImageByte(faceSize, faceSize, 1, 4);
+			ByteBuffer data = target.getDataBuffer();
+			int left = x + cells[face][0] * faceSize, top = y + cells[face][1] * faceSize;
+			for (int row = 0; row < faceSize; row++) {
+				ByteBuffer line = source.duplicate();
+				int start = ((top + row) * image.getWidth() + left) * 4;
+				line.position(start).limit(start + rowBytes);
+				data.position(row * rowBytes);
+				data.put(line);
+			}
+			data.clear();
+			faces[face] = target;
+		});
+		return faces;
+	}
+
+	/**
+	 * Cut faces of horizontal cross filling the whole image
+	 *
+	 * @param image
+	 *            RGBA image with aspect ratio 4:3
+	 * @return six RGBA faces
+	 */
+	public static OGLTexImageByte[] fromCross(OGLTexImageByte image) {
+		return fromCross(image, 0, 0, Math.min(image.getWidth() / 4, image.getHeight() / 3));
+	}
+
+	/**
+	 * Direction of face coordinates sc, tc in [-1, 1] as defined by the
+	 * OpenGL specification
+	 */
+	private static void direction(int face, float s, float t, float[] result) {
+		switch (face) {
+		case 0: result[0] = 1; result[1] = -t; result[2] = -s; break;
+		case 1: result[0] = -1; result[1] = -t; result[2] = s; break;
+		case 2: result[0] = s; result[1] = 1; result[2] = t; break;
+		case 3: result[0] = s; result[1] = -1; result[2] = -t; break;
+		case 4: result[0] = s; result[1] = -t; result[2] = 1; break;
+		default: result[0] = -s; result[1] = -t; result[2] = -1; break;
+		}
+	}
+
+	/**
+	 * Bilinear sample, repeated horizontally and clamped vertically
+	 */
+	private static void sample(ByteBuffer source, int width, int height, float x, float y, float[] result) {
+		int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+		float fx = x - x0, fy = y - y0;
+		int y1 = Math.min(y0 + 1, height - 1);
+		y0 = Math.max(Math.min(y0, height - 1), 0);
+		y1 = Math.max(y1, 0);
+		int x1 = Math.floorMod(x0 + 1, width);
+		x0 = Math.floorMod(x0, width);
+		int a = (y0 * width + x0) * 4, b = (y0 * width + x1) * 4;
+		int c = (y1 * width + x0) * 4, d = (y1 * width + x1) * 4;
+		for (int i = 0; i < 4; i++) {
+			float top = (source.get(a + i) & 0xff) * (1 - fx) + (source.get(b + i) & 0xff) * fx;
+			float bottom = (source.get(c + i) & 0xff) * (1 - fx) + (source.get(d + i) & 0xff) * fx;
+			result[i] = top * (1 - fy) + bottom * fy;
+		}
+	}
+}
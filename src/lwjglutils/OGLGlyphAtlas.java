@@ -0,0 +1,498 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Glyphs of one font rasterized by Java2D once and packed into rows of a
+ * single channel texture. Printable ASCII characters are rasterized in
+ * parallel by the constructor, other characters when they are first
+ * requested; a full atlas replaces new characters by '?'.
+ * <p>
+ * The texture stores either coverage of glyphs of the font size or, for atlases
+ * created by createDistanceField, signed distance to the outline: 0.5 on the
+ * outline, 0 and 1 spread texels outside and inside. Distance fields are
+ * computed from outlines rendered at SUPERSAMPLING times the font size and
+ * stay sharp when scaled, so one atlas serves all text sizes.
+ * <p>
+ * Glyph rectangles are in pixels of the font size relative to the pen
+ * position on the baseline, y grows downwards as in java.awt.
+ */
+public class OGLGlyphAtlas implements AutoCloseable {
+
+	/**
+	 * Placement of one character
+	 */
+	public static class Glyph {
+		final float advance;
+		final int x, y, width, height;
+		final float u0, v0, u1, v1;
+
+		Glyph(float advance, int x, int y, int width, int height, float u0, float v0, float u1, float v1) {
+			this.advance = advance;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.u0 = u0;
+			this.v0 = v0;
+			this.u1 = u1;
+			this.v1 = v1;
+		}
+
+		/**
+		 * @return horizontal move of the pen after the glyph in pixels
+		 */
+		public float getAdvance() {
+			return advance;
+		}
+
+		/**
+		 * @return rectangle x, y, width, height in pixels relative to the pen
+		 */
+		public int[] getBounds() {
+			return new int[] { x, y, width, height };
+		}
+
+		/**
+		 * @return texture coordinates u0, v0, u1, v1 of the rectangle
+		 */
+		public float[] getTexCoords() {
+			return new float[] { u0, v0, u1, v1 };
+		}
+	}
+
+	/**
+	 * Rasterized glyph before packing, computed by worker threads
+	 */
+	private static class GlyphImage {
+		final char c;
+		final float advance;
+		final int x, y, width, height;
+		final byte[] pixels;
+
+		GlyphImage(char c, float advance, int x, int y, int width, int height, byte[] pixels) {
+			this.c = c;
+			this.advance = advance;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+	}
+
+	public static final int SUPERSAMPLING = 4;
+	private static final int PADDING = 1;
+	private static final int MAGIC = 0x4f474641; // OGFA
+	private static final float FAR = 1e20f;
+
+	private final Font font;
+	private final FontRenderContext context = new FontRenderContext(null, true, true);
+	private final int size, spread;
+	private final int textureID;
+	private final float lineHeight;
+	private final Map<Character, Glyph> glyphs = new HashMap<>();
+	// copy of the texture for saving
+	private final byte[] pixels;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLGlyphAtlas");
+	// row packing
+	private int penX = 0, penY = 0, rowHeight = 0;
+
+	/**
+	 * @param font
+	 *            font including its size
+	 */
+	public OGLGlyphAtlas(Font font) {
+		this(font, 512);
+	}
+
+	/**
+	 * @param font
+	 *            font including its size
+	 * @param size
+	 *            width and height of the atlas texture
+	 */
+	public OGLGlyphAtlas(Font font, int size) {
+		this(font, size, 0);
+		addAll();
+	}
+
+	private OGLGlyphAtlas(Font font, int size, int spread) {
+		this.font = font;
+		this.size = size;
+		this.spread = spread;
+		this.pixels = new byte[size * size];
+		LineMetrics metrics = font.getLineMetrics("Ag", context);
+		lineHeight = metrics.getAscent() + metrics.getDescent() + metrics.getLeading();
+
+		textureID = glGenTextures();
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		state.bindTexture(GL_TEXTURE_2D, textureID);
+		// zero coverage or far outside of the glyphs
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_R8, size, size, 0, GL_RED, GL_UNSIGNED_BYTE,
+				BufferUtils.createByteBuffer(size * size));
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		handle.add(OGLResourceTracker.TEXTURE, textureID, (long) size * size);
+	}
+
+	/**
+	 * Create atlas of signed distance fields, loaded from the cache file if it
+	 * was saved for the same font, otherwise computed and saved
+	 *
+	 * @param font
+	 *            font, its size is the size of glyphs in the atlas, e.g. 32
+	 * @param spread
+	 *            distance in texels of the font size covered by the field,
+	 *            limits outlines and shadows drawn around the glyphs
+	 * @param cacheFileName
+	 *            path of the cache file or null
+	 * @return atlas of size 512
+	 */
+	public static OGLGlyphAtlas createDistanceField(Font font, int spread, String cacheFileName) {
+		if (spread < 1)
+			throw new IllegalArgumentException("Spread must be positive.");
+		OGLGlyphAtlas atlas = new OGLGlyphAtlas(font, 512, spread);
+		if (cacheFileName != null && atlas.load(Paths.get(cacheFileName)))
+			return atlas;
+		atlas.addAll();
+		if (cacheFileName != null)
+			atlas.save(Paths.get(cacheFileName));
+		return atlas;
+	}
+
+	/**
+	 * Rasterize printable ASCII in parallel and pack it
+	 */
+	private void addAll() {
+		GlyphImage[] images = IntStream.range(32, 127).parallel()
+				.mapToObj(c -> render((char) c))
+				.toArray(GlyphImage[]::new);
+		for (GlyphImage image : images)
+			glyphs.put(image.c, place(image));
+	}
+
+	/**
+	 * @param c
+	 *            character
+	 * @return glyph of the character, rasterized and uploaded if requested
+	 *         first time
+	 */
+	public Glyph getGlyph(char c) {
+		Glyph glyph = glyphs.get(c);
+		if (glyph == null) {
+			glyph = place(render(c));
+			if (glyph == null)
+				glyph = c == '?' ? new Glyph(0, 0, 0, 0, 0, 0, 0, 0, 0) : getGlyph('?');
+			glyphs.put(c, glyph);
+		}
+		return glyph;
+	}
+
+	private GlyphImage render(char c) {
+		if (spread > 0)
+			return renderDistanceField(c);
+		GlyphVector vector = font.createGlyphVector(context, new char[] { c });
+		float advance = vector.getGlyphMetrics(0).getAdvanceX();
+		Rectangle bounds = vector.getPixelBounds(context, 0, 0);
+		if (bounds.isEmpty())
+			return new GlyphImage(c, advance, 0, 0, 0, 0, null);
+
+		int width = bounds.width + 2 * PADDING, height = bounds.height + 2 * PADDING;
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		g.drawGlyphVector(vector, PADDING - bounds.x, PADDING - bounds.y);
+		g.dispose();
+		return new GlyphImage(c, advance, bounds.x - PADDING, bounds.y - PADDING, width, height,
+				((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+	}
+
+	private GlyphImage renderDistanceField(char c) {
+		Font large = font.deriveFont(font.getSize2D() * SUPERSAMPLING);
+		GlyphVector vector = large.createGlyphVector(context, new char[] { c });
+		float advance = vector.getGlyphMetrics(0).getAdvanceX() / SUPERSAMPLING;
+		Rectangle bounds = vector.getPixelBounds(context, 0, 0);
+		if (bounds.isEmpty())
+			return new GlyphImage(c, advance, 0, 0, 0, 0, null);
+
+		// rectangle in texels of the font size enlarged by the spread
+		int x0 = Math.floorDiv(bounds.x, SUPERSAMPLING) - spread;
+		int y0 = Math.floorDiv(bounds.y, SUPERSAMPLING) - spread;
+		int x1 = -Math.floorDiv(-(bounds.x + bounds.width), SUPERSAMPLING) + spread;
+		int y1 = -Math.floorDiv(-(bounds.y + bounds.height), SUPERSAMPLING) + spread;
+		int width = x1 - x0, height = y1 - y0;
+		int w = width * SUPERSAMPLING, h = height * SUPERSAMPLING;
+
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		g.drawGlyphVector(vector, -x0 * SUPERSAMPLING, -y0 * SUPERSAMPLING);
+		g.dispose();
+		byte[] outline = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		float[] outside = distanceTransform(outline, w, h, true);
+		float[] inside = distanceTransform(outline, w, h, false);
+
+		// average signed distance of the samples of each texel
+		byte[] field = new byte[width * height];
+		float scale = 0.5f / (spread * SUPERSAMPLING);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int j = 0; j < SUPERSAMPLING; j++) {
+					for (int i = 0; i < SUPERSAMPLING; i++) {
+						int s = (y * SUPERSAMPLING + j) * w + x * SUPERSAMPLING + i;
+						// the outline lies half a sample from the sample centers
+						sum += outside[s] > 0 ? (float) Math.sqrt(outside[s]) - 0.5f
+								: 0.5f - (float) Math.sqrt(inside[s]);
+					}
+				}
+				float value = 0.5f - sum / (SUPERSAMPLING * SUPERSAMPLING) * scale;
+				field[y * width + x] = (byte) Math.round(Math.max(0, Math.min(1, value)) * 255);
+			}
+		}
+		return new GlyphImage(c, advance, x0, y0, width, height, field);
+	}
+
+	/**
+	 * Exact Euclidean distance transform by Felzenszwalb and Huttenlocher
+	 *
+	 * @param toInside
+	 *            distance to the nearest sample inside (value at least 128)
+	 *            if true, to the nearest sample outside otherwise
+	 * @return squared distances in samples
+	 */
+	private static float[] distanceTransform(byte[] samples, int w, int h, boolean toInside) {
+		float[] f = new float[w * h];
+		for (int i = 0; i < f.length; i++)
+			f[i] = ((samples[i] & 0xff) >= 128) == toInside ? 0 : FAR;
+		int n = Math.max(w, h);
+		float[] line = new float[n], result = new float[n], z = new float[n + 1];
+		int[] v = new int[n];
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++)
+				line[y] = f[y * w + x];
+			transform(line, h, result, v, z);
+			for (int y = 0; y < h; y++)
+				f[y * w + x] = result[y];
+		}
+		for (int y = 0; y < h; y++) {
+			System.arraycopy(f, y * w, line, 0, w);
+			transform(line, w, result, v, z);
+			System.arraycopy(result, 0, f, y * w, w);
+		}
+		return f;
+	}
+
+	/**
+	 * One-dimensional pass, lower envelope of parabolas rooted at samples
+	 */
+	private static void transform(float[] f, int n, float[] d, int[] v, float[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = -FAR;
+		z[1] = FAR;
+		for (int q = 1; q < n; q++) {
+			float s;
+			while ((s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2 * q - 2 * v[k])) <= z[k])
+				k--;
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = FAR;
+		}
+		k = 0;
+		for (int q = 0; q < n; q++) {
+			while (z[k + 1] < q)
+				k++;
+			d[q] = (q - v[k]) * (q - v[k]) + f[v[k]];
+		}
+	}
+
+	/**
+	 * Pack and upload glyph
+	 *
+	 * @return glyph or null if the atlas is full
+	 */
+	private Glyph place(GlyphImage image) {
+		if (image.width == 0)
+			return new Glyph(image.advance, 0, 0, 0, 0, 0, 0, 0, 0);
+		if (penX + image.width > size) {
+			penX = 0;
+			penY += rowHeight;
+			rowHeight = 0;
+		}
+		if (image.width > size || penY + image.height > size) {
+			System.err.println("Glyph atlas of " + font.getName() + " is full, '" + image.c + "' not added.");
+			return null;
+		}
+		for (int row = 0; row < image.height; row++)
+			System.arraycopy(image.pixels, row * image.width, pixels, (penY + row) * size + penX, image.width);
+		ByteBuffer data = BufferUtils.createByteBuffer(image.pixels.length);
+		data.put(image.pixels).flip();
+
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		state.bindTexture(GL_TEXTURE_2D, textureID);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, penX, penY, image.width, image.height, GL_RED, GL_UNSIGNED_BYTE, data);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+
+		Glyph glyph = new Glyph(image.advance, image.x, image.y, image.width, image.height,
+				(float) penX / size, (float) penY / size,
+				(float) (penX + image.width) / size, (float) (penY + image.height) / size);
+		// one empty texel between glyphs keeps linear filtering inside
+		penX += image.width + 1;
+		rowHeight = Math.max(rowHeight, image.height + 1);
+		return glyph;
+	}
+
+	/**
+	 * @return true if the file was saved for this font and the atlas is
+	 *         loaded
+	 */
+	private boolean load(Path path) {
+		if (!Files.isRegularFile(path))
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || !in.readUTF().equals(font.getFontName()) || in.readInt() != font.getStyle()
+					|| in.readFloat() != font.getSize2D() || in.readInt() != spread || in.readInt() != size) {
+				System.out.println("Glyph cache " + path + " was saved for another font, recomputing.");
+				return false;
+			}
+			int x = in.readInt(), y = in.readInt(), row = in.readInt();
+			int count = in.readInt();
+			Map<Character, Glyph> read = new HashMap<>();
+			for (int i = 0; i < count; i++)
+				read.put(in.readChar(), new Glyph(in.readFloat(), in.readInt(), in.readInt(), in.readInt(),
+						in.readInt(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+			in.readFully(pixels);
+			glyphs.putAll(read);
+			penX = x;
+			penY = y;
+			rowHeight = row;
+		} catch (IOException e) {
+			System.err.println("Glyph cache " + path + " not read: " + e.getMessage());
+			return false;
+		}
+		ByteBuffer data = BufferUtils.createByteBuffer(pixels.length);
+		data.put(pixels).flip();
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		state.bindTexture(GL_TEXTURE_2D, textureID);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, size, size, GL_RED, GL_UNSIGNED_BYTE, data);
+		return true;
+	}
+
+	private void save(Path path) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(font.getFontName());
+			out.writeInt(font.getStyle());
+			out.writeFloat(font.getSize2D());
+			out.writeInt(spread);
+			out.writeInt(size);
+			out.writeInt(penX);
+			out.writeInt(penY);
+			out.writeInt(rowHeight);
+			out.writeInt(glyphs.size());
+			for (Map.Entry<Character, Glyph> entry : glyphs.entrySet()) {
+				Glyph glyph = entry.getValue();
+				out.writeChar(entry.getKey());
+				out.writeFloat(glyph.advance);
+				out.writeInt(glyph.x);
+				out.writeInt(glyph.y);
+				out.writeInt(glyph.width);
+				out.writeInt(glyph.height);
+				out.writeFloat(glyph.u0);
+				out.writeFloat(glyph.v0);
+				out.writeFloat(glyph.u1);
+				out.writeFloat(glyph.v1);
+			}
+			out.write(pixels);
+		} catch (IOException e) {
+			System.err.println("Glyph cache " + path + " not saved: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return distance of baselines in pixels
+	 */
+	public float getLineHeight() {
+		return lineHeight;
+	}
+
+	/**
+	 * @return true if the texture stores distance fields
+	 */
+	public boolean isDistanceField() {
+		return spread > 0;
+	}
+
+	/**
+	 * @return spread of distance fields in texels, 0 for coverage
+	 */
+	public int getSpread() {
+		return spread;
+	}
+
+	public Font getFont() {
+		return font;
+	}
+
+	public int getTextureID() {
+		return textureID;
+	}
+
+	public void bind(int shaderProgram, String name, int slot) {
+		OGLState state = OGLState.get();
+		state.activeTexture(GL_TEXTURE0 + slot);
+		state.bindTexture(GL_TEXTURE_2D, textureID);
+		glUniform1i(glGetUniformLocation(shaderProgram, name), slot);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLGlyphAtlas %s %d%s, %d glyphs, %.1f%% used", font.getName(),
+				font.getSize(), spread > 0 ? " distance field" : "", glyphs.size(),
+				100.0 * (penY + rowHeight) / size);
+	}
+
+	/**
+	 * Delete the texture, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
+}
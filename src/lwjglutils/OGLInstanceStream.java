@@ -0,0 +1,152 @@
+package lwjglutils;
+
+import transforms.Col;
+import transforms.Mat4;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-instance data of an instanced mesh, a model matrix and a color for each
+ * instance. The data are filled on the CPU side, uploaded once per frame into
+ * a per-instance buffer of the mesh and drawn by a single instanced call.
+ * <p>
+ * GLSL declaration of the attributes:
+ *
+ * <pre>
+ * in mat4 inInstanceModel;
+ * in vec4 inInstanceColor;
+ * </pre>
+ */
+public class OGLInstanceStream {
+	public static final String MODEL_ATTRIB = "inInstanceModel";
+	public static final String COLOR_ATTRIB = "inInstanceColor";
+	public static final int FLOATS_PER_INSTANCE = 16 + 4;
+
+	private final OGLBuffers buffers;
+	private final int bufferIndex;
+	private float[] data;
+	private int count = 0;
+
+	/**
+	 * Create stream and add its per-instance buffer to the mesh
+	 *
+	 * @param buffers
+	 *            mesh drawn instanced
+	 * @param maxInstanceCount
+	 *            number of instances preallocated
+	 */
+	public OGLInstanceStream(OGLBuffers buffers, int maxInstanceCount) {
+		this.buffers = buffers;
+		this.data = new float[maxInstanceCount * FLOATS_PER_INSTANCE];
+		OGLBuffers.Attrib[] attributes = {
+				new OGLBuffers.Attrib(MODEL_ATTRIB, 16, 0, 1),
+				new OGLBuffers.Attrib(COLOR_ATTRIB, 4, 16, 1) };
+		this.bufferIndex = buffers.addInstanceBuffer(maxInstanceCount, attributes);
+	}
+
+	/**
+	 * Remove all instances
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Append instance
+	 *
+	 * @param model
+	 *            model matrix of the instance
+	 * @param color
+	 *            color of the instance
+	 * @return index of the instance
+	 */
+	public int add(Mat4 model, Col color) {
+		int instance = add();
+		set(instance, model, color);
+		return instance;
+	}
+
+	/**
+	 * Append instance with undefined content, to be filled by set
+	 *
+	 * @return index of the instance
+	 */
+	public int add() {
+		if ((count + 1) * FLOATS_PER_INSTANCE > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, (count + 1) * FLOATS_PER_INSTANCE));
+		return count++;
+	}
+
+	public void set(int instance, Mat4 model, Col color) {
+		int offset = instance * FLOATS_PER_INSTANCE;
+		// column-major storage of the transposed (row-vector) matrix is its row-wise storage
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				data[offset + i * 4 + j] = (float) model.get(i, j);
+		setColor(instance, (float) color.getR(), (float) color.getG(), (float) color.getB(), (float) color.getA());
+	}
+
+	/**
+	 * Set instance from model matrix in row-wise order, see Mat4.floatArray,
+	 * with added translation, avoids creating a matrix for each instance
+	 *
+	 * @param instance
+	 *            index of the instance
+	 * @param model
+	 *            16 floats of the model matrix
+	 * @param x
+	 *            translation added after the model matrix
+	 * @param y
+	 *            translation added after the model matrix
+	 * @param z
+	 *            translation added after the model matrix
+	 */
+	public void set(int instance, float[] model, float x, float y, float z) {
+		int offset = instance * FLOATS_PER_INSTANCE;
+		System.arraycopy(model, 0, data, offset, 16);
+		data[offset + 12] += x;
+		data[offset + 13] += y;
+		data[offset + 14] += z;
+	}
+
+	public void setColor(int instance, float r, float g, float b, float a) {
+		int offset = instance * FLOATS_PER_INSTANCE + 16;
+		data[offset] = r;
+		data[offset + 1] = g;
+		data[offset + 2] = b;
+		data[offset + 3] = a;
+	}
+
+	/**
+	 * Upload all instances into the per-instance buffer
+	 */
+	public void upload() {
+		buffers.setInstanceData(bufferIndex, data, count);
+	}
+
+	/**
+	 * Draw all uploaded instances by a single call
+	 *
+	 * @param topology
+	 *            primitive type
+	 * @param shaderProgram
+	 *            id of shader program declaring the instance attributes
+	 */
+	public void draw(int topology, int shaderProgram) {
+		buffers.drawInstanced(topology, shaderProgram, count);
+	}
+
+	public OGLBuffers getBuffers() {
+		return buffers;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLInstanceStream: instances: %d, buffer: %d", count, bufferIndex);
+	}
+}
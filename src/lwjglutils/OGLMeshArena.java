@@ -0,0 +1,527 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Many meshes suballocated in one shared vertex buffer and one shared index
+ * buffer. Meshes are allocated from free lists of vertex and index ranges,
+ * freed ranges are merged with their neighbours; when no free range is large
+ * enough the live meshes are copied packed into new buffers on the GPU.
+ * <p>
+ * Meshes are drawn in batches: draw commands are collected into a CPU side
+ * command buffer and issued by a single glMultiDrawElementsIndirect call, or
+ * by glMultiDrawElementsBaseVertex when indirect drawing or base instance is
+ * not available.
+ * Indices of each mesh are relative to its first vertex so that moving a mesh
+ * does not change its indices.
+ * <p>
+ * Optional per-draw attributes (e.g. model matrix) are fetched as instanced
+ * attributes with divisor 1; each command selects its data by the base
+ * instance, in the fallback path the attribute pointers are offset before
+ * each draw instead.
+ */
+public class OGLMeshArena implements AutoCloseable {
+	public static final int COMMAND_SIZE = 5; // count, instanceCount, firstIndex, baseVertex, baseInstance
+
+	/**
+	 * Handle of a mesh allocated in the arena, offsets change by compaction
+	 */
+	public static class Mesh {
+		int firstVertex, vertexCount;
+		int firstIndex, indexCount;
+		boolean removed = false;
+
+		public int getFirstVertex() {
+			return firstVertex;
+		}
+
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		public int getFirstIndex() {
+			return firstIndex;
+		}
+
+		public int getIndexCount() {
+			return indexCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "Mesh vertices: %d+%d, indices: %d+%d",
+					firstVertex, vertexCount, firstIndex, indexCount);
+		}
+	}
+
+	/**
+	 * First-fit allocator of ranges, free ranges are kept sorted by their start
+	 */
+	private static class FreeList {
+		final TreeMap<Integer, Integer> free = new TreeMap<>();
+		int capacity;
+
+		FreeList(int capacity) {
+			this.capacity = capacity;
+			if (capacity > 0)
+				free.put(0, capacity);
+		}
+
+		int allocate(int size) {
+			for (Map.Entry<Integer, Integer> range : free.entrySet()) {
+				if (range.getValue() >= size) {
+					int start = range.getKey();
+					free.remove(start);
+					if (range.getValue() > size)
+						free.put(start + size, range.getValue() - size);
+					return start;
+				}
+			}
+			return -1;
+		}
+
+		void release(int start, int size) {
+			if (size == 0)
+				return;
+			Map.Entry<Integer, Integer> next = free.ceilingEntry(start);
+			if (next != null && next.getKey() == start + size) {
+				free.remove(next.getKey());
+				size += next.getValue();
+			}
+			Map.Entry<Integer, Integer> previous = free.floorEntry(start);
+			if (previous != null && previous.getKey() + previous.getValue() == start) {
+				start = previous.getKey();
+				size += previous.getValue();
+			}
+			free.put(start, size);
+		}
+
+		int getFree() {
+			int sum = 0;
+			for (int size : free.values())
+				sum += size;
+			return sum;
+		}
+	}
+
+	private final OGLBuffers.Attrib[] attributes;
+	private final int floatsPerVertex;
+	private final List<Integer> attribArrays = new ArrayList<>();
+	private final List<Mesh> meshes = new ArrayList<>();
+	private final boolean indirect;
+
+	private int vertexBuffer, indexBuffer;
+	private FreeList vertices, indices;
+
+	private int[] commands = new int[64 * COMMAND_SIZE];
+	private int commandCount = 0;
+	private IntBuffer commandBuffer;
+	private int indirectBuffer;
+	private IntBuffer counts, baseVertices;
+	private PointerBuffer offsets;
+
+	private OGLBuffers.Attrib[] drawAttributes;
+	private int floatsPerDraw;
+	private float[] drawData;
+	private FloatBuffer drawStaging;
+	private int drawBuffer, drawCapacity;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLMeshArena");
+
+	/**
+	 * Create arena
+	 *
+	 * @param attributes
+	 *            interleaved vertex format shared by all meshes
+	 * @param vertexCapacity
+	 *            number of vertices preallocated
+	 * @param indexCapacity
+	 *            number of indices preallocated
+	 */
+	public OGLMeshArena(OGLBuffers.Attrib[] attributes, int vertexCapacity, int indexCapacity) {
+		this.attributes = attributes;
+		int floats = 0;
+		for (OGLBuffers.Attrib attrib : attributes)
+			floats += attrib.dimension;
+		this.floatsPerVertex = floats;
+		GLCapabilities caps = GL.getCapabilities();
+		// commands select their per-draw data by base instance, zero is required without it
+		this.indirect = (caps.OpenGL43 || caps.GL_ARB_multi_draw_indirect)
+				&& (caps.OpenGL42 || caps.GL_ARB_base_instance);
+
+		vertices = new FreeList(vertexCapacity);
+		indices = new FreeList(indexCapacity);
+		vertexBuffer = createBuffer(GL_ARRAY_BUFFER, (long) vertexCapacity * floatsPerVertex * 4);
+		indexBuffer = createBuffer(GL_ELEMENT_ARRAY_BUFFER, (long) indexCapacity * 4);
+	}
+
+	/**
+	 * Set format of per-draw data, the attributes are declared in GLSL as
+	 * per-vertex inputs and are bound with divisor 1
+	 *
+	 * @param attributes
+	 *            per-draw attributes
+	 */
+	public void setDrawAttributes(OGLBuffers.Attrib[] attributes) {
+		drawAttributes = attributes;
+		floatsPerDraw = 0;
+		for (OGLBuffers.Attrib attrib : attributes) {
+			floatsPerDraw += attrib.dimension;
+		}
+		drawData = new float[commands.length / COMMAND_SIZE * floatsPerDraw];
+	}
+
+	/**
+	 * Allocate mesh in the arena and upload its data
+	 *
+	 * @param vertexData
+	 *            interleaved vertices in the format of the arena
+	 * @param indexData
+	 *            indices relative to the first vertex of the mesh
+	 * @return handle of the mesh
+	 */
+	public Mesh add(float[] vertexData, int[] indexData) {
+		if (vertexData.length % floatsPerVertex != 0)
+			throw new RuntimeException(
+					"The total number of floats is incongruent with the number of floats per vertex.");
+		Mesh mesh = new Mesh();
+		mesh.vertexCount = vertexData.length / floatsPerVertex;
+		mesh.indexCount = indexData.length;
+
+		mesh.firstVertex = vertices.allocate(mesh.vertexCount);
+		mesh.firstIndex = indices.allocate(mesh.indexCount);
+		if (mesh.firstVertex < 0 || mesh.firstIndex < 0) {
+			if (mesh.firstVertex >= 0)
+				vertices.release(mesh.firstVertex, mesh.vertexCount);
+			if (mesh.firstIndex >= 0)
+				indices.release(mesh.firstIndex, mesh.indexCount);
+			// compact if the free space suffices, grow otherwise
+			int vertexCapacity = vertices.capacity;
+			if (vertices.getFree() < mesh.vertexCount)
+				vertexCapacity = Math.max(vertexCapacity * 2, vertexCapacity + mesh.vertexCount);
+			int indexCapacity = indices.capacity;
+			if (indices.getFree() < mesh.indexCount)
+				indexCapacity = Math.max(indexCapacity * 2, indexCapacity + mesh.indexCount);
+			relocate(vertexCapacity, indexCapacity);
+			mesh.firstVertex = vertices.allocate(mesh.vertexCount);
+			mesh.firstIndex = indices.allocate(mesh.indexCount);
+		}
+
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+		glBufferSubData(GL_ARRAY_BUFFER, (long) mesh.firstVertex * floatsPerVertex * 4, vertexData);
+		state.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, (long) mesh.firstIndex * 4, indexData);
+		meshes.add(mesh);
+		return mesh;
+	}
+
+	/**
+	 * Free ranges of the mesh, the handle must not be drawn any more
+	 *
+	 * @param mesh
+	 *            handle of the mesh
+	 */
+	public void remove(Mesh mesh) {
+		if (mesh.removed)
+			return;
+		mesh.removed = true;
+		meshes.remove(mesh);
+		vertices.release(mesh.firstVertex, mesh.vertexCount);
+		indices.release(mesh.firstIndex, mesh.indexCount);
+	}
+
+	/**
+	 * Move all meshes to the beginning of the buffers so that the free space
+	 * forms a single range
+	 */
+	public void compact() {
+		relocate(vertices.capacity, indices.capacity);
+	}
+
+	private void relocate(int vertexCapacity, int indexCapacity) {
+		OGLState state = OGLState.get();
+		int stride = floatsPerVertex * 4;
+		int newVertexBuffer = createBuffer(GL_ARRAY_BUFFER, (long) vertexCapacity * stride);
+		int newIndexBuffer = createBuffer(GL_ARRAY_BUFFER, (long) indexCapacity * 4);
+
+		int vertex = 0, index = 0;
+		for (Mesh mesh : meshes) {
+			state.bindBuffer(GL_COPY_READ_BUFFER, vertexBuffer);
+			state.bindBuffer(GL_COPY_WRITE_BUFFER, newVertexBuffer);
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER,
+					(long) mesh.firstVertex * stride, (long) vertex * stride, (long) mesh.vertexCount * stride);
+			state.bindBuffer(GL_COPY_READ_BUFFER, indexBuffer);
+			state.bindBuffer(GL_COPY_WRITE_BUFFER, newIndexBuffer);
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER,
+					(long) mesh.firstIndex * 4, (long) index * 4, (long) mesh.indexCount * 4);
+			mesh.firstVertex = vertex;
+			mesh.firstIndex = index;
+			vertex += mesh.vertexCount;
+			index += mesh.indexCount;
+		}
+		handle.delete(OGLResourceTracker.BUFFER, vertexBuffer);
+		handle.delete(OGLResourceTracker.BUFFER, indexBuffer);
+		vertexBuffer = newVertexBuffer;
+		indexBuffer = newIndexBuffer;
+
+		vertices = new FreeList(vertexCapacity);
+		indices = new FreeList(indexCapacity);
+		vertices.allocate(vertex);
+		indices.allocate(index);
+	}
+
+	private int createBuffer(int target, long size) {
+		int buffer = glGenBuffers();
+		OGLState.get().bindBuffer(target, buffer);
+		glBufferData(target, Math.max(size, 4), GL_STATIC_DRAW);
+		handle.add(OGLResourceTracker.BUFFER, buffer, size);
+		return buffer;
+	}
+
+	/**
+	 * Remove all draw commands
+	 */
+	public void clearCommands() {
+		commandCount = 0;
+	}
+
+	/**
+	 * Append draw command
+	 *
+	 * @param mesh
+	 *            handle of the mesh
+	 */
+	public void addCommand(Mesh mesh) {
+		addCommand(mesh, null);
+	}
+
+	/**
+	 * Append draw command with per-draw data
+	 *
+	 * @param mesh
+	 *            handle of the mesh
+	 * @param data
+	 *            per-draw attributes in the format set by setDrawAttributes
+	 */
+	public void addCommand(Mesh mesh, float[] data) {
+		if (mesh.removed)
+			throw new RuntimeException("Drawing mesh removed from the arena.");
+		if (data != null && drawAttributes == null)
+			throw new RuntimeException("Per-draw attributes are not set.");
+		if ((commandCount + 1) * COMMAND_SIZE > commands.length) {
+			commands = Arrays.copyOf(commands, commands.length * 2);
+			if (drawData != null)
+				drawData = Arrays.copyOf(drawData, drawData.length * 2);
+		}
+		int offset = commandCount * COMMAND_SIZE;
+		commands[offset] = mesh.indexCount;
+		commands[offset + 1] = 1;
+		commands[offset + 2] = mesh.firstIndex;
+		commands[offset + 3] = mesh.firstVertex;
+		commands[offset + 4] = commandCount;
+		if (data != null)
+			System.arraycopy(data, 0, drawData, commandCount * floatsPerDraw, floatsPerDraw);
+		commandCount++;
+	}
+
+	/**
+	 * Draw all commands, the number of GL calls does not depend on the number
+	 * of commands
+	 *
+	 * @param topology
+	 *            primitive type
+	 * @param shaderProgram
+	 *            id of shader program
+	 */
+	public void drawCommands(int topology, int shaderProgram) {
+		if (commandCount == 0)
+			return;
+		bind(shaderProgram);
+		if (indirect) {
+			drawIndirect(topology);
+		} else if (drawAttributes != null) {
+			// no base instance, per-draw data are selected by offsetting the attribute pointers
+			for (int i = 0; i < commandCount; i++) {
+				bindDrawAttributes(shaderProgram, i);
+				int offset = i * COMMAND_SIZE;
+				glDrawElementsBaseVertex(topology, commands[offset], GL_UNSIGNED_INT,
+						(long) commands[offset + 2] * 4, commands[offset + 3]);
+			}
+		} else {
+			drawMulti(topology);
+		}
+		unbind();
+	}
+
+	private void drawIndirect(int topology) {
+		if (commandBuffer == null || commandBuffer.capacity() < commands.length) {
+			commandBuffer = BufferUtils.createIntBuffer(commands.length);
+			if (indirectBuffer == 0)
+				indirectBuffer = glGenBuffers();
+			handle.add(OGLResourceTracker.BUFFER, indirectBuffer, (long) commandBuffer.capacity() * 4);
+		}
+		commandBuffer.clear();
+		commandBuffer.put(commands, 0, commandCount * COMMAND_SIZE).flip();
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+		glBufferData(GL_DRAW_INDIRECT_BUFFER, (long) commandBuffer.capacity() * 4, GL_STREAM_DRAW);
+		glBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, commandBuffer);
+		glMultiDrawElementsIndirect(topology, GL_UNSIGNED_INT, 0, commandCount, 0);
+	}
+
+	private void drawMulti(int topology) {
+		if (counts == null || counts.capacity() < commandCount) {
+			int capacity = commands.length / COMMAND_SIZE;
+			counts = BufferUtils.createIntBuffer(capacity);
+			baseVertices = BufferUtils.createIntBuffer(capacity);
+			offsets = BufferUtils.createPointerBuffer(capacity);
+		}
+		counts.clear();
+		baseVertices.clear();
+		offsets.clear();
+		for (int i = 0; i < commandCount; i++) {
+			int offset = i * COMMAND_SIZE;
+			counts.put(commands[offset]);
+			offsets.put((long) commands[offset + 2] * 4);
+			baseVertices.put(commands[offset + 3]);
+		}
+		counts.flip();
+		offsets.flip();
+		baseVertices.flip();
+		glMultiDrawElementsBaseVertex(topology, counts, GL_UNSIGNED_INT, offsets, baseVertices);
+	}
+
+	/**
+	 * Bind the shared buffers and per-draw data for drawing by the program
+	 *
+	 * @param shaderProgram
+	 *            id of shader program
+	 */
+	public void bind(int shaderProgram) {
+		OGLState state = OGLState.get();
+		unbind();
+		state.bindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+		pointAttributes(shaderProgram, attributes, floatsPerVertex * 4, 0, 0);
+		if (drawAttributes != null) {
+			uploadDrawData();
+			bindDrawAttributes(shaderProgram, 0);
+		}
+		state.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+	}
+
+	private void uploadDrawData() {
+		OGLState state = OGLState.get();
+		if (drawBuffer == 0)
+			drawBuffer = glGenBuffers();
+		if (drawStaging == null || drawCapacity < commandCount) {
+			drawCapacity = commands.length / COMMAND_SIZE;
+			drawStaging = BufferUtils.createFloatBuffer(drawCapacity * floatsPerDraw);
+			handle.add(OGLResourceTracker.BUFFER, drawBuffer, (long) drawCapacity * floatsPerDraw * 4);
+		}
+		drawStaging.clear();
+		drawStaging.put(drawData, 0, commandCount * floatsPerDraw).flip();
+		state.bindBuffer(GL_ARRAY_BUFFER, drawBuffer);
+		glBufferData(GL_ARRAY_BUFFER, (long) drawCapacity * floatsPerDraw * 4, GL_STREAM_DRAW);
+		glBufferSubData(GL_ARRAY_BUFFER, 0, drawStaging);
+	}
+
+	private void bindDrawAttributes(int shaderProgram, int draw) {
+		OGLState.get().bindBuffer(GL_ARRAY_BUFFER, drawBuffer);
+		pointAttributes(shaderProgram, drawAttributes, floatsPerDraw * 4, draw * floatsPerDraw * 4, 1);
+	}
+
+	private void pointAttributes(int shaderProgram, OGLBuffers.Attrib[] attributes, int stride, long base,
+			int divisor) {
+		int offset = 0;
+		for (OGLBuffers.Attrib attrib : attributes) {
+			int location = glGetAttribLocation(shaderProgram, attrib.name);
+			if (location >= 0) {
+				int start = attrib.offset < 0 ? offset : attrib.offset;
+				// matrices occupy one location per column
+				int rows = attrib.dimension > 4 ? (attrib.dimension == 9 ? 3 : 4) : attrib.dimension;
+				for (int c = 0; c < attrib.dimension / rows; c++) {
+					if (!attribArrays.contains(location + c)) {
+						attribArrays.add(location + c);
+						glEnableVertexAttribArray(location + c);
+					}
+					glVertexAttribPointer(location + c, rows, GL_FLOAT, attrib.normalize, stride,
+							base + start + 4 * c * rows);
+					glVertexAttribDivisor(location + c, attrib.divisor != 0 ? attrib.divisor : divisor);
+				}
+			}
+			offset += 4 * attrib.dimension;
+		}
+	}
+
+	public void unbind() {
+		for (Integer attrib : attribArrays) {
+			glDisableVertexAttribArray(attrib);
+			glVertexAttribDivisor(attrib, 0);
+		}
+		attribArrays.clear();
+	}
+
+	/**
+	 * Delete all buffers, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
+
+	public OGLBuffers.Attrib[] getAttributes() {
+		return attributes;
+	}
+
+	public int getMeshCount() {
+		return meshes.size();
+	}
+
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	public int getVertexCapacity() {
+		return vertices.capacity;
+	}
+
+	public int getIndexCapacity() {
+		return indices.capacity;
+	}
+
+	public int getFreeVertices() {
+		return vertices.getFree();
+	}
+
+	public int getFreeIndices() {
+		return indices.getFree();
+	}
+
+	public boolean isIndirect() {
+		return indirect;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLMeshArena: meshes: %d, vertices: %d/%d free, indices: %d/%d free, "
+				+ "commands: %d, %s", meshes.size(), vertices.getFree(), vertices.capacity,
+				indices.getFree(), indices.capacity, commandCount,
+				indirect ? "multi-draw indirect" : "multi-draw base vertex");
+	}
+}
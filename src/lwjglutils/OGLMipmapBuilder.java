@@ -0,0 +1,280 @@
+package lwjglutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Builder of mipmap chains on the CPU. Each level is filtered from the
+ * previous one by a separable filter, rows are processed in parallel by the
+ * common fork-join pool. Byte images are averaged in linear space when sRGB
+ * is enabled, alpha is always linear. Alpha coverage preservation scales
+ * alpha of each level so that the fraction of texels passing the alpha
+ * reference value stays as in the base level (alpha-tested foliage, fences).
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OGLMipmapBuilder builder = new OGLMipmapBuilder().setFilter(OGLMipmapBuilder.Filter.KAISER);
+ * builder.upload(texture, builder.build(image));
+ * </pre>
+ */
+public class OGLMipmapBuilder {
+	public enum Filter {
+		BOX, KAISER
+	}
+
+	// Kaiser windowed sinc, support in destination texels and window shape
+	private static final double KAISER_RADIUS = 1.5;
+	private static final double KAISER_ALPHA = 4.0;
+
+	private Filter filter = Filter.BOX;
+	private boolean sRGB = true;
+	private float alphaReference = -1;
+
+	public OGLMipmapBuilder setFilter(Filter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * @param sRGB
+	 *            true if color components of byte images are sRGB encoded
+	 * @return this builder
+	 */
+	public OGLMipmapBuilder setSRGB(boolean sRGB) {
+		this.sRGB = sRGB;
+		return this;
+	}
+
+	/**
+	 * @param alphaReference
+	 *            reference value of alpha test whose coverage is preserved,
+	 *            negative to disable
+	 * @return this builder
+	 */
+	public OGLMipmapBuilder setAlphaCoverage(float alphaReference) {
+		this.alphaReference = alphaReference;
+		return this;
+	}
+
+	/**
+	 * Build mipmap chain of byte image
+	 *
+	 * @param base
+	 *            level 0
+	 * @return all levels down to 1x1, level 0 is the base image
+	 */
+	public List<OGLTexImageByte> build(OGLTexImageByte base) {
+		int components = base.getFormat().getComponentCount();
+		boolean linearize = sRGB;
+		float[] level = new float[base.getDataBuffer().capacity()];
+		new OGLTexImageConverter().setSRGB(linearize).toFloat(base).getDataBuffer().get(level);
+
+		float coverage = alphaReference >= 0 && components == 4 ? coverage(level, 1, 4) : -1;
+		List<OGLTexImageByte> levels = new ArrayList<>();
+		levels.add(base);
+		int width = base.getWidth(), height = base.getHeight();
+		while (width > 1 || height > 1) {
+			int newWidth = Math.max(1, width / 2), newHeight = Math.max(1, height / 2);
+			level = downsample(level, width, height, newWidth, newHeight, components);
+			width = newWidth;
+			height = newHeight;
+
+			float scale = coverage >= 0 ? coverageScale(level, coverage) : 1;
+			OGLTexImageByte image = new OGLTexImageByte(width, height, base.getFormat());
+			ByteBuffer bytes = image.getDataBuffer();
+			final float[] source = level;
+			IntStream.range(0, height).parallel().forEach(y -> {
+				for (int i = y * newWidth * components; i < (y + 1) * newWidth * components; i++) {
+					int c = i % components;
+					float value = c == 3 ? source[i] * scale : source[i];
+					value = Math.min(Math.max(value, 0), 1);
+					bytes.put(i, OGLTexImageConverter.isColor(c, components) && linearize
+							? OGLTexImageConverter.linearToSrgb(value)
+							: (byte) Math.round(value * 255));
+				}
+			});
+			levels.add(image);
+		}
+		return levels;
+	}
+
+	/**
+	 * Build mipmap chain of float image, the values are assumed linear
+	 *
+	 * @param base
+	 *            level 0
+	 * @return all levels down to 1x1, level 0 is the base image
+	 */
+	public List<OGLTexImageFloat> build(OGLTexImageFloat base) {
+		int components = base.getFormat().getComponentCount();
+		float[] level = new float[base.getDataBuffer().capacity()];
+		base.getDataBuffer().get(level);
+		float coverage = alphaReference >= 0 && components == 4 ? coverage(level, 1, 4) : -1;
+		List<OGLTexImageFloat> levels = new ArrayList<>();
+		levels.add(base);
+		int width = base.getWidth(), height = base.getHeight();
+		while (width > 1 || height > 1) {
+			int newWidth = Math.max(1, width / 2), newHeight = Math.max(1, height / 2);
+			level = downsample(level, width, height, newWidth, newHeight, components);
+			width = newWidth;
+			height = newHeight;
+			float[] output = level;
+			if (coverage >= 0) {
+				float scale = coverageScale(level, coverage);
+				output = level.clone();
+				for (int i = 3; i < output.length; i += 4)
+					output[i] = Math.min(output[i] * scale, 1);
+			}
+			levels.add(new OGLTexImageFloat(width, height, 1, base.getFormat(), output));
+		}
+		return levels;
+	}
+
+	/**
+	 * Upload all levels into the texture and enable trilinear filtering
+	 *
+	 * @param texture
+	 *            texture of the size of level 0
+	 * @param levels
+	 *            mipmap chain, level 0 first
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void upload(OGLTexture2D texture,
+			List<OGLTexImageType> levels) {
+		for (int i = 0; i < levels.size(); i++)
+			texture.setTexImage(levels.get(i), i);
+		OGLState state = OGLState.get();
+		texture.bind();
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels.size() - 1);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+	}
+
+	private float[] downsample(float[] source, int width, int height, int newWidth, int newHeight,
+			int components) {
+		float[] tmp = new float[newWidth * height * components];
+		float[] target = new float[newWidth * newHeight * components];
+		Kernel horizontal = new Kernel(width, newWidth);
+		Kernel vertical = new Kernel(height, newHeight);
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int row = y * width * components;
+			for (int x = 0; x < newWidth; x++) {
+				int first = horizontal.first[x];
+				float[] weights = horizontal.weights[x];
+				for (int c = 0; c < components; c++) {
+					float sum = 0;
+					for (int k = 0; k < weights.length; k++) {
+						int sx = Math.min(Math.max(first + k, 0), width - 1);
+						sum += weights[k] * source[row + sx * components + c];
+					}
+					tmp[(y * newWidth + x) * components + c] = sum;
+				}
+			}
+		});
+		IntStream.range(0, newHeight).parallel().forEach(y -> {
+			int first = vertical.first[y];
+			float[] weights = vertical.weights[y];
+			for (int x = 0; x < newWidth; x++) {
+				for (int c = 0; c < components; c++) {
+					float sum = 0;
+					for (int k = 0; k < weights.length; k++) {
+						int sy = Math.min(Math.max(first + k, 0), height - 1);
+						sum += weights[k] * tmp[(sy * newWidth + x) * components + c];
+					}
+					target[(y * newWidth + x) * components + c] = sum;
+				}
+			}
+		});
+		return target;
+	}
+
+	/**
+	 * Normalized weights of source texels contributing to each destination
+	 * texel along one axis
+	 */
+	private class Kernel {
+		final int[] first;
+		final float[][] weights;
+
+		Kernel(int size, int newSize) {
+			first = new int[newSize];
+			weights = new float[newSize][];
+			double ratio = size / (double) newSize;
+			double support = filter == Filter.BOX ? ratio / 2 : KAISER_RADIUS * ratio;
+			for (int x = 0; x < newSize; x++) {
+				double center = (x + 0.5) * ratio;
+				int from = (int) Math.floor(center - support);
+				int to = (int) Math.ceil(center + support);
+				float[] w = new float[to - from];
+				double sum = 0;
+				for (int i = from; i < to; i++) {
+					double value;
+					if (filter == Filter.BOX) {
+						// overlap of texel [i, i+1] with the footprint
+						value = Math.max(0, Math.min(i + 1, center + support) - Math.max(i, center - support));
+					} else {
+						value = kaiser((i + 0.5 - center) / ratio);
+					}
+					w[i - from] = (float) value;
+					sum += value;
+				}
+				for (int k = 0; k < w.length; k++)
+					w[k] /= sum;
+				first[x] = from;
+				weights[x] = w;
+			}
+		}
+	}
+
+	private static double kaiser(double x) {
+		if (Math.abs(x) >= KAISER_RADIUS)
+			return 0;
+		double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+		double t = x / KAISER_RADIUS;
+		return sinc * bessel0(KAISER_ALPHA * Math.sqrt(1 - t * t)) / bessel0(KAISER_ALPHA);
+	}
+
+	private static double bessel0(double x) {
+		// series of modified Bessel function of the first kind, order 0
+		double sum = 1, term = 1;
+		for (int k = 1; k < 20; k++) {
+			term *= (x / (2 * k)) * (x / (2 * k));
+			sum += term;
+		}
+		return sum;
+	}
+
+	private float coverage(float[] data, float scale, int components) {
+		int passed = 0, count = data.length / components;
+		for (int i = components - 1; i < data.length; i += components)
+			if (data[i] * scale > alphaReference)
+				passed++;
+		return passed / (float) count;
+	}
+
+	private float coverageScale(float[] level, float coverage) {
+		// coverage already kept, the scale would be ambiguous
+		if (Math.abs(coverage(level, 1, 4) - coverage) <= 0.001f)
+			return 1;
+		float low = 0, high = 4;
+		for (int i = 0; i < 16; i++) {
+			float mid = (low + high) / 2;
+			if (coverage(level, mid, 4) < coverage)
+				low = mid;
+			else
+				high = mid;
+		}
+		return (low + high) / 2;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLMipmapBuilder: filter: %s, sRGB: %b, alpha coverage: %s", filter, sRGB,
+				alphaReference >= 0 ? String.valueOf(alphaReference) : "off");
+	}
+}
@@ -5,7 +5,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 
@@ -14,14 +18,34 @@ private int topology;
 	
 	private OGLBuffers buffer;
 	
+	private OGLMeshArena.Mesh mesh;
+
+	private Map<String, String> materialTextures = new LinkedHashMap<>();
+	
 	public OGLBuffers getBuffers() {
 		return buffer;
 	}
 
+	/**
+	 * @return handle of the model in the arena or null when the model owns its buffers
+	 */
+	public OGLMeshArena.Mesh getMesh() {
+		return mesh;
+	}
+
 	public int getTopology() {
 		return topology;
 	}
 
+	/**
+	 * @return diffuse texture (map_Kd) of each material used by the model,
+	 *         null for materials without texture or when the MTL file is
+	 *         missing
+	 */
+	public Map<String, String> getMaterialTextures() {
+		return materialTextures;
+	}
+
 /*
 	private List<Integer> geometryList;
 	
@@ -36,6 +60,49 @@ private int topology;
 	}
 */
 	public OGLModelOBJ(String modelPath) {
+		this(modelPath, null, null);
+	}
+
+	/**
+	 * Load model with texture coordinates of its materials mapped into the
+	 * regions of the atlas named by the materials, faces of materials missing
+	 * in the atlas keep their coordinates
+	 * 
+	 * @param modelPath
+	 *            resource path of the OBJ file
+	 * @param atlas
+	 *            atlas of material textures, may be null
+	 */
+	public OGLModelOBJ(String modelPath, OGLTextureAtlas atlas) {
+		this(modelPath, null, atlas);
+	}
+
+	/**
+	 * Load model into shared buffers of the arena, vertices shared by faces
+	 * are stored once; attributes of the arena named inPosition, inTexCoord
+	 * and inNormal are filled from the model, others are set to zero
+	 * 
+	 * @param modelPath
+	 *            resource path of the OBJ file
+	 * @param arena
+	 *            arena the model is allocated in
+	 */
+	public OGLModelOBJ(String modelPath, OGLMeshArena arena) {
+		this(modelPath, arena, null);
+	}
+
+	/**
+	 * Load model into its own buffers or into shared buffers of the arena,
+	 * with texture coordinates mapped into the atlas
+	 * 
+	 * @param modelPath
+	 *            resource path of the OBJ file
+	 * @param arena
+	 *            arena the model is allocated in, null for own buffers
+	 * @param atlas
+	 *            atlas of material textures, may be null
+	 */
+	public OGLModelOBJ(String modelPath, OGLMeshArena arena, OGLTextureAtlas atlas) {
 
 		class OBJLoader{
 			List<float[]> vData = new ArrayList<float[]>(); // List of Vertex Coordinates
@@ -44,31 +111,84 @@ private int topology;
 			List<int[]> fv = new ArrayList<int[]>(); // Face Vertex Indices;
 			List<int[]> ft = new ArrayList<int[]>(); // Face Texture Indices
 			List<int[]> fn = new ArrayList<int[]>(); // Face Normal Indices
+			List<String> fm = new ArrayList<String>(); // Face Materials
+			Map<String, String> mtlTextures = new HashMap<String, String>();
+			String material = null;
 			
 			OBJLoader(String modelPath) {
 				loadOBJModel(modelPath);
 				setFaceRenderType();
 			}
 
+			private void loadMTL(String mtlPath) {
+				// resource names as by ResourceUtils, without the optional leading slash
+				String directory = mtlPath.substring(0, mtlPath.lastIndexOf('/') + 1);
+				if (directory.startsWith("/"))
+					directory = directory.substring(1);
+				try (BufferedReader br = ResourceUtils.openReader(mtlPath)) {
+					String name = null;
+					String line;
+					while ((line = br.readLine()) != null) {
+						line = line.trim();
+						if (line.startsWith("newmtl ")) {
+							name = line.substring(7).trim();
+						} else if (line.startsWith("map_Kd ") && name != null) {
+							// texture paths are relative to the MTL file, options are not supported
+							String[] s = line.split("\\s+");
+							mtlTextures.put(name, directory + s[s.length - 1]);
+						}
+					}
+				} catch (FileNotFoundException e) {
+					System.out.println("MTL file " + mtlPath + " not found, materials without textures");
+				} catch (IOException e) {
+					System.out.println("Failed to read MTL: " + mtlPath);
+					System.err.println(e);
+				}
+			}
+
+			/**
+			 * Map texture coordinates of faces of each material into its region
+			 * of the atlas, coordinates shared by several materials are
+			 * duplicated
+			 */
+			void remapTexCoords(OGLTextureAtlas atlas) {
+				Map<OGLTextureAtlas.Region, Map<Integer, Integer>> remapped = new HashMap<>();
+				for (int i = 0; i < ft.size(); i++) {
+					OGLTextureAtlas.Region region = fm.get(i) == null ? null : atlas.getRegion(fm.get(i));
+					if (region == null)
+						continue;
+					Map<Integer, Integer> indices = remapped.get(region);
+					if (indices == null)
+						remapped.put(region, indices = new HashMap<>());
+					int[] vt = ft.get(i).clone();
+					for (int j = 0; j < vt.length; j++) {
+						if (vt[j] <= 0 || vt[j] > vtData.size())
+							continue;
+						Integer index = indices.get(vt[j]);
+						if (index == null) {
+							float[] uv = vtData.get(vt[j] - 1);
+							vtData.add(new float[] { region.mapU(uv[0]), region.mapV(uv[1]) });
+							index = vtData.size();
+							indices.put(vt[j], index);
+						}
+						vt[j] = index;
+					}
+					ft.set(i, vt);
+				}
+			}
+
 			private void loadOBJModel(String modelPath) {
 				try {
 					// Open a file handle and read the models data
-					InputStream is = OBJLoader.class.getResourceAsStream(modelPath);
-
-					if (is == null)
-						return;
-
-					BufferedReader br = null;
-					try {
-						br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-					} catch (UnsupportedEncodingException e) {
-						System.err.println("File not found ");
-						e.printStackTrace();
-						return;
-					}
+					BufferedReader br = ResourceUtils.openReader(modelPath);
+					String directory = modelPath.substring(0, modelPath.lastIndexOf('/') + 1);
 					String line = null;
 					while ((line = br.readLine()) != null) {
 						if (line.startsWith("#")) {
+						} else if (line.startsWith("mtllib ")) {
+							loadMTL(directory + line.substring(7).trim());
+						} else if (line.startsWith("usemtl ")) {
+							material = line.substring(7).trim();
 						} else if (line.equals("")) {
 							// Ignore whitespace data
 						} else if (line.startsWith("v ")) { 
@@ -83,9 +203,10 @@ private int topology;
 						} else if (line.startsWith("f ")) { 
 							// Read Face (index) Data
 							processFaceData(line);
+							while (fm.size() < fv.size())
+								fm.add(material);
 						}
 					}
-					is.close();
 					br.close();
 					System.out.println("OBJ model: " + modelPath + "... read");
 				} catch (IOException e) {
@@ -194,6 +315,15 @@ private int topology;
 		FloatBuffer tmpVerticesBuf = null, tmpNormalsBuf=null, tmpTexCoordsBuf= null;
 		
 		OBJLoader loader = new OBJLoader(modelPath); 
+		for (String material : loader.fm)
+			if (material != null && !materialTextures.containsKey(material))
+				materialTextures.put(material, loader.mtlTextures.get(material));
+		if (atlas != null)
+			loader.remapTexCoords(atlas);
+		if (arena != null) {
+			mesh = toMesh(modelPath, arena, loader.vData, loader.vtData, loader.vnData, loader.fv, loader.ft, loader.fn);
+			return;
+		}
 		
 		float coords4[] = new float[4];
 	System.out.println(loader.fv.size() + " " + (loader.fv.get(0)).length);
@@ -273,6 +403,48 @@ private int topology;
 		buffer = toOGLBuffers(tmpVerticesBuf, tmpNormalsBuf, tmpTexCoordsBuf);
 	}
 
+	private OGLMeshArena.Mesh toMesh(String modelPath, OGLMeshArena arena, List<float[]> vData,
+			List<float[]> vtData, List<float[]> vnData, List<int[]> fv, List<int[]> ft, List<int[]> fn) {
+		OGLBuffers.Attrib[] attributes = arena.getAttributes();
+		int floatsPerVertex = 0;
+		for (OGLBuffers.Attrib attrib : attributes)
+			floatsPerVertex += attrib.dimension;
+
+		Map<Long, Integer> vertexIndices = new HashMap<>();
+		float[] vertexData = new float[fv.size() * 3 * floatsPerVertex];
+		int[] indexData = new int[fv.size() * 3];
+		int vertexCount = 0;
+		for (int i = 0; i < fv.size(); i++) {
+			for (int j = 0; j < 3; j++) {
+				int v = fv.get(i)[j], vt = ft.get(i)[j], vn = fn.get(i)[j];
+				long key = ((long) v << 42) | ((long) vt << 21) | vn;
+				Integer index = vertexIndices.get(key);
+				if (index == null) {
+					index = vertexCount++;
+					vertexIndices.put(key, index);
+					int offset = index * floatsPerVertex;
+					for (OGLBuffers.Attrib attrib : attributes) {
+						float[] source = null;
+						if (attrib.name.equals("inPosition") && v > 0)
+							source = vData.get(v - 1);
+						else if (attrib.name.equals("inTexCoord") && vt > 0)
+							source = vtData.get(vt - 1);
+						else if (attrib.name.equals("inNormal") && vn > 0)
+							source = vnData.get(vn - 1);
+						for (int k = 0; k < attrib.dimension; k++)
+							vertexData[offset + k] = source != null && k < source.length ? source[k]
+									: (k == 3 && attrib.name.equals("inPosition") ? 1 : 0);
+						offset += attrib.dimension;
+					}
+				}
+				indexData[i * 3 + j] = index;
+			}
+		}
+		OGLMeshArena.Mesh mesh = arena.add(Arrays.copyOf(vertexData, vertexCount * floatsPerVertex), indexData);
+		System.out.println("OBJ model: " + modelPath + " in arena, " + vertexCount + " vertices");
+		return mesh;
+	}
+
 	
 	private OGLBuffers toOGLBuffers(FloatBuffer verticesBuf, FloatBuffer normalsBuf, FloatBuffer texCoordsBuf){
 		OGLBuffers buffers;
@@ -0,0 +1,232 @@
+package lwjglutils;
+
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Shader programs compiled and linked together. Programs are submitted by add
+ * without waiting for the compiler, with GL_KHR_parallel_shader_compile (or
+ * the ARB variant) the driver compiles them on its own threads and poll, e.g.
+ * called once per frame, checks GL_COMPLETION_STATUS_KHR without blocking.
+ * Without the extension the driver compiles at the latest when the status is
+ * queried, the batch still avoids waiting between submissions.
+ * <p>
+ * Programs found in the cache of ShaderUtils.getProgramCache are completed
+ * immediately, linked programs are stored into it; programs submitted with a
+ * function before linking other than ShaderUtils.NO_LINK_SETUP bypass it.
+ *
+ * <pre>
+ * OGLProgramBatch batch = new OGLProgramBatch();
+ * CompletableFuture&lt;Integer&gt; phong = batch.add("/shaders/phong");
+ * CompletableFuture&lt;Integer&gt; shadow = batch.add("/shaders/shadow");
+ * batch.finish(); // or batch.poll() every frame until isDone()
+ * int phongProgram = phong.join();
+ * </pre>
+ */
+public class OGLProgramBatch {
+
+	private static class Pending {
+		final int shaderProgram;
+		final int[] shaders;
+		final String[][] shaderSrcArray;
+		final OGLProgramCache cache;
+		final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+		Pending(int shaderProgram, int[] shaders, String[][] shaderSrcArray, OGLProgramCache cache) {
+			this.shaderProgram = shaderProgram;
+			this.shaders = shaders;
+			this.shaderSrcArray = shaderSrcArray;
+			this.cache = cache;
+		}
+	}
+
+	private final List<Pending> pending = new ArrayList<>();
+	private final int completionStatus;
+
+	/**
+	 * Create batch, the driver is allowed to use any number of compiler
+	 * threads if it supports parallel compilation
+	 */
+	public OGLProgramBatch() {
+		GLCapabilities caps = GL.getCapabilities();
+		if (caps.GL_KHR_parallel_shader_compile) {
+			KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xffffffff);
+			completionStatus = KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR;
+		} else if (caps.GL_ARB_parallel_shader_compile) {
+			ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xffffffff);
+			completionStatus = ARBParallelShaderCompile.GL_COMPLETION_STATUS_ARB;
+		} else {
+			completionStatus = 0;
+		}
+	}
+
+	/**
+	 * @return true if the driver compiles in parallel and poll does not block
+	 */
+	public boolean isParallel() {
+		return completionStatus != 0;
+	}
+
+	/**
+	 * Submit program of shader files, see ShaderUtils.loadProgram(String)
+	 *
+	 * @param shaderFileName
+	 *            full path name of shader file without file extension
+	 * @return future program id
+	 */
+	public CompletableFuture<Integer> add(String shaderFileName) {
+		String[] shaderFileNames = new String[ShaderUtils.SHADER_NAME_CONSTANTS.length];
+		for (int i = 0; i < shaderFileNames.length; i++)
+			shaderFileNames[i] = shaderFileName;
+		return add(shaderFileNames);
+	}
+
+	/**
+	 * Submit program of shader files
+	 *
+	 * @param shaderFileNames
+	 *            array of full path name of shader files with/without file
+	 *            extension in order vertex, fragment, geometry, control,
+	 *            evaluation and compute shader or null
+	 * @return future program id
+	 */
+	public CompletableFuture<Integer> add(String[] shaderFileNames) {
+		return add(ShaderUtils.readShaderSources(shaderFileNames), ShaderUtils.NO_LINK_SETUP);
+	}
+
+	/**
+	 * Submit program of shader sources
+	 *
+	 * @param shaderSrcArray
+	 *            array of arrays of Strings with GLSL codes for shaders in
+	 *            order vertex, fragment, geometry, control, evaluation and
+	 *            compute shader or null
+	 * @param functionBeforeLinking
+	 *            function called before linking shader program, int-valued
+	 *            argument defines shader program id, ShaderUtils.NO_LINK_SETUP
+	 *            if none so that the program cache is used
+	 * @return future program id, completed exceptionally with the compiler
+	 *         log if compiling or linking fails
+	 */
+	public CompletableFuture<Integer> add(String[][] shaderSrcArray, IntConsumer functionBeforeLinking) {
+		// state set before linking is not part of the cache key
+		OGLProgramCache cache = functionBeforeLinking == ShaderUtils.NO_LINK_SETUP ? ShaderUtils.getProgramCache()
+				: null;
+		if (cache != null) {
+			int cached = cache.load(shaderSrcArray);
+			if (cached > 0)
+				return CompletableFuture.completedFuture(cached);
+		}
+
+		int shaderProgram = glCreateProgram();
+		int[] shaders = new int[shaderSrcArray.length];
+		for (int i = 0; i < shaderSrcArray.length; i++) {
+			if (shaderSrcArray[i] == null)
+				continue;
+			if (OGLUtils.getVersionGLSL() < ShaderUtils.SHADER_SUPPORT_EXTENSIONS[i]) {
+				System.err.println("Shader stage " + i + " is not supported by OpenGL driver ("
+						+ OGLUtils.getVersionGLSL() + ").");
+				continue;
+			}
+			shaders[i] = ShaderUtils.createShaderProgram(shaderSrcArray[i], ShaderUtils.SHADER_NAME_CONSTANTS[i]);
+			if (shaders[i] <= 0)
+				continue;
+			// status is queried after all programs are submitted
+			glCompileShader(shaders[i]);
+			glAttachShader(shaderProgram, shaders[i]);
+		}
+		functionBeforeLinking.accept(shaderProgram);
+		if (cache != null)
+			cache.prepare(shaderProgram);
+		glLinkProgram(shaderProgram);
+
+		Pending program = new Pending(shaderProgram, shaders, shaderSrcArray, cache);
+		pending.add(program);
+		return program.future;
+	}
+
+	/**
+	 * Complete programs whose compilation finished, does not block with
+	 * parallel compilation
+	 *
+	 * @return true if all programs are completed
+	 */
+	public boolean poll() {
+		List<Pending> ready = new ArrayList<>();
+		Iterator<Pending> iterator = pending.iterator();
+		while (iterator.hasNext()) {
+			Pending program = iterator.next();
+			if (completionStatus != 0 && glGetProgrami(program.shaderProgram, completionStatus) != GL_TRUE)
+				continue;
+			iterator.remove();
+			ready.add(program);
+		}
+		// callbacks of the futures may add programs
+		for (Pending program : ready)
+			complete(program);
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Wait for all programs
+	 */
+	public void finish() {
+		// callbacks of the futures may add programs
+		while (!pending.isEmpty())
+			complete(pending.remove(0));
+	}
+
+	/**
+	 * @return true if all programs are completed
+	 */
+	public boolean isDone() {
+		return pending.isEmpty();
+	}
+
+	private void complete(Pending program) {
+		String error = ShaderUtils.checkLogInfo(program.shaderProgram, GL_LINK_STATUS);
+		if (error != null) {
+			StringBuilder log = new StringBuilder("Shader program '" + program.shaderProgram + "' not linked:\n");
+			for (int shader : program.shaders) {
+				String compileError = shader > 0 ? ShaderUtils.checkLogInfo(shader, GL_COMPILE_STATUS) : null;
+				if (compileError != null)
+					log.append(compileError).append('\n');
+			}
+			log.append(error);
+			release(program.shaders, program.shaderProgram);
+			glDeleteProgram(program.shaderProgram);
+			System.err.println(log);
+			program.future.completeExceptionally(new RuntimeException(log.toString()));
+			return;
+		}
+		release(program.shaders, program.shaderProgram);
+		if (program.cache != null)
+			program.cache.store(program.shaderSrcArray, program.shaderProgram);
+		System.out.println("Shader program '" + program.shaderProgram + "' linked");
+		program.future.complete(program.shaderProgram);
+	}
+
+	private static void release(int[] shaders, int shaderProgram) {
+		for (int shader : shaders) {
+			if (shader > 0) {
+				glDetachShader(shaderProgram, shader);
+				glDeleteShader(shader);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "OGLProgramBatch " + pending.size() + " pending" + (isParallel() ? ", parallel" : "");
+	}
+}
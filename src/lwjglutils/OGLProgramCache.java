@@ -0,0 +1,268 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL41.*;
+
+/**
+ * Linked shader programs stored on disk as driver specific binaries
+ * (glGetProgramBinary) and loaded by glProgramBinary on the next run instead
+ * of compiling and linking the sources. A binary is identified by SHA-256 of
+ * the sources of all stages together with the vendor, renderer and version of
+ * the driver, so a changed source or updated driver never loads a stale
+ * binary; binaries rejected by the driver are deleted and the program is
+ * compiled again.
+ * <p>
+ * Used by ShaderUtils.loadProgram once installed:
+ *
+ * <pre>
+ * ShaderUtils.setProgramCache(new OGLProgramCache("shadercache"));
+ * </pre>
+ *
+ * State applied by functionBeforeLinking of loadProgram (attribute and
+ * fragment data locations, transform feedback varyings) is part of the binary
+ * but not of its key, so programs linked with a function other than
+ * ShaderUtils.NO_LINK_SETUP are neither loaded nor stored.
+ * <p>
+ * Every edited source adds a binary, the least recently used binaries above
+ * maxBinaries are deleted when the cache is created and after storing.
+ */
+public class OGLProgramCache {
+	private static final int MAGIC = 0x4f475042; // OGPB
+
+	private final Path directory;
+	private final int maxBinaries;
+	private final String driver;
+	private final boolean supported;
+	private int hits = 0, misses = 0;
+
+	/**
+	 * Create cache of at most 256 binaries
+	 *
+	 * @param directoryName
+	 *            directory of the binaries, created if it does not exist
+	 */
+	public OGLProgramCache(String directoryName) {
+		this(directoryName, 256);
+	}
+
+	/**
+	 * @param directoryName
+	 *            directory of the binaries, created if it does not exist
+	 * @param maxBinaries
+	 *            number of binaries kept
+	 */
+	public OGLProgramCache(String directoryName, int maxBinaries) {
+		if (maxBinaries < 1)
+			throw new IllegalArgumentException("At least one binary must be kept.");
+		directory = Paths.get(directoryName);
+		this.maxBinaries = maxBinaries;
+		driver = glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|" + glGetString(GL_VERSION);
+		GLCapabilities caps = GL.getCapabilities();
+		boolean available = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+				&& glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+		if (available) {
+			try {
+				Files.createDirectories(directory);
+			} catch (IOException e) {
+				System.err.println("Program cache " + directory + " not created: " + e.getMessage());
+				available = false;
+			}
+		} else {
+			System.out.println("Program binaries are not supported by the driver, program cache disabled.");
+		}
+		supported = available;
+		if (supported)
+			prune();
+	}
+
+	/**
+	 * @return true if binaries can be stored and loaded
+	 */
+	public boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * Mark program as retrievable, must precede linking of programs stored
+	 * later
+	 */
+	void prepare(int shaderProgram) {
+		if (supported)
+			glProgramParameteri(shaderProgram, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+	}
+
+	/**
+	 * Create program from the binary of the sources
+	 *
+	 * @param shaderSrcArray
+	 *            sources of the stages as passed to ShaderUtils.loadProgram
+	 * @return linked program or 0 if it is not cached or the driver rejected
+	 *         the binary
+	 */
+	public int load(String[][] shaderSrcArray) {
+		if (!supported)
+			return 0;
+		Path file = getFile(shaderSrcArray);
+		if (!Files.isRegularFile(file)) {
+			misses++;
+			return 0;
+		}
+		ByteBuffer binary;
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			binary = (ByteBuffer) BufferUtils.createByteBuffer(bytes.length).put(bytes).flip();
+		} catch (IOException e) {
+			System.err.println("Program binary " + file + " not read: " + e.getMessage());
+			misses++;
+			return 0;
+		}
+		int format = binary.remaining() >= 8 && binary.getInt(0) == MAGIC ? binary.getInt(4) : -1;
+		int shaderProgram = 0;
+		if (format != -1) {
+			shaderProgram = glCreateProgram();
+			glProgramBinary(shaderProgram, format, (ByteBuffer) binary.duplicate().position(8));
+			if (glGetProgrami(shaderProgram, GL_LINK_STATUS) != GL_TRUE) {
+				glDeleteProgram(shaderProgram);
+				shaderProgram = 0;
+			}
+		}
+		// a failed glProgramBinary is not an error of the application
+		OGLUtils.emptyGLError();
+		if (shaderProgram == 0) {
+			System.out.println("Program binary " + file + " rejected by the driver, compiling.");
+			delete(file);
+			misses++;
+			return 0;
+		}
+		System.out.println("Shader program '" + shaderProgram + "' loaded from " + file);
+		try {
+			// the modification time orders the binaries by use for prune
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// kept in the previous order
+		}
+		hits++;
+		return shaderProgram;
+	}
+
+	/**
+	 * Store binary of linked program
+	 *
+	 * @param shaderSrcArray
+	 *            sources the program was linked from
+	 * @param shaderProgram
+	 *            program prepared and linked successfully
+	 */
+	public void store(String[][] shaderSrcArray, int shaderProgram) {
+		if (!supported)
+			return;
+		int length = glGetProgrami(shaderProgram, GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0)
+			return;
+		ByteBuffer binary = BufferUtils.createByteBuffer(length + 8);
+		IntBuffer written = BufferUtils.createIntBuffer(1);
+		IntBuffer format = BufferUtils.createIntBuffer(1);
+		glGetProgramBinary(shaderProgram, written, format, (ByteBuffer) binary.duplicate().position(8));
+		binary.putInt(0, MAGIC).putInt(4, format.get(0));
+		binary.limit(8 + written.get(0));
+
+		Path file = getFile(shaderSrcArray);
+		try {
+			// renamed when complete, a concurrent run never reads a partial file
+			Path temp = Files.createTempFile(directory, "program", ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (binary.hasRemaining())
+					channel.write(binary);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Program binary " + file + " not saved: " + e.getMessage());
+		}
+		prune();
+	}
+
+	/**
+	 * Delete the least recently used binaries above maxBinaries
+	 */
+	private void prune() {
+		Map<Path, Long> used = new HashMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.bin")) {
+			for (Path file : files)
+				used.put(file, Files.getLastModifiedTime(file).toMillis());
+		} catch (IOException e) {
+			System.err.println("Program cache " + directory + " not pruned: " + e.getMessage());
+			return;
+		}
+		if (used.size() <= maxBinaries)
+			return;
+		List<Path> sorted = new ArrayList<>(used.keySet());
+		Collections.sort(sorted, (a, b) -> Long.compare(used.get(a), used.get(b)));
+		for (Path file : sorted.subList(0, sorted.size() - maxBinaries))
+			delete(file);
+		System.out.println("Program cache " + directory + ": " + (sorted.size() - maxBinaries)
+				+ " unused binaries deleted");
+	}
+
+	private Path getFile(String[][] shaderSrcArray) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update(driver.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < shaderSrcArray.length; i++) {
+			if (shaderSrcArray[i] == null)
+				continue;
+			// stage separator, the same lines in another stage differ
+			digest.update((byte) 0);
+			digest.update((byte) i);
+			for (String line : shaderSrcArray[i]) {
+				digest.update(line.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) '\n');
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (byte b : digest.digest())
+			name.append(String.format("%02x", b));
+		return directory.resolve(name.append(".bin").toString());
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.err.println("Program binary " + file + " not deleted: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "OGLProgramCache " + directory + (supported ? "" : " (not supported)") + ", " + hits + " hits, "
+				+ misses + " misses";
+	}
+}
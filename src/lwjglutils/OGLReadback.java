@@ -0,0 +1,282 @@
+package lwjglutils;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Asynchronous readback of textures and framebuffers. The pixels are copied
+ * by the GPU into a pixel pack buffer taken from a pool, a fence is inserted
+ * after the copy and the buffer is mapped only when the fence is signaled,
+ * so that neither the request nor the completion waits for the GPU. Futures
+ * are completed by update, typically a few frames after the request.
+ * <p>
+ * update must be called on the OpenGL thread once per frame; dependent
+ * actions attached to the futures run on the OpenGL thread unless an async
+ * variant is used (e.g. for writing image files).
+ */
+public class OGLReadback implements AutoCloseable {
+
+	private static class Staging {
+		final int buffer;
+		final long size;
+
+		Staging(int buffer, long size) {
+			this.buffer = buffer;
+			this.size = size;
+		}
+	}
+
+	private static class Transfer<T> {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		final Staging staging;
+		final int bytes;
+		final Function<ByteBuffer, T> convert;
+		final long frame;
+		long fence;
+
+		Transfer(Staging staging, int bytes, Function<ByteBuffer, T> convert, long frame) {
+			this.staging = staging;
+			this.bytes = bytes;
+			this.convert = convert;
+			this.frame = frame;
+		}
+
+		void complete() {
+			ByteBuffer data = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, bytes, GL_MAP_READ_BIT);
+			try {
+				future.complete(convert.apply(data.order(ByteOrder.nativeOrder())));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+		}
+	}
+
+	private final List<Staging> free = new ArrayList<>();
+	private final List<Transfer<?>> inFlight = new ArrayList<>();
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLReadback");
+	private long frame = 0;
+	private long latency = 0;
+	private int completed = 0;
+
+	/**
+	 * Read level of texture
+	 *
+	 * @param texture
+	 *            source texture
+	 * @param format
+	 *            format of the returned image
+	 * @param level
+	 *            mipmap level
+	 * @return future completed with the image of the size of the level
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> CompletableFuture<OGLTexImageType> read(
+			OGLTexture2D texture, OGLTexImage.Format<OGLTexImageType> format, int level) {
+		int width = texture.getWidth(level), height = texture.getHeight(level);
+		return submit(width * height * texelSize(format), () -> {
+			texture.bind();
+			glGetTexImage(GL_TEXTURE_2D, level, format.getPixelFormat(), format.getPixelType(), 0L);
+		}, data -> toTexImage(data, format, width, height));
+	}
+
+	/**
+	 * Read color buffer of render target
+	 *
+	 * @param target
+	 *            source render target
+	 * @param bufferIndex
+	 *            index of the color buffer
+	 * @param format
+	 *            format of the returned image
+	 * @return future completed with the image of the size of the target
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> CompletableFuture<OGLTexImageType> read(
+			OGLRenderTarget target, int bufferIndex, OGLTexImage.Format<OGLTexImageType> format) {
+		int width = target.getWidth(), height = target.getHeight();
+		return submit(width * height * texelSize(format), () -> {
+			int previous = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+			glBindFramebuffer(GL_READ_FRAMEBUFFER, target.frameBuffer);
+			glReadBuffer(GL_COLOR_ATTACHMENT0 + bufferIndex);
+			glReadPixels(0, 0, width, height, format.getPixelFormat(), format.getPixelType(), 0L);
+			glBindFramebuffer(GL_READ_FRAMEBUFFER, previous);
+		}, data -> toTexImage(data, format, width, height));
+	}
+
+	/**
+	 * Read level 0 of texture as image, rows are in the order of the texture
+	 * as by OGLTexture2D.toBufferedImage
+	 *
+	 * @param texture
+	 *            source texture
+	 * @return future completed with the image
+	 */
+	public CompletableFuture<BufferedImage> readImage(OGLTexture2D texture) {
+		int width = texture.getWidth(), height = texture.getHeight();
+		return submit(width * height * 4, () -> {
+			texture.bind();
+			glGetTexImage(GL_TEXTURE_2D, 0, GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV, 0L);
+		}, data -> toBufferedImage(data, width, height, false));
+	}
+
+	/**
+	 * Read rectangle of the current read framebuffer (e.g. the back buffer
+	 * for screenshots), the image is flipped so that its first row is the top
+	 *
+	 * @param x
+	 *            left of the rectangle
+	 * @param y
+	 *            bottom of the rectangle
+	 * @param width
+	 *            width of the rectangle
+	 * @param height
+	 *            height of the rectangle
+	 * @return future completed with the image
+	 */
+	public CompletableFuture<BufferedImage> readImage(int x, int y, int width, int height) {
+		return submit(width * height * 4,
+				() -> glReadPixels(x, y, width, height, GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV, 0L),
+				data -> toBufferedImage(data, width, height, true));
+	}
+
+	private <T> CompletableFuture<T> submit(int bytes, Runnable issue, Function<ByteBuffer, T> convert) {
+		OGLState state = OGLState.get();
+		Transfer<T> transfer = new Transfer<>(acquire(bytes), bytes, convert, frame);
+		state.bindBuffer(GL_PIXEL_PACK_BUFFER, transfer.staging.buffer);
+		glPixelStorei(GL_PACK_ALIGNMENT, 1);
+		issue.run();
+		glPixelStorei(GL_PACK_ALIGNMENT, 4);
+		state.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+		transfer.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		// the copy is queued, not necessarily submitted to the GPU
+		glFlush();
+		inFlight.add(transfer);
+		return transfer.future;
+	}
+
+	private Staging acquire(int bytes) {
+		Staging best = null;
+		for (Staging staging : free)
+			if (staging.size >= bytes && (best == null || staging.size < best.size))
+				best = staging;
+		if (best != null) {
+			free.remove(best);
+			return best;
+		}
+		int buffer = glGenBuffers();
+		OGLState.get().bindBuffer(GL_PIXEL_PACK_BUFFER, buffer);
+		glBufferData(GL_PIXEL_PACK_BUFFER, bytes, GL_STREAM_READ);
+		handle.add(OGLResourceTracker.BUFFER, buffer, bytes);
+		return new Staging(buffer, bytes);
+	}
+
+	/**
+	 * Complete transfers whose fences are signaled, must be called on the
+	 * OpenGL thread
+	 *
+	 * @return number of completed transfers
+	 */
+	public int update() {
+		frame++;
+		if (inFlight.isEmpty())
+			return 0;
+		OGLState state = OGLState.get();
+		int count = 0;
+		for (Iterator<Transfer<?>> it = inFlight.iterator(); it.hasNext();) {
+			Transfer<?> transfer = it.next();
+			int status = glClientWaitSync(transfer.fence, 0, 0);
+			if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED)
+				continue;
+			glDeleteSync(transfer.fence);
+			it.remove();
+			state.bindBuffer(GL_PIXEL_PACK_BUFFER, transfer.staging.buffer);
+			transfer.complete();
+			free.add(transfer.staging);
+			latency += frame - transfer.frame;
+			completed++;
+			count++;
+		}
+		state.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+		return count;
+	}
+
+	/**
+	 * Delete staging buffers not used by any transfer
+	 */
+	public void trim() {
+		for (Staging staging : free)
+			handle.delete(OGLResourceTracker.BUFFER, staging.buffer);
+		free.clear();
+	}
+
+	private static <OGLTexImageType extends OGLTexImage<OGLTexImageType>> int texelSize(
+			OGLTexImage.Format<OGLTexImageType> format) {
+		return format.getComponentCount() * (format instanceof OGLTexImageFloat.Format ? 4 : 1);
+	}
+
+	private static <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTexImageType toTexImage(
+			ByteBuffer data, OGLTexImage.Format<OGLTexImageType> format, int width, int height) {
+		OGLTexImageType image = format.newTexImage(width, height);
+		if (image instanceof OGLTexImageFloat)
+			((OGLTexImageFloat) image).getDataBuffer().put(data.asFloatBuffer());
+		else if (image instanceof OGLTexImageByte)
+			((OGLTexImageByte) image).getDataBuffer().put(data);
+		else
+			throw new RuntimeException("Unsupported image type " + image.getClass().getName());
+		return image;
+	}
+
+	private static BufferedImage toBufferedImage(ByteBuffer data, int width, int height, boolean flip) {
+		int[] argb = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			int row = flip ? height - 1 - y : y;
+			data.position(row * width * 4);
+			data.asIntBuffer().get(argb, y * width, width);
+		}
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, width, height, argb, 0, width);
+		return image;
+	}
+
+	/**
+	 * @return number of transfers waiting for the GPU
+	 */
+	public int getPendingCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return average number of updates between request and completion
+	 */
+	public double getAverageLatency() {
+		return completed == 0 ? 0 : latency / (double) completed;
+	}
+
+	/**
+	 * Cancel pending transfers and delete all staging buffers
+	 */
+	@Override
+	public void close() {
+		for (Transfer<?> transfer : inFlight) {
+			glDeleteSync(transfer.fence);
+			transfer.future.cancel(false);
+		}
+		inFlight.clear();
+		free.clear();
+		handle.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLReadback: pending: %d, staging buffers: %d free, completed: %d, "
+				+ "latency: %.1f frames", inFlight.size(), free.size(), completed, getAverageLatency());
+	}
+}
@@ -0,0 +1,358 @@
+package lwjglutils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Queue of draw items sorted to minimize state changes. Each submitted item
+ * gets a packed 64-bit sort key, the keys are radix sorted once per frame and
+ * items are drawn in key order, binding program, textures, uniform block slot
+ * and buffers only when they differ from the previous item.
+ * <p>
+ * Key layout (from the most significant bits):
+ * <ul>
+ * <li>opaque and sky pass: pass (2 bits), program (12), texture (12), mesh
+ * (12), depth (24) - front-to-back within equal state</li>
+ * <li>transparent pass: pass (2 bits), inverted depth (24), program (12),
+ * texture (12), mesh (12) - back-to-front</li>
+ * </ul>
+ * The sky is drawn after the opaque geometry so that covered pixels fail the
+ * depth test, and before transparent items which blend over it. Program,
+ * texture and mesh fields hold only the low bits of their ids; collisions
+ * affect the order, not the correctness, because the actual state is compared
+ * during submission.
+ * <p>
+ * All per-item data are kept in preallocated arrays, submitting and drawing
+ * allocate nothing unless the capacity is exceeded.
+ */
+public class OGLRenderQueue {
+	public static final int PASS_OPAQUE = 0;
+	public static final int PASS_SKY = 1;
+	public static final int PASS_TRANSPARENT = 2;
+	public static final int MAX_TEXTURES = 4;
+
+	private static final int ID_BITS = 12;
+	private static final int ID_MASK = (1 << ID_BITS) - 1;
+	private static final int DEPTH_BITS = 24;
+	private static final int DEPTH_MASK = (1 << DEPTH_BITS) - 1;
+
+	private int capacity;
+	private int count = 0;
+
+	private OGLBuffers[] meshes;
+	private int[] topologies;
+	private int[] programs;
+	private OGLTexture[] textures;
+	private String[] textureNames;
+	private int[] textureCounts;
+	private int[] objectSlots;
+	private int[] passes;
+
+	private long[] keys, tmpKeys;
+	private int[] order, tmpOrder;
+	private final int[] histogram = new int[256];
+
+	private OGLUniformBuffer objectBlock;
+	private int objectBinding;
+
+	private int drawCount, programChanges, meshChanges, textureChanges;
+
+	public OGLRenderQueue() {
+		this(1024);
+	}
+
+	/**
+	 * Create queue
+	 *
+	 * @param capacity
+	 *            number of items preallocated
+	 */
+	public OGLRenderQueue(int capacity) {
+		allocate(capacity);
+	}
+
+	/**
+	 * Set uniform buffer whose slots are referenced by the submitted items
+	 *
+	 * @param objectBlock
+	 *            uniform buffer with per-object slots
+	 * @param binding
+	 *            uniform block binding point
+	 */
+	public void setObjectBlock(OGLUniformBuffer objectBlock, int binding) {
+		this.objectBlock = objectBlock;
+		this.objectBinding = binding;
+	}
+
+	public void submit(OGLBuffers mesh, int topology, int shaderProgram, int objectSlot, float depth, int pass) {
+		int item = add(mesh, topology, shaderProgram, objectSlot, pass);
+		keys[item] = key(pass, shaderProgram, 0, mesh, depth);
+	}
+
+	public void submit(OGLBuffers mesh, int topology, int shaderProgram, OGLTexture texture, String textureName,
+			int objectSlot, float depth, int pass) {
+		int item = add(mesh, topology, shaderProgram, objectSlot, pass);
+		textures[item * MAX_TEXTURES] = texture;
+		textureNames[item * MAX_TEXTURES] = textureName;
+		textureCounts[item] = 1;
+		keys[item] = key(pass, shaderProgram, texture.getTextureId(), mesh, depth);
+	}
+
+	/**
+	 * Submit draw item
+	 *
+	 * @param mesh
+	 *            buffers to draw
+	 * @param topology
+	 *            primitive type
+	 * @param shaderProgram
+	 *            id of shader program
+	 * @param textures
+	 *            textures bound to slots 0, 1, ... (at most MAX_TEXTURES)
+	 * @param textureNames
+	 *            names of sampler uniforms of the textures
+	 * @param objectSlot
+	 *            slot of object uniform buffer bound for the draw or -1
+	 * @param depth
+	 *            distance of the item from the camera
+	 * @param pass
+	 *            PASS_OPAQUE, PASS_SKY or PASS_TRANSPARENT
+	 */
+	public void submit(OGLBuffers mesh, int topology, int shaderProgram, OGLTexture[] textures,
+			String[] textureNames, int objectSlot, float depth, int pass) {
+		if (textures.length > MAX_TEXTURES)
+			throw new IllegalArgumentException("At most " + MAX_TEXTURES + " textures per item are supported.");
+		int item = add(mesh, topology, shaderProgram, objectSlot, pass);
+		System.arraycopy(textures, 0, this.textures, item * MAX_TEXTURES, textures.length);
+		System.arraycopy(textureNames, 0, this.textureNames, item * MAX_TEXTURES, textures.length);
+		textureCounts[item] = textures.length;
+		keys[item] = key(pass, shaderProgram, textures.length > 0 ? textures[0].getTextureId() : 0, mesh, depth);
+	}
+
+	private int add(OGLBuffers mesh, int topology, int shaderProgram, int objectSlot, int pass) {
+		if (count == capacity)
+			allocate(capacity * 2);
+		int item = count++;
+		meshes[item] = mesh;
+		topologies[item] = topology;
+		programs[item] = shaderProgram;
+		objectSlots[item] = objectSlot;
+		passes[item] = pass;
+		textureCounts[item] = 0;
+		return item;
+	}
+
+	private static long key(int pass, int program, int texture, OGLBuffers mesh, float depth) {
+		// bits of non-negative float are ordered as the values
+		long depthBits = (Float.floatToRawIntBits(Math.max(depth, 0.0f)) >>> 7) & DEPTH_MASK;
+		long state = ((long) (program & ID_MASK) << (2 * ID_BITS))
+				| ((long) (texture & ID_MASK) << ID_BITS)
+				| (System.identityHashCode(mesh) & ID_MASK);
+		long key = (long) pass << 62;
+		if (pass == PASS_TRANSPARENT)
+			return key | ((DEPTH_MASK - depthBits) << (3 * ID_BITS)) | state;
+		return key | (state << DEPTH_BITS) | depthBits;
+	}
+
+	/**
+	 * Sort submitted items by their keys, least significant digit radix sort
+	 * with 8-bit digits, digits equal for all items are skipped; the result is
+	 * copied back after an odd number of passes
+	 */
+	public void sort() {
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		long[] srcKeys = keys, dstKeys = tmpKeys;
+		int[] srcOrder = order, dstOrder = tmpOrder;
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(histogram, 0);
+			for (int i = 0; i < count; i++)
+				histogram[(int) (srcKeys[i] >>> shift) & 0xff]++;
+			if (count == 0 || histogram[(int) (srcKeys[0] >>> shift) & 0xff] == count)
+				continue;
+			int sum = 0;
+			for (int i = 0; i < 256; i++) {
+				int c = histogram[i];
+				histogram[i] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < count; i++) {
+				int digit = (int) (srcKeys[i] >>> shift) & 0xff;
+				int position = histogram[digit]++;
+				dstKeys[position] = srcKeys[i];
+				dstOrder[position] = srcOrder[i];
+			}
+			long[] swapKeys = srcKeys;
+			srcKeys = dstKeys;
+			dstKeys = swapKeys;
+			int[] swapOrder = srcOrder;
+			srcOrder = dstOrder;
+			dstOrder = swapOrder;
+		}
+		// keys and order stay the arrays written by add, tmpKeys and tmpOrder scratch only
+		if (srcKeys != keys) {
+			System.arraycopy(srcKeys, 0, keys, 0, count);
+			System.arraycopy(srcOrder, 0, order, 0, count);
+		}
+	}
+
+	/**
+	 * Sort and draw all submitted items and empty the queue
+	 */
+	public void flush() {
+		sort();
+		draw();
+		clear();
+	}
+
+	/**
+	 * Draw items in the current order
+	 */
+	public void draw() {
+		OGLState state = OGLState.get();
+		drawCount = programChanges = meshChanges = textureChanges = 0;
+		int lastProgram = -1;
+		int lastPass = -1;
+		OGLBuffers lastMesh = null;
+		int lastTextureItem = -1;
+
+		for (int i = 0; i < count; i++) {
+			int item = order[i];
+			int pass = passes[item];
+			if (pass != lastPass) {
+				setPass(lastPass, pass);
+				lastPass = pass;
+			}
+
+			int program = programs[item];
+			if (program != lastProgram) {
+				if (lastMesh != null)
+					lastMesh.unbind();
+				lastMesh = null;
+				lastTextureItem = -1;
+				state.useProgram(program);
+				lastProgram = program;
+				programChanges++;
+			}
+
+			if (!sameTextures(lastTextureItem, item)) {
+				int base = item * MAX_TEXTURES;
+				for (int t = 0; t < textureCounts[item]; t++)
+					textures[base + t].bind(program, textureNames[base + t], t);
+				lastTextureItem = item;
+				textureChanges++;
+			}
+
+			if (objectBlock != null && objectSlots[item] >= 0)
+				objectBlock.bind(objectBinding, objectSlots[item]);
+
+			OGLBuffers mesh = meshes[item];
+			if (mesh != lastMesh) {
+				if (lastMesh != null)
+					lastMesh.unbind();
+				mesh.bind(program);
+				lastMesh = mesh;
+				meshChanges++;
+			}
+			mesh.drawBound(topologies[item]);
+			drawCount++;
+		}
+		if (lastMesh != null)
+			lastMesh.unbind();
+		setPass(lastPass, -1);
+	}
+
+	private boolean sameTextures(int a, int b) {
+		if (a < 0 || textureCounts[a] != textureCounts[b])
+			return false;
+		for (int t = 0; t < textureCounts[a]; t++)
+			if (textures[a * MAX_TEXTURES + t] != textures[b * MAX_TEXTURES + t]
+					|| !textureNames[a * MAX_TEXTURES + t].equals(textureNames[b * MAX_TEXTURES + t]))
+				return false;
+		return true;
+	}
+
+	private void setPass(int previous, int pass) {
+		OGLState state = OGLState.get();
+		if (previous == PASS_SKY) {
+			glDepthFunc(GL_LESS);
+			glDepthMask(true);
+		}
+		if (previous == PASS_TRANSPARENT) {
+			state.disable(GL_BLEND);
+			glDepthMask(true);
+		}
+		if (pass == PASS_SKY) {
+			// drawn at the far plane, only where no opaque geometry is
+			glDepthFunc(GL_LEQUAL);
+			glDepthMask(false);
+		}
+		if (pass == PASS_TRANSPARENT) {
+			state.enable(GL_BLEND);
+			glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+			glDepthMask(false);
+		}
+	}
+
+	/**
+	 * Remove all items, references to meshes and textures are kept until
+	 * overwritten by next submissions
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of draw calls issued by the last draw
+	 */
+	public int getDrawCount() {
+		return drawCount;
+	}
+
+	public int getProgramChanges() {
+		return programChanges;
+	}
+
+	public int getMeshChanges() {
+		return meshChanges;
+	}
+
+	public int getTextureChanges() {
+		return textureChanges;
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		meshes = meshes == null ? new OGLBuffers[capacity] : Arrays.copyOf(meshes, capacity);
+		topologies = topologies == null ? new int[capacity] : Arrays.copyOf(topologies, capacity);
+		programs = programs == null ? new int[capacity] : Arrays.copyOf(programs, capacity);
+		textures = textures == null ? new OGLTexture[capacity * MAX_TEXTURES]
+				: Arrays.copyOf(textures, capacity * MAX_TEXTURES);
+		textureNames = textureNames == null ? new String[capacity * MAX_TEXTURES]
+				: Arrays.copyOf(textureNames, capacity * MAX_TEXTURES);
+		textureCounts = textureCounts == null ? new int[capacity] : Arrays.copyOf(textureCounts, capacity);
+		objectSlots = objectSlots == null ? new int[capacity] : Arrays.copyOf(objectSlots, capacity);
+		passes = passes == null ? new int[capacity] : Arrays.copyOf(passes, capacity);
+		keys = keys == null ? new long[capacity] : Arrays.copyOf(keys, capacity);
+		tmpKeys = new long[capacity];
+		order = new int[capacity];
+		tmpOrder = new int[capacity];
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLRenderQueue: items: %d, capacity: %d, draws: %d, "
+				+ "program changes: %d, texture changes: %d, mesh changes: %d",
+				count, capacity, drawCount, programChanges, textureChanges, meshChanges);
+	}
+}
@@ -5,16 +5,16 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
-import static org.lwjgl.opengl.GL11.glViewport;
 import static org.lwjgl.opengl.GL30.glGenFramebuffers;
 import static org.lwjgl.opengl.GL33.*;
 
-public class OGLRenderTarget {
+public class OGLRenderTarget implements AutoCloseable {
 	protected final int width, height, count;
 	protected final int[] drawBuffers;
 	protected final int frameBuffer;
 	protected final OGLTexture2D[] colorBuffers;
 	protected final OGLTexture2D depthBuffer;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLRenderTarget");
 	
 	public OGLRenderTarget(int width, int height) {
 		this(width, height, 1);
@@ -62,6 +62,7 @@ public class OGLRenderTarget {
 				GL_FLOAT, null);
 		
 		frameBuffer = glGenFramebuffers();
+		handle.add(OGLResourceTracker.FRAMEBUFFER, frameBuffer, 0);
 		glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
 		for (int i = 0; i < count; i++)
 			glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0 + i, GL_TEXTURE_2D,
@@ -77,7 +78,7 @@ public class OGLRenderTarget {
 	public void bind() {
 		glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
 		glDrawBuffers(drawBuffers);
-		glViewport(0, 0, width, height);
+		OGLState.get().viewport(0, 0, width, height);
 	}
 
 	public void bindColorTexture(int shaderProgram, String name, int slot) {
@@ -126,11 +127,17 @@ public class OGLRenderTarget {
 			}
 		return  text;
 	}
+
+	/**
+	 * Delete the framebuffer with its color and depth textures, the object
+	 * must not be used any more
+	 */
 	@Override
-	public void finalize() throws Throwable {
-		super.finalize();
-		//if (glIsFramebuffer(frameBuffer))
-		//	glDeleteFramebuffers(frameBuffer);
+	public void close() {
+		handle.close();
+		for (OGLTexture2D colorBuffer : colorBuffers)
+			colorBuffer.close();
+		depthBuffer.close();
 	}
 
 }
@@ -0,0 +1,258 @@
+package lwjglutils;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Registry of live GPU resources and detector of leaked ones. Each resource
+ * class registers a handle holding ids of its OpenGL objects; closing the
+ * resource deletes the objects immediately. When a resource becomes
+ * unreachable without being closed, its handle is queued and the objects are
+ * deleted by the next call of processLeaks, which must be called on the
+ * thread owning the OpenGL context (e.g. once per frame).
+ * <p>
+ * With system property lwjglutils.debugResources=true the allocation stack
+ * trace of each leaked resource is printed.
+ */
+public final class OGLResourceTracker {
+	public static final int BUFFER = 0, TEXTURE = 1, FRAMEBUFFER = 2, PROGRAM = 3;
+	public static final boolean DEBUG = Boolean.getBoolean("lwjglutils.debugResources");
+
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	// handles must stay strongly reachable until processed
+	private static final Set<Handle> live = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+	private static long leaked = 0;
+
+	private OGLResourceTracker() {
+	}
+
+	/**
+	 * OpenGL objects owned by one resource, must not reference the resource
+	 */
+	public static final class Handle extends PhantomReference<Object> {
+		private final String type;
+		private final Throwable allocation;
+		// kind << 32 | id -> bytes
+		private final Map<Long, Long> objects = new LinkedHashMap<>();
+		private boolean closed = false;
+
+		private Handle(Object owner, String type) {
+			super(owner, queue);
+			this.type = type;
+			this.allocation = DEBUG ? new Throwable(type + " allocated") : null;
+		}
+
+		/**
+		 * Add object or update its size
+		 *
+		 * @param kind
+		 *            BUFFER, TEXTURE, FRAMEBUFFER or PROGRAM
+		 * @param id
+		 *            OpenGL name of the object
+		 * @param bytes
+		 *            estimated GPU memory of the object
+		 */
+		public synchronized void add(int kind, int id, long bytes) {
+			if (id != 0)
+				objects.put(((long) kind << 32) | id, bytes);
+		}
+
+		/**
+		 * Delete the object now and stop tracking it
+		 *
+		 * @param kind
+		 *            BUFFER, TEXTURE, FRAMEBUFFER or PROGRAM
+		 * @param id
+		 *            OpenGL name of the object
+		 */
+		public synchronized void delete(int kind, int id) {
+			if (objects.remove(((long) kind << 32) | id) != null)
+				deleteObject(kind, id);
+		}
+
+		/**
+		 * Delete all objects of the resource, repeated calls do nothing
+		 */
+		public void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				for (long key : objects.keySet())
+					deleteObject((int) (key >>> 32), (int) key);
+				objects.clear();
+			}
+			live.remove(this);
+			clear();
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public synchronized long getBytes() {
+			long sum = 0;
+			for (long bytes : objects.values())
+				sum += bytes;
+			return sum;
+		}
+	}
+
+	/**
+	 * Register resource
+	 *
+	 * @param owner
+	 *            resource object, its objects are deleted as leaked when it
+	 *            becomes unreachable before close
+	 * @param type
+	 *            name reported by the registry
+	 * @return handle to add objects to
+	 */
+	public static Handle register(Object owner, String type) {
+		Handle handle = new Handle(owner, type);
+		live.add(handle);
+		return handle;
+	}
+
+	/**
+	 * Delete objects of resources garbage collected without being closed,
+	 * must be called on the OpenGL thread
+	 *
+	 * @return number of leaked resources processed
+	 */
+	public static int processLeaks() {
+		int count = 0;
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null) {
+			Handle handle = (Handle) reference;
+			if (handle.isClosed())
+				continue;
+			count++;
+			leaked++;
+			System.err.println("Leaked " + handle.getType() + " (" + handle.getBytes()
+					+ " B) deleted, close() was not called");
+			if (handle.allocation != null)
+				handle.allocation.printStackTrace();
+			handle.close();
+		}
+		return count;
+	}
+
+	private static void deleteObject(int kind, int id) {
+		OGLState state = OGLState.get();
+		switch (kind) {
+		case BUFFER:
+			state.deleteBuffer(id);
+			break;
+		case TEXTURE:
+			state.deleteTexture(id);
+			break;
+		case FRAMEBUFFER:
+			glDeleteFramebuffers(id);
+			break;
+		case PROGRAM:
+			state.deleteProgram(id);
+			break;
+		}
+	}
+
+	/**
+	 * Estimate size of texel in GPU memory
+	 *
+	 * @param internalFormat
+	 *            internal format of texture
+	 * @return bytes per texel
+	 */
+	public static int bytesPerTexel(int internalFormat) {
+		switch (internalFormat) {
+		case GL_RED:
+		case GL_R8:
+			return 1;
+		case GL_RG:
+		case GL_RG8:
+		case GL_R16F:
+			return 2;
+		case GL_RGBA16F:
+		case GL_RGB16F:
+		case GL_RG32F:
+			return 8;
+		case GL_RGBA32F:
+		case GL_RGB32F:
+			return 16;
+		default:
+			// RGB(A)8, R32F, RG16F and depth formats, RGB is padded by drivers
+			return 4;
+		}
+	}
+
+	public static int getLiveCount() {
+		return live.size();
+	}
+
+	public static long getLiveBytes() {
+		long sum = 0;
+		for (Handle handle : live)
+			sum += handle.getBytes();
+		return sum;
+	}
+
+	public static int getLiveCount(String type) {
+		int count = 0;
+		for (Handle handle : live)
+			if (handle.getType().equals(type))
+				count++;
+		return count;
+	}
+
+	public static long getLiveBytes(String type) {
+		long sum = 0;
+		for (Handle handle : live)
+			if (handle.getType().equals(type))
+				sum += handle.getBytes();
+		return sum;
+	}
+
+	/**
+	 * @return number of leaked resources deleted so far
+	 */
+	public static long getLeakedCount() {
+		return leaked;
+	}
+
+	/**
+	 * @return counts and bytes of live resources per type
+	 */
+	public static String report() {
+		Map<String, long[]> types = new TreeMap<>();
+		List<Handle> handles = new ArrayList<>(live);
+		for (Handle handle : handles) {
+			long[] stats = types.get(handle.getType());
+			if (stats == null)
+				types.put(handle.getType(), stats = new long[2]);
+			stats[0]++;
+			stats[1] += handle.getBytes();
+		}
+		String text = String.format(Locale.US, "OGLResourceTracker: live: %d, %.1f MB, leaked: %d",
+				handles.size(), getLiveBytes() / 1048576.0, leaked);
+		for (Map.Entry<String, long[]> type : types.entrySet())
+			text += String.format(Locale.US, "\n\t%s: %d, %.1f MB", type.getKey(), type.getValue()[0],
+					type.getValue()[1] / 1048576.0);
+		return text;
+	}
+}
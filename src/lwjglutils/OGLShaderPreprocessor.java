@@ -0,0 +1,242 @@
+package lwjglutils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Preprocessing of GLSL sources before compilation: resolves
+ * <code>#include "file"</code> directives and injects <code>#define</code>
+ * lines after <code>#version</code>. Conditional compilation is left to the
+ * GLSL compiler, defines only switch between the #ifdef blocks of a source.
+ * <p>
+ * Included names starting with '/' are absolute resource names, other names
+ * are relative to the directory of the including file. Every #include is
+ * expanded, since conditional compilation is left to the GLSL compiler and
+ * the same file may be included in both branches of an #ifdef; included files
+ * use their own #ifndef guards against repeated declarations. Recursive
+ * includes are errors, the #version line of included files is dropped. The
+ * output contains <code>#line</code> directives, the source string number of a
+ * line is the index of its file in getSourceNames, so compiler messages point
+ * to the original file and line.
+ * <p>
+ * Files are classpath resources unless a source directory is given, e.g.
+ * "res" to read edited shaders before they are copied to the classpath.
+ */
+public class OGLShaderPreprocessor {
+	private final Map<String, String> defines = new LinkedHashMap<>();
+	private final List<String> sourceNames = new ArrayList<>();
+	// normalized names of the files being included, for recursion
+	private final Set<String> including = new HashSet<>();
+	private final Path sourceDirectory;
+
+	/**
+	 * Create preprocessor reading classpath resources
+	 */
+	public OGLShaderPreprocessor() {
+		this(null);
+	}
+
+	/**
+	 * @param sourceDirectory
+	 *            directory the resource names are resolved in or null for the
+	 *            classpath
+	 */
+	public OGLShaderPreprocessor(Path sourceDirectory) {
+		this.sourceDirectory = sourceDirectory;
+	}
+
+	/**
+	 * Add define without value
+	 *
+	 * @param name
+	 *            macro name
+	 * @return this preprocessor
+	 */
+	public OGLShaderPreprocessor define(String name) {
+		return define(name, "");
+	}
+
+	/**
+	 * Add define
+	 *
+	 * @param name
+	 *            macro name
+	 * @param value
+	 *            replacement text
+	 * @return this preprocessor
+	 */
+	public OGLShaderPreprocessor define(String name, String value) {
+		if (!name.matches("[A-Za-z_][A-Za-z0-9_]*"))
+			throw new IllegalArgumentException("Invalid macro name '" + name + "'.");
+		defines.put(name, value);
+		return this;
+	}
+
+	/**
+	 * @return defines in the order of definition
+	 */
+	public Map<String, String> getDefines() {
+		return Collections.unmodifiableMap(defines);
+	}
+
+	/**
+	 * Read and preprocess shader file
+	 *
+	 * @param shaderFileName
+	 *            resource name of the shader
+	 * @return processed lines
+	 * @throws IOException
+	 *             if the file or an included file cannot be read
+	 */
+	public String[] process(String shaderFileName) throws IOException {
+		return process(read(shaderFileName), shaderFileName);
+	}
+
+	/**
+	 * Preprocess shader source
+	 *
+	 * @param lines
+	 *            GLSL source
+	 * @param shaderFileName
+	 *            resource name the includes are relative to
+	 * @return processed lines
+	 * @throws IOException
+	 *             if an included file cannot be read
+	 */
+	public String[] process(String[] lines, String shaderFileName) throws IOException {
+		sourceNames.clear();
+		including.clear();
+		List<String> output = new ArrayList<>();
+		including.add(normalize(shaderFileName));
+		sourceNames.add(shaderFileName);
+		boolean injected = false;
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i];
+			if (!injected && line.trim().startsWith("#version")) {
+				output.add(line);
+				addDefines(output, i + 2);
+				injected = true;
+			} else if (isInclude(line)) {
+				if (!injected) {
+					addDefines(output, i + 1);
+					injected = true;
+				}
+				include(output, line, shaderFileName);
+				output.add("#line " + (i + 2) + " 0");
+			} else {
+				output.add(line);
+			}
+		}
+		if (!injected && !defines.isEmpty()) {
+			List<String> header = new ArrayList<>();
+			addDefines(header, 1);
+			output.addAll(0, header);
+		}
+		return output.toArray(new String[0]);
+	}
+
+	/**
+	 * @return names of the processed file and its includes, indexed by the
+	 *         source string numbers of the #line directives
+	 */
+	public List<String> getSourceNames() {
+		return Collections.unmodifiableList(sourceNames);
+	}
+
+	private void addDefines(List<String> output, int nextLine) {
+		if (defines.isEmpty())
+			return;
+		for (Map.Entry<String, String> define : defines.entrySet())
+			output.add("#define " + define.getKey() + (define.getValue().isEmpty() ? "" : " " + define.getValue()));
+		output.add("#line " + nextLine + " 0");
+	}
+
+	private static boolean isInclude(String line) {
+		String trimmed = line.trim();
+		return trimmed.startsWith("#include");
+	}
+
+	private void include(List<String> output, String directive, String parentFileName) throws IOException {
+		String argument = directive.trim().substring("#include".length()).trim();
+		if (argument.length() < 2 || argument.charAt(0) != '"' || argument.indexOf('"', 1) < 0)
+			throw new IOException("Invalid directive in " + parentFileName + ": " + directive.trim());
+		String name = argument.substring(1, argument.indexOf('"', 1));
+		String fileName = name.startsWith("/") ? name
+				: parentFileName.substring(0, parentFileName.lastIndexOf('/') + 1) + name;
+		if (!including.add(normalize(fileName)))
+			throw new IOException("Recursive include of " + fileName + " in " + parentFileName + ".");
+
+		// a file included repeatedly keeps its source string number
+		int source = -1;
+		for (int i = 0; i < sourceNames.size() && source < 0; i++)
+			if (normalize(sourceNames.get(i)).equals(normalize(fileName)))
+				source = i;
+		if (source < 0) {
+			source = sourceNames.size();
+			sourceNames.add(fileName);
+		}
+		String[] lines = read(fileName);
+		output.add("#line 1 " + source);
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i];
+			if (line.trim().startsWith("#version")) {
+				output.add("");
+			} else if (isInclude(line)) {
+				include(output, line, fileName);
+				output.add("#line " + (i + 2) + " " + source);
+			} else {
+				output.add(line);
+			}
+		}
+		including.remove(normalize(fileName));
+	}
+
+	/**
+	 * Resource name without leading slash and dot segments, the identity of
+	 * included files
+	 */
+	static String normalize(String fileName) {
+		List<String> segments = new ArrayList<>();
+		for (String segment : fileName.split("/")) {
+			if (segment.isEmpty() || segment.equals("."))
+				continue;
+			if (segment.equals("..") && !segments.isEmpty())
+				segments.remove(segments.size() - 1);
+			else
+				segments.add(segment);
+		}
+		return String.join("/", segments);
+	}
+
+	/**
+	 * Read file from the source directory or the classpath
+	 *
+	 * @param fileName
+	 *            resource name
+	 * @return lines of the file
+	 * @throws IOException
+	 *             if the file does not exist or cannot be read
+	 */
+	public String[] read(String fileName) throws IOException {
+		if (sourceDirectory != null)
+			return Files.readAllLines(sourceDirectory.resolve(normalize(fileName)), StandardCharsets.UTF_8)
+					.toArray(new String[0]);
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = ResourceUtils.openReader("/" + normalize(fileName))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		}
+		return lines.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,305 @@
+package lwjglutils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntConsumer;
+
+import static org.lwjgl.opengl.GL20.glGetUniformLocation;
+
+/**
+ * Shader files compiled into variants selected by defines, e.g. TEXTURED or
+ * INSTANCED, instead of hand-written copies of one shader. Sources are run
+ * through OGLShaderPreprocessor with the defines of the variant, a variant is
+ * compiled when it is first requested and cached by the set of its defines,
+ * so switching a feature selects an already linked program.
+ * <p>
+ * Defines are names or NAME=VALUE, their order does not matter.
+ * <p>
+ * Variants are replaced by reload, e.g. by OGLShaderWatcher, so the program
+ * ids must not be kept across frames; get returns the current ones and
+ * getUniformLocation caches locations until the variant is replaced.
+ *
+ * <pre>
+ * OGLShaderProgram model = new OGLShaderProgram("/shaders/model",
+ * 		program -&gt; OGLUniformBuffer.bindBlock(program, "Camera", 0));
+ * int shaderProgram = model.get(textured ? "TEXTURED" : null);
+ * </pre>
+ */
+public class OGLShaderProgram implements AutoCloseable {
+	private final String shaderFileName;
+	private final IntConsumer initializer;
+	// sorted defines of variant -> program
+	private final Map<List<String>, CompletableFuture<Integer>> variants = new HashMap<>();
+	// variant -> uniform name -> location
+	private final Map<List<String>, Map<String, Integer>> locations = new HashMap<>();
+	// files of all variants including includes, normalized resource names
+	private final Set<String> sourceNames = new HashSet<>();
+	private Path sourceDirectory;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLShaderProgram");
+
+	/**
+	 * @param shaderFileName
+	 *            full path name of shader files without file extension, the
+	 *            stages are found as by ShaderUtils.loadProgram(String)
+	 */
+	public OGLShaderProgram(String shaderFileName) {
+		this(shaderFileName, shaderProgram -> {});
+	}
+
+	/**
+	 * @param shaderFileName
+	 *            full path name of shader files without file extension, the
+	 *            stages are found as by ShaderUtils.loadProgram(String)
+	 * @param initializer
+	 *            called with each new variant in use after linking, e.g. to
+	 *            bind uniform blocks and set constant uniforms
+	 */
+	public OGLShaderProgram(String shaderFileName, IntConsumer initializer) {
+		this.shaderFileName = shaderFileName;
+		this.initializer = initializer;
+	}
+
+	/**
+	 * Get variant, compiled now if requested first time
+	 *
+	 * @param defines
+	 *            defines of the variant, null elements are ignored
+	 * @return shader program id
+	 * @throws IllegalStateException
+	 *             if the variant is compiled by a batch not finished yet
+	 */
+	public int get(String... defines) {
+		List<String> key = key(defines);
+		CompletableFuture<Integer> variant = variants.get(key);
+		if (variant == null) {
+			int shaderProgram = ShaderUtils.loadProgram(preprocess(key));
+			if (shaderProgram <= 0)
+				throw new RuntimeException("Variant " + key + " of " + shaderFileName + " not compiled.");
+			variant = CompletableFuture.completedFuture(initialize(shaderProgram));
+			variants.put(key, variant);
+		}
+		if (!variant.isDone())
+			throw new IllegalStateException("Variant " + key + " of " + shaderFileName + " is being compiled.");
+		return variant.join();
+	}
+
+	/**
+	 * Get uniform location of variant, cached until the variant is replaced
+	 *
+	 * @param name
+	 *            uniform name
+	 * @param defines
+	 *            defines of the variant, null elements are ignored
+	 * @return location or -1 if the uniform is not active
+	 */
+	public int getUniformLocation(String name, String... defines) {
+		int shaderProgram = get(defines);
+		List<String> key = key(defines);
+		Map<String, Integer> variant = locations.get(key);
+		if (variant == null) {
+			variant = new HashMap<>();
+			locations.put(key, variant);
+		}
+		Integer location = variant.get(name);
+		if (location == null) {
+			location = glGetUniformLocation(shaderProgram, name);
+			variant.put(name, location);
+		}
+		return location;
+	}
+
+	/**
+	 * Submit variant into batch, e.g. to compile the variants used by the
+	 * first frame in parallel
+	 *
+	 * @param batch
+	 *            batch compiling the variant
+	 * @param defines
+	 *            defines of the variant, null elements are ignored
+	 * @return future shader program id
+	 */
+	public CompletableFuture<Integer> compile(OGLProgramBatch batch, String... defines) {
+		List<String> key = key(defines);
+		CompletableFuture<Integer> variant = variants.get(key);
+		if (variant == null) {
+			variant = batch.add(preprocess(key), ShaderUtils.NO_LINK_SETUP).thenApply(this::initialize);
+			variants.put(key, variant);
+		}
+		return variant;
+	}
+
+	/**
+	 * Compile all variants again from the current sources, each variant is
+	 * replaced when it is linked and the previous program is deleted, a
+	 * variant failing to compile keeps its previous program
+	 *
+	 * @param batch
+	 *            batch compiling the variants
+	 * @return future completed when all variants are linked or failed, with
+	 *         null or the compiler log of the failed variants
+	 */
+	public CompletableFuture<String> reload(OGLProgramBatch batch) {
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (Map.Entry<List<String>, CompletableFuture<Integer>> variant : new ArrayList<>(variants.entrySet())) {
+			if (!variant.getValue().isDone())
+				continue;
+			List<String> key = variant.getKey();
+			String[][] shaderSrcArray;
+			try {
+				shaderSrcArray = preprocess(key);
+			} catch (RuntimeException e) {
+				results.add(CompletableFuture.completedFuture(e.getMessage()));
+				continue;
+			}
+			results.add(batch.add(shaderSrcArray, ShaderUtils.NO_LINK_SETUP).handle((shaderProgram, error) -> {
+				if (error != null) {
+					Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+					return "Variant " + key + " of " + shaderFileName + ": " + cause.getMessage();
+				}
+				swap(key, shaderProgram);
+				return null;
+			}));
+		}
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			StringBuilder log = new StringBuilder();
+			for (CompletableFuture<String> result : results) {
+				String error = result.join();
+				if (error != null)
+					log.append(log.length() > 0 ? "\n" : "").append(error);
+			}
+			return log.length() > 0 ? log.toString() : null;
+		});
+	}
+
+	private void swap(List<String> key, int shaderProgram) {
+		CompletableFuture<Integer> previous = variants.put(key, CompletableFuture.completedFuture(
+				initialize(shaderProgram)));
+		locations.remove(key);
+		if (previous != null && previous.isDone() && !previous.isCompletedExceptionally())
+			handle.delete(OGLResourceTracker.PROGRAM, previous.join());
+	}
+
+	private int initialize(int shaderProgram) {
+		handle.add(OGLResourceTracker.PROGRAM, shaderProgram, 0);
+		OGLState state = OGLState.get();
+		int previous = state.getProgram();
+		state.useProgram(shaderProgram);
+		initializer.accept(shaderProgram);
+		if (previous != OGLState.UNKNOWN)
+			state.useProgram(previous);
+		return shaderProgram;
+	}
+
+	/**
+	 * Sorted defines without duplicates, kept as list since values of the
+	 * form NAME=value may contain any separator
+	 */
+	private static List<String> key(String[] defines) {
+		TreeSet<String> sorted = new TreeSet<>();
+		for (String define : defines)
+			if (define != null)
+				sorted.add(define);
+		return Collections.unmodifiableList(new ArrayList<>(sorted));
+	}
+
+	private String[][] preprocess(List<String> key) {
+		String[] fileNames = ShaderUtils.getShaderFileNames(shaderFileName);
+		String[][] shaderSrcArray;
+		if (sourceDirectory == null) {
+			shaderSrcArray = ShaderUtils.readShaderSources(fileNames);
+		} else {
+			shaderSrcArray = new String[fileNames.length][];
+			for (int i = 0; i < fileNames.length; i++) {
+				Path file = sourceDirectory.resolve(OGLShaderPreprocessor.normalize(fileNames[i]));
+				try {
+					if (Files.isRegularFile(file))
+						shaderSrcArray[i] = new OGLShaderPreprocessor(sourceDirectory).read(fileNames[i]);
+				} catch (IOException e) {
+					throw new RuntimeException("Shader " + file + " not read: " + e.getMessage(), e);
+				}
+			}
+		}
+		for (int i = 0; i < shaderSrcArray.length; i++) {
+			if (shaderSrcArray[i] == null)
+				continue;
+			OGLShaderPreprocessor preprocessor = new OGLShaderPreprocessor(sourceDirectory);
+			for (String define : key) {
+				int equals = define.indexOf('=');
+				if (equals < 0)
+					preprocessor.define(define);
+				else
+					preprocessor.define(define.substring(0, equals), define.substring(equals + 1));
+			}
+			try {
+				shaderSrcArray[i] = preprocessor.process(shaderSrcArray[i], fileNames[i]);
+				for (String name : preprocessor.getSourceNames())
+					sourceNames.add(OGLShaderPreprocessor.normalize(name));
+			} catch (IOException e) {
+				throw new RuntimeException("Shader " + fileNames[i] + " not preprocessed: " + e.getMessage(), e);
+			}
+		}
+		return shaderSrcArray;
+	}
+
+	/**
+	 * @return defines of the variants compiled or being compiled, joined by
+	 *         commas for display
+	 */
+	public String[] getVariants() {
+		String[] keys = new String[variants.size()];
+		int i = 0;
+		for (List<String> key : variants.keySet())
+			keys[i++] = String.join(",", key);
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Read the sources of following compilations from directory instead of
+	 * the classpath
+	 *
+	 * @param sourceDirectory
+	 *            directory the resource names are resolved in, e.g. "res", or
+	 *            null for the classpath
+	 */
+	public void setSourceDirectory(Path sourceDirectory) {
+		this.sourceDirectory = sourceDirectory;
+	}
+
+	/**
+	 * @return resource names without leading slash of the files read by the
+	 *         variants, including included files
+	 */
+	public Set<String> getSourceNames() {
+		return Collections.unmodifiableSet(sourceNames);
+	}
+
+	public String getShaderFileName() {
+		return shaderFileName;
+	}
+
+	@Override
+	public String toString() {
+		return "OGLShaderProgram " + shaderFileName + ", variants " + Arrays.toString(getVariants());
+	}
+
+	/**
+	 * Delete all variants, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
+}
@@ -0,0 +1,186 @@
+package lwjglutils;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Hot reload of shaders: watches the source directory of the resources, e.g.
+ * "res", and recompiles the OGLShaderProgram variants reading a changed file,
+ * including files included by them. Compilation runs in an OGLProgramBatch
+ * polled by update, so with parallel shader compilation the frames are not
+ * stalled; a variant is swapped when it links, a failing variant keeps its
+ * previous program and the compiler log is returned by getErrors.
+ * <p>
+ * Watched programs read their sources from the directory from then on, not
+ * from the classpath. Call update at the beginning of each frame, before the
+ * programs are requested:
+ *
+ * <pre>
+ * OGLShaderWatcher watcher = new OGLShaderWatcher("res");
+ * watcher.watch(modelShader);
+ * ...
+ * watcher.update();
+ * if (watcher.getErrors() != null)
+ * 	text.addStr2D(3, 50, watcher.getErrors());
+ * </pre>
+ */
+public class OGLShaderWatcher implements AutoCloseable {
+	// editors write files in several steps
+	private static final long QUIET_NANOS = 100_000_000L;
+
+	private final Path directory;
+	private final WatchService service;
+	private final Map<WatchKey, Path> keys = new HashMap<>();
+	private final List<OGLShaderProgram> programs = new ArrayList<>();
+	// resource names changed since the last reload
+	private final Set<String> changed = new HashSet<>();
+	private final List<CompletableFuture<String>> reloads = new ArrayList<>();
+	private OGLProgramBatch batch;
+	private long lastEvent;
+	private String errors;
+
+	/**
+	 * @param directoryName
+	 *            directory of the resources, watched with all subdirectories
+	 * @throws IOException
+	 *             if the directory does not exist or cannot be watched
+	 */
+	public OGLShaderWatcher(String directoryName) throws IOException {
+		directory = Paths.get(directoryName).toAbsolutePath().normalize();
+		if (!Files.isDirectory(directory))
+			throw new IOException("Not a directory: " + directory);
+		service = directory.getFileSystem().newWatchService();
+		register(directory);
+	}
+
+	private void register(Path root) throws IOException {
+		try (Stream<Path> tree = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) tree::iterator)
+				if (Files.isDirectory(path))
+					keys.put(path.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY), path);
+		}
+	}
+
+	/**
+	 * Reload variants of the program when its sources change
+	 */
+	public void watch(OGLShaderProgram program) {
+		program.setSourceDirectory(directory);
+		programs.add(program);
+	}
+
+	/**
+	 * Collect changes, start recompilation of changed programs and complete
+	 * finished ones; does not wait for the compiler
+	 *
+	 * @return true if a reload finished, the variants of programs may have
+	 *         been replaced
+	 */
+	public boolean update() {
+		poll();
+		if (!changed.isEmpty() && System.nanoTime() - lastEvent > QUIET_NANOS) {
+			if (batch == null)
+				batch = new OGLProgramBatch();
+			for (OGLShaderProgram program : programs) {
+				if (!program.getSourceNames().stream().anyMatch(changed::contains))
+					continue;
+				System.out.println("Reloading " + program.getShaderFileName());
+				reloads.add(program.reload(batch));
+			}
+			changed.clear();
+		}
+		if (batch == null || reloads.isEmpty())
+			return false;
+
+		batch.poll();
+		boolean finished = false;
+		StringBuilder log = new StringBuilder();
+		for (Iterator<CompletableFuture<String>> iterator = reloads.iterator(); iterator.hasNext();) {
+			CompletableFuture<String> reload = iterator.next();
+			if (!reload.isDone())
+				continue;
+			iterator.remove();
+			finished = true;
+			String error = reload.join();
+			if (error != null)
+				log.append(log.length() > 0 ? "\n" : "").append(error);
+		}
+		if (finished)
+			errors = log.length() > 0 ? log.toString() : null;
+		return finished;
+	}
+
+	private void poll() {
+		WatchKey key;
+		try {
+			while ((key = service.poll()) != null) {
+				Path parent = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events lost, all programs are reloaded
+						for (OGLShaderProgram program : programs)
+							changed.addAll(program.getSourceNames());
+						continue;
+					}
+					Path path = parent.resolve((Path) event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+						try {
+							register(path);
+						} catch (IOException e) {
+							System.err.println("Shader directory " + path + " not watched: " + e.getMessage());
+						}
+					}
+					changed.add(directory.relativize(path).toString().replace('\\', '/'));
+					lastEvent = System.nanoTime();
+				}
+				if (!key.reset())
+					keys.remove(key);
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed, nothing to watch
+		}
+	}
+
+	/**
+	 * @return compiler log of the variants failed in the last finished reload
+	 *         or null if they all linked
+	 */
+	public String getErrors() {
+		return errors;
+	}
+
+	@Override
+	public String toString() {
+		return "OGLShaderWatcher " + directory + ", " + programs.size() + " programs, " + reloads.size()
+				+ " reloads pending" + (errors != null ? ", errors" : "");
+	}
+
+	/**
+	 * Stop watching, the programs keep their current variants
+	 */
+	@Override
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			System.err.println("Shader watch service not closed: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package lwjglutils;
+
+import transforms.Mat4;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Sky drawn as one triangle covering the screen at the far plane, each pixel
+ * samples the cube map in the direction of its view ray. Drawn after opaque
+ * geometry with depth test LEQUAL and without depth writes, only pixels not
+ * covered by the scene are shaded.
+ * <p>
+ * World space is z-up as in transforms.Camera, the cube map is y-up.
+ */
+public class OGLSkybox implements AutoCloseable {
+
+	private static final String[] SHADER_VERT_SRC = {
+			"#version 330\n",
+			"in vec2 inPosition;",
+			"uniform mat4 skyView;",
+			"uniform mat4 skyProj;",
+			"out vec3 direction;",
+			"void main() {",
+			"	vec4 ray = inverse(skyProj) * vec4(inPosition, 1.0, 1.0);",
+			"	direction = inverse(mat3(skyView)) * (ray.xyz / ray.w);",
+			"	gl_Position = vec4(inPosition, 1.0, 1.0);",
+			"}"
+		};
+
+	private static final String[] SHADER_FRAG_SRC = {
+			"#version 330\n",
+			"in vec3 direction;",
+			"out vec4 outColor;",
+			"uniform samplerCube skybox;",
+			"void main() {",
+			"	outColor = texture(skybox, direction.xzy);",
+			"}"
+		};
+
+	private final OGLTextureCube texture;
+	private final OGLBuffers buffers;
+	private final int shaderProgram;
+	private final int locView, locProj;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLSkybox");
+
+	/**
+	 * @param texture
+	 *            cube map of the sky, closed with the skybox
+	 */
+	public OGLSkybox(OGLTextureCube texture) {
+		this.texture = texture;
+		float[] vertices = { -1, -1, 3, -1, -1, 3 };
+		buffers = new OGLBuffers(vertices, new OGLBuffers.Attrib[] { new OGLBuffers.Attrib("inPosition", 2) },
+				new int[] { 0, 1, 2 });
+		shaderProgram = ShaderUtils.loadProgram(SHADER_VERT_SRC, SHADER_FRAG_SRC, null, null, null, null);
+		handle.add(OGLResourceTracker.PROGRAM, shaderProgram, 0);
+		locView = glGetUniformLocation(shaderProgram, "skyView");
+		locProj = glGetUniformLocation(shaderProgram, "skyProj");
+	}
+
+	/**
+	 * Set camera of the following draws, the translation of the view is
+	 * ignored
+	 */
+	public void setCamera(Mat4 view, Mat4 proj) {
+		OGLState state = OGLState.get();
+		int previous = state.getProgram();
+		state.useProgram(shaderProgram);
+		glUniformMatrix4fv(locView, false, ToFloatArray.convert(view));
+		glUniformMatrix4fv(locProj, false, ToFloatArray.convert(proj));
+		if (previous != OGLState.UNKNOWN)
+			state.useProgram(previous);
+	}
+
+	/**
+	 * Add the sky into the sky pass of the queue
+	 */
+	public void submit(OGLRenderQueue queue) {
+		queue.submit(buffers, GL_TRIANGLES, shaderProgram, texture, "skybox", -1, 0, OGLRenderQueue.PASS_SKY);
+	}
+
+	/**
+	 * Draw the sky immediately, must follow the opaque geometry
+	 */
+	public void draw() {
+		OGLState.get().useProgram(shaderProgram);
+		texture.bind(shaderProgram, "skybox", 0);
+		glDepthFunc(GL_LEQUAL);
+		glDepthMask(false);
+		buffers.draw(GL_TRIANGLES, shaderProgram);
+		glDepthMask(true);
+		glDepthFunc(GL_LESS);
+	}
+
+	public OGLTextureCube getTexture() {
+		return texture;
+	}
+
+	public int getShaderProgram() {
+		return shaderProgram;
+	}
+
+	/**
+	 * Delete the program, buffers and cube map
+	 */
+	@Override
+	public void close() {
+		handle.close();
+		buffers.close();
+		texture.close();
+	}
+}
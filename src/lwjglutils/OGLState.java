@@ -0,0 +1,406 @@
+package lwjglutils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Shadow copy of the OpenGL state that skips redundant state changes. All
+ * lwjglutils classes change bound program, textures, buffers, vertex array,
+ * viewport and enable flags through the current instance so that a call is
+ * issued only when the value really differs. Values changed behind the back
+ * of the cache (e.g. by glPopAttrib) have to be invalidated.
+ * <p>
+ * The bookkeeping is independent of the GL context, the calls are issued by a
+ * Backend, which can be replaced e.g. by a recording implementation in tests.
+ */
+public class OGLState {
+	public static final int UNKNOWN = -1;
+	public static final int MAX_TEXTURE_UNITS = 32;
+	public static final int MAX_BUFFER_BINDINGS = 36;
+
+	private static final int[] TEXTURE_TARGETS = { GL_TEXTURE_1D, GL_TEXTURE_2D, GL_TEXTURE_3D,
+			GL_TEXTURE_CUBE_MAP, GL_TEXTURE_2D_ARRAY, GL_TEXTURE_RECTANGLE };
+	private static final int[] BUFFER_TARGETS = { GL_ARRAY_BUFFER, GL_ELEMENT_ARRAY_BUFFER, GL_UNIFORM_BUFFER,
+			GL_PIXEL_PACK_BUFFER, GL_PIXEL_UNPACK_BUFFER, GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER,
+			GL_TEXTURE_BUFFER, 0x8F3F /* GL_DRAW_INDIRECT_BUFFER */ };
+	private static final int[] CAPABILITIES = { GL_DEPTH_TEST, GL_BLEND, GL_CULL_FACE, GL_SCISSOR_TEST,
+			GL_STENCIL_TEST, GL_POLYGON_OFFSET_FILL, GL_MULTISAMPLE, GL_FRAMEBUFFER_SRGB, GL_PROGRAM_POINT_SIZE,
+			GL_TEXTURE_2D, GL_TEXTURE_3D, GL_TEXTURE_CUBE_MAP };
+	private static final int[] TEXTURE_PARAMETERS = { GL_TEXTURE_WRAP_S, GL_TEXTURE_WRAP_T, GL_TEXTURE_WRAP_R,
+			GL_TEXTURE_MIN_FILTER, GL_TEXTURE_MAG_FILTER, GL_TEXTURE_BASE_LEVEL, GL_TEXTURE_MAX_LEVEL };
+
+	/**
+	 * Issues the OpenGL calls of the state changes that were not skipped
+	 */
+	public interface Backend {
+		void useProgram(int program);
+		void activeTexture(int texture);
+		void bindTexture(int target, int texture);
+		void bindBuffer(int target, int buffer);
+		void bindBufferRange(int target, int index, int buffer, long offset, long size);
+		void bindVertexArray(int array);
+		void viewport(int x, int y, int width, int height);
+		void enable(int capability);
+		void disable(int capability);
+		void texParameteri(int target, int name, int value);
+		void deleteProgram(int program);
+		void deleteTexture(int texture);
+		void deleteBuffer(int buffer);
+	}
+
+	static class GLBackend implements Backend {
+		@Override public void useProgram(int program) { glUseProgram(program); }
+		@Override public void activeTexture(int texture) { glActiveTexture(texture); }
+		@Override public void bindTexture(int target, int texture) { glBindTexture(target, texture); }
+		@Override public void bindBuffer(int target, int buffer) { glBindBuffer(target, buffer); }
+		@Override public void bindBufferRange(int target, int index, int buffer, long offset, long size) {
+			if (size < 0)
+				glBindBufferBase(target, index, buffer);
+			else
+				glBindBufferRange(target, index, buffer, offset, size);
+		}
+		@Override public void bindVertexArray(int array) { glBindVertexArray(array); }
+		@Override public void viewport(int x, int y, int width, int height) { glViewport(x, y, width, height); }
+		@Override public void enable(int capability) { glEnable(capability); }
+		@Override public void disable(int capability) { glDisable(capability); }
+		@Override public void texParameteri(int target, int name, int value) { glTexParameteri(target, name, value); }
+		@Override public void deleteProgram(int program) { glDeleteProgram(program); }
+		@Override public void deleteTexture(int texture) { glDeleteTextures(texture); }
+		@Override public void deleteBuffer(int buffer) { glDeleteBuffers(buffer); }
+	}
+
+	private static OGLState current;
+
+	private final Backend backend;
+	private int program;
+	private int activeUnit;
+	private final int[] textures = new int[MAX_TEXTURE_UNITS * TEXTURE_TARGETS.length];
+	private final int[] buffers = new int[BUFFER_TARGETS.length];
+	private final int[] indexedBuffers = new int[MAX_BUFFER_BINDINGS];
+	private final long[] indexedOffsets = new long[MAX_BUFFER_BINDINGS];
+	private final long[] indexedSizes = new long[MAX_BUFFER_BINDINGS];
+	private int vertexArray;
+	private final int[] viewport = new int[4];
+	private final int[] capabilities = new int[CAPABILITIES.length];
+	private int[][] textureParameters = new int[64][];
+	private long issued, skipped;
+
+	/**
+	 * Get state cache of the current GL context
+	 *
+	 * @return state cache issuing the calls by OpenGL
+	 */
+	public static OGLState get() {
+		if (current == null)
+			current = new OGLState(new GLBackend());
+		return current;
+	}
+
+	public OGLState(Backend backend) {
+		this.backend = backend;
+		invalidate();
+	}
+
+	/**
+	 * Forget all cached values, following calls are issued unconditionally
+	 */
+	public void invalidate() {
+		program = UNKNOWN;
+		activeUnit = UNKNOWN;
+		Arrays.fill(textures, UNKNOWN);
+		Arrays.fill(buffers, UNKNOWN);
+		Arrays.fill(indexedBuffers, UNKNOWN);
+		vertexArray = UNKNOWN;
+		Arrays.fill(viewport, UNKNOWN);
+		invalidateCapabilities();
+		Arrays.fill(textureParameters, null);
+	}
+
+	/**
+	 * Forget cached enable flags, e.g. after glPopAttrib
+	 */
+	public void invalidateCapabilities() {
+		Arrays.fill(capabilities, UNKNOWN);
+	}
+
+	public void useProgram(int program) {
+		if (this.program == program) {
+			skipped++;
+			return;
+		}
+		this.program = program;
+		issue();
+		backend.useProgram(program);
+	}
+
+	/**
+	 * @return id of the current shader program or UNKNOWN
+	 */
+	public int getProgram() {
+		return program;
+	}
+
+	/**
+	 * Select active texture unit
+	 *
+	 * @param texture
+	 *            GL_TEXTURE0 + unit
+	 */
+	public void activeTexture(int texture) {
+		int unit = texture - GL_TEXTURE0;
+		if (activeUnit == unit) {
+			skipped++;
+			return;
+		}
+		activeUnit = unit >= 0 && unit < MAX_TEXTURE_UNITS ? unit : UNKNOWN;
+		issue();
+		backend.activeTexture(texture);
+	}
+
+	public int getActiveUnit() {
+		return activeUnit;
+	}
+
+	public void bindTexture(int target, int texture) {
+		int index = textureIndex(activeUnit, target);
+		if (index >= 0) {
+			if (textures[index] == texture) {
+				skipped++;
+				return;
+			}
+			textures[index] = texture;
+		}
+		issue();
+		backend.bindTexture(target, texture);
+	}
+
+	/**
+	 * Bind texture to the texture unit, the unit becomes the active texture
+	 * unit even if the texture is already bound
+	 *
+	 * @param unit
+	 *            index of texture unit, starting from 0
+	 * @param target
+	 *            texture target, e.g. GL_TEXTURE_2D
+	 * @param texture
+	 *            id of the texture
+	 */
+	public void bindTexture(int unit, int target, int texture) {
+		activeTexture(GL_TEXTURE0 + unit);
+		bindTexture(target, texture);
+	}
+
+	public int getTexture(int unit, int target) {
+		int index = textureIndex(unit, target);
+		return index >= 0 ? textures[index] : UNKNOWN;
+	}
+
+	/**
+	 * Set parameter of the texture bound to the target of active texture unit
+	 */
+	public void texParameteri(int target, int name, int value) {
+		int index = textureIndex(activeUnit, target);
+		int parameter = indexOf(TEXTURE_PARAMETERS, name);
+		int texture = index >= 0 ? textures[index] : UNKNOWN;
+		if (parameter < 0 || texture < 0) {
+			issue();
+			backend.texParameteri(target, name, value);
+			return;
+		}
+		if (texture >= textureParameters.length)
+			textureParameters = Arrays.copyOf(textureParameters, Math.max(texture + 1, textureParameters.length * 2));
+		int[] parameters = textureParameters[texture];
+		if (parameters == null) {
+			parameters = new int[TEXTURE_PARAMETERS.length];
+			Arrays.fill(parameters, UNKNOWN);
+			textureParameters[texture] = parameters;
+		}
+		if (parameters[parameter] == value) {
+			skipped++;
+			return;
+		}
+		parameters[parameter] = value;
+		issue();
+		backend.texParameteri(target, name, value);
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		int index = indexOf(BUFFER_TARGETS, target);
+		if (index >= 0) {
+			if (buffers[index] == buffer) {
+				skipped++;
+				return;
+			}
+			buffers[index] = buffer;
+		}
+		issue();
+		backend.bindBuffer(target, buffer);
+	}
+
+	public int getBuffer(int target) {
+		int index = indexOf(BUFFER_TARGETS, target);
+		return index >= 0 ? buffers[index] : UNKNOWN;
+	}
+
+	/**
+	 * Bind range of buffer to the indexed binding point of the target, the
+	 * generic binding point of the target is changed too
+	 */
+	public void bindBufferRange(int target, int index, int buffer, long offset, long size) {
+		if (target == GL_UNIFORM_BUFFER && index >= 0 && index < MAX_BUFFER_BINDINGS) {
+			if (indexedBuffers[index] == buffer && indexedOffsets[index] == offset && indexedSizes[index] == size) {
+				skipped++;
+				return;
+			}
+			indexedBuffers[index] = buffer;
+			indexedOffsets[index] = offset;
+			indexedSizes[index] = size;
+		}
+		int generic = indexOf(BUFFER_TARGETS, target);
+		if (generic >= 0)
+			buffers[generic] = buffer;
+		issue();
+		backend.bindBufferRange(target, index, buffer, offset, size);
+	}
+
+	public void bindBufferBase(int target, int index, int buffer) {
+		bindBufferRange(target, index, buffer, 0, -1);
+	}
+
+	public void bindVertexArray(int array) {
+		if (vertexArray == array) {
+			skipped++;
+			return;
+		}
+		vertexArray = array;
+		// element array binding is part of the vertex array object state
+		buffers[indexOf(BUFFER_TARGETS, GL_ELEMENT_ARRAY_BUFFER)] = UNKNOWN;
+		issue();
+		backend.bindVertexArray(array);
+	}
+
+	public void viewport(int x, int y, int width, int height) {
+		if (viewport[0] == x && viewport[1] == y && viewport[2] == width && viewport[3] == height) {
+			skipped++;
+			return;
+		}
+		viewport[0] = x;
+		viewport[1] = y;
+		viewport[2] = width;
+		viewport[3] = height;
+		issue();
+		backend.viewport(x, y, width, height);
+	}
+
+	public void enable(int capability) {
+		setCapability(capability, true);
+	}
+
+	public void disable(int capability) {
+		setCapability(capability, false);
+	}
+
+	private void setCapability(int capability, boolean enabled) {
+		int index = indexOf(CAPABILITIES, capability);
+		if (index >= 0) {
+			int value = enabled ? 1 : 0;
+			if (capabilities[index] == value) {
+				skipped++;
+				return;
+			}
+			capabilities[index] = value;
+		}
+		issue();
+		if (enabled)
+			backend.enable(capability);
+		else
+			backend.disable(capability);
+	}
+
+	/**
+	 * @return 1 if the capability is enabled, 0 if disabled, UNKNOWN otherwise
+	 */
+	public int isEnabled(int capability) {
+		int index = indexOf(CAPABILITIES, capability);
+		return index >= 0 ? capabilities[index] : UNKNOWN;
+	}
+
+	public void deleteProgram(int program) {
+		if (this.program == program)
+			this.program = UNKNOWN;
+		issue();
+		backend.deleteProgram(program);
+	}
+
+	/**
+	 * Delete texture, bindings of the texture are reverted to zero as in
+	 * OpenGL
+	 */
+	public void deleteTexture(int texture) {
+		for (int i = 0; i < textures.length; i++)
+			if (textures[i] == texture)
+				textures[i] = 0;
+		if (texture >= 0 && texture < textureParameters.length)
+			textureParameters[texture] = null;
+		issue();
+		backend.deleteTexture(texture);
+	}
+
+	/**
+	 * Delete buffer, bindings of the buffer are reverted to zero as in OpenGL
+	 */
+	public void deleteBuffer(int buffer) {
+		for (int i = 0; i < buffers.length; i++)
+			if (buffers[i] == buffer)
+				buffers[i] = 0;
+		for (int i = 0; i < indexedBuffers.length; i++)
+			if (indexedBuffers[i] == buffer)
+				indexedBuffers[i] = 0;
+		issue();
+		backend.deleteBuffer(buffer);
+	}
+
+	/**
+	 * @return number of calls passed to the backend since the last reset
+	 */
+	public long getIssuedCount() {
+		return issued;
+	}
+
+	/**
+	 * @return number of redundant calls skipped since the last reset
+	 */
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	public void resetCounters() {
+		issued = 0;
+		skipped = 0;
+	}
+
+	private void issue() {
+		issued++;
+	}
+
+	private static int textureIndex(int unit, int target) {
+		if (unit < 0 || unit >= MAX_TEXTURE_UNITS)
+			return -1;
+		int index = indexOf(TEXTURE_TARGETS, target);
+		return index < 0 ? -1 : unit * TEXTURE_TARGETS.length + index;
+	}
+
+	private static int indexOf(int[] array, int value) {
+		for (int i = 0; i < array.length; i++)
+			if (array[i] == value)
+				return i;
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLState: issued: %d, skipped: %d", issued, skipped);
+	}
+}
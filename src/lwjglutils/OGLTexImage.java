@@ -2,7 +2,7 @@ package lwjglutils;
 
 import java.nio.Buffer;
 
-public interface OGLTexImage<OGLTexImageType> {
+public interface OGLTexImage<OGLTexImageType> extends AutoCloseable {
 	static interface Format<OGLTexImageType> {
 		int getInternalFormat();
 		int getPixelFormat();
@@ -20,4 +20,10 @@ public interface OGLTexImage<OGLTexImageType> {
 	<B extends Buffer> void setDataBuffer(B buffer);
 	<B extends Buffer> B getDataBuffer();
 	Format<OGLTexImageType> getFormat();
+
+	/**
+	 * Release memory owned by the image
+	 */
+	@Override
+	void close();
 }
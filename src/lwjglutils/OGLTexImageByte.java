@@ -5,12 +5,21 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Locale;
 
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL33.GL_RG;
 
-
+/**
+ * Byte image stored in a direct buffer, so that it is passed to OpenGL without
+ * copying. The data are allocated by the constructors and released by the
+ * garbage collector, images created by allocate or wrap with a free action
+ * own native memory which is released by close.
+ */
 public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
-	private byte[] data;
+	private ByteBuffer data;
+	private Runnable free;
 	private final int width, height, depth;
 	private final OGLTexImage.Format<OGLTexImageByte> format;
 
@@ -136,22 +145,67 @@ public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
 	}
 
 	public OGLTexImageByte(int width, int height, int depth, OGLTexImage.Format<OGLTexImageByte> format) {
-		this( width, height, depth, format, new byte[width * height * depth * format.getComponentCount()]);
+		this(width, height, depth, format,
+				BufferUtils.createByteBuffer(width * height * depth * format.getComponentCount()));
 	}
 
 	public OGLTexImageByte(int width, int height, OGLTexImage.Format<OGLTexImageByte> format) {
-		this( width, height, 1, format, new byte[width * height * format.getComponentCount()]);
+		this(width, height, 1, format);
 	}
 	public OGLTexImageByte(int width, int height, OGLTexImage.Format<OGLTexImageByte> format, byte[] data) {
 		this( width, height, 1, format, data);
 	}
 		
+	/**
+	 * Create image with copy of the array
+	 */
 	public OGLTexImageByte(int width, int height, int depth, OGLTexImage.Format<OGLTexImageByte> format, byte[] data) {
+		this(width, height, depth, format, BufferUtils.createByteBuffer(data.length).put(data));
+	}
+
+	/**
+	 * Create image viewing the buffer, no data are copied
+	 * 
+	 * @param data
+	 *            direct buffer, its content from position 0 is used
+	 */
+	public OGLTexImageByte(int width, int height, int depth, OGLTexImage.Format<OGLTexImageByte> format,
+			ByteBuffer data) {
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
 		this.format = format;
-		this.data = data;
+		int size = width * height * depth * format.getComponentCount();
+		if (data.capacity() < size)
+			throw new IllegalArgumentException("Buffer of " + data.capacity() + " B is smaller than the image.");
+		ByteBuffer view = data.duplicate();
+		view.clear().limit(size);
+		this.data = view.slice();
+	}
+
+	/**
+	 * Create zeroed image in native memory which must be released by close
+	 */
+	public static OGLTexImageByte allocate(int width, int height, int depth,
+			OGLTexImage.Format<OGLTexImageByte> format) {
+		ByteBuffer data = MemoryUtil.memCalloc(width * height * depth * format.getComponentCount());
+		return wrap(width, height, depth, format, data, () -> MemoryUtil.memFree(data));
+	}
+
+	/**
+	 * Create image viewing the buffer owned by the image
+	 * 
+	 * @param data
+	 *            direct buffer, its content from position 0 is used
+	 * @param free
+	 *            action releasing the buffer run by close, e.g. memFree
+	 * @return image owning the buffer
+	 */
+	public static OGLTexImageByte wrap(int width, int height, int depth, OGLTexImage.Format<OGLTexImageByte> format,
+			ByteBuffer data, Runnable free) {
+		OGLTexImageByte image = new OGLTexImageByte(width, height, depth, format, data);
+		image.free = free;
+		return image;
 	}
 
 	@Override
@@ -169,60 +223,58 @@ public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
 		return depth;
 	}
 
+	/**
+	 * Copy content of the buffer into the image, no memory is allocated
+	 */
 	@Override
 	public void setDataBuffer(Buffer buffer) {
-		if (buffer instanceof ByteBuffer && buffer.capacity() == width * height * depth * format.getComponentCount()) {
-			buffer.rewind();
-			data = new byte[buffer.capacity()];
-			((ByteBuffer) buffer).get(data);
+		if (buffer instanceof ByteBuffer && buffer.capacity() == data.capacity()) {
+			ByteBuffer source = ((ByteBuffer) buffer).duplicate();
+			source.clear();
+			getDataBuffer().put(source);
 		}
 	}
 
-	
-	/*@Override
-	public <B extends Buffer> B getDataBuffer() {
-		Buffer buffer = ByteBuffer.wrap(data);
-		buffer.rewind();
-		return (B) buffer;
-	}*/
-		
+	/**
+	 * @return view of the data from position 0, writes change the image
+	 */
 	@Override
 	public ByteBuffer getDataBuffer() {
-		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
-		buffer.put(data);
-		buffer.position(0);
-		
-		return buffer;
-	} 
+		ByteBuffer view = data.duplicate();
+		view.clear();
+		return view;
+	}
+
+	/**
+	 * Release native memory owned by the image, the image must not be used
+	 * afterwards; images not owning their memory only drop the reference
+	 */
+	@Override
+	public void close() {
+		if (free != null)
+			free.run();
+		free = null;
+		data = null;
+	}
 	
 	@Override
 	public OGLTexImage.Format<OGLTexImageByte> getFormat() {
 		return format;
 	}
 
-	public byte[] getData() {
-		return data;
-	}
-
 	public OGLTexImageFloat toOGLTexImageFloat() {
 		return toOGLTexImageFloat(format.getComponentCount()) ;
 	}
 
+	/**
+	 * Convert to float image, target component i is taken from source
+	 * component i modulo the source component count
+	 */
 	public OGLTexImageFloat toOGLTexImageFloat(int componentCount) {
-		float[] array = new float[width * height * componentCount];
-		for (int z = 0; z < depth; z++)
-			for (int y = 0; y < height; y++)
-				for (int x = 0; x < width; x++)
-					for (int i = 0; i < componentCount; i++)
-						array[z * width * height * componentCount
-						    + y * width * componentCount + x * componentCount + i] 
-							= (0xff & data[z * width * height * format.getComponentCount()
-							               + y * width * format.getComponentCount()
-							               + x * format.getComponentCount()
-							               + i % format.getComponentCount()] )/ 255.0f;
-						//0xff z duvodu pouziti bytu jako neznaminkoveho
-
-		return new OGLTexImageFloat(width, height, depth, new OGLTexImageFloat.Format(componentCount), array);
+		int[] swizzle = new int[componentCount];
+		for (int i = 0; i < componentCount; i++)
+			swizzle[i] = i % format.getComponentCount();
+		return new OGLTexImageConverter().setSwizzle(swizzle).toFloat(this);
 	}
 
 	public void setPixel(int x, int y, byte value) {
@@ -240,7 +292,7 @@ public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
 	public void setVoxel(int x, int y, int z, int component, byte value) {
 		if (x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth 
 				&& component >= 0 && component < format.getComponentCount()) {
-			data[(z * width * height + y * width + x) * format.getComponentCount() + component] = value;
+			data.put((z * width * height + y * width + x) * format.getComponentCount() + component, value);
 		}
 	}
 
@@ -259,7 +311,7 @@ public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
 	public byte getVoxel(int x, int y, int z, int component) {
 		byte value = 0;
 		if (x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth && component >= 0 && component < format.getComponentCount())
-			value = data[(z * width * height  + y * width  + x) * format.getComponentCount() + component];
+			value = data.get((z * width * height  + y * width  + x) * format.getComponentCount() + component);
 		return value;
 	}
 	/*
@@ -288,7 +340,7 @@ public class OGLTexImageByte implements OGLTexImage<OGLTexImageByte> {
 		return String.format(Locale.US, 
 				 "OGLTexImageByte: " + "[" + getWidth() + "x" +
 						 getHeight() + "x" + getDepth() + 
-						 "] length:" + data.length + "x1 B, " +
+						 "] length:" + data.capacity() + "x1 B, " +
 						 "format: " + getFormat().toString());
 	}
 	
@@ -0,0 +1,417 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Converter of texture images between byte, float and half-float components
+ * with optional channel swizzle and sRGB encoding. Whole rows are converted
+ * by tight loops over arrays, the rows of all slices are split into chunks
+ * processed in parallel by the common fork-join pool.
+ * <p>
+ * The swizzle gives the source component of each target component, or ZERO
+ * or ONE, e.g. {0, 0, 0, ONE} expands luminance to opaque RGBA and {2, 1, 0,
+ * 3} swaps red and blue. With sRGB enabled, color components are decoded from
+ * sRGB when converting bytes to floats and encoded when converting floats to
+ * bytes; alpha (the last component of RGBA and LA images) is always linear.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OGLTexImageFloat linear = new OGLTexImageConverter().setSRGB(true).toFloat(image);
+ * </pre>
+ */
+public class OGLTexImageConverter {
+	public static final int ZERO = -1, ONE = -2;
+
+	static final float[] SRGB_TO_LINEAR = new float[256];
+	static final int LINEAR_TO_SRGB_SIZE = 4096;
+	static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_TO_SRGB_SIZE + 1];
+	private static final float[] UNORM_TO_FLOAT = new float[256];
+	private static final float[] HALF_TO_FLOAT = new float[65536];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			double c = i / 255.0;
+			SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+			UNORM_TO_FLOAT[i] = i / 255.0f;
+		}
+		for (int i = 0; i <= LINEAR_TO_SRGB_SIZE; i++) {
+			double c = i / (double) LINEAR_TO_SRGB_SIZE;
+			double s = c <= 0.0031308 ? c * 12.92 : 1.055 * Math.pow(c, 1 / 2.4) - 0.055;
+			LINEAR_TO_SRGB[i] = (byte) Math.round(s * 255.0);
+		}
+		for (int i = 0; i < 65536; i++)
+			HALF_TO_FLOAT[i] = decodeHalf((short) i);
+	}
+
+	private int[] swizzle = null;
+	private boolean sRGB = false;
+
+	/**
+	 * @param swizzle
+	 *            source component, ZERO or ONE for each target component,
+	 *            null to keep the components
+	 * @return this converter
+	 */
+	public OGLTexImageConverter setSwizzle(int... swizzle) {
+		this.swizzle = swizzle;
+		return this;
+	}
+
+	/**
+	 * @param sRGB
+	 *            true if color components of byte images are sRGB encoded
+	 * @return this converter
+	 */
+	public OGLTexImageConverter setSRGB(boolean sRGB) {
+		this.sRGB = sRGB;
+		return this;
+	}
+
+	/**
+	 * Convert byte image to float image with components in [0, 1]
+	 */
+	public OGLTexImageFloat toFloat(OGLTexImageByte image) {
+		int sourceCount = image.getFormat().getComponentCount();
+		int[] map = swizzle(sourceCount);
+		OGLTexImageFloat result = new OGLTexImageFloat(image.getWidth(), image.getHeight(), image.getDepth(),
+				map.length);
+		ByteBuffer source = image.getDataBuffer();
+		FloatBuffer target = result.getDataBuffer();
+		int width = image.getWidth();
+		forEachChunk(image, (first, count) -> {
+			byte[] in = new byte[width * sourceCount];
+			float[] out = new float[width * map.length];
+			for (int row = first; row < first + count; row++) {
+				get(source, row * in.length, in);
+				for (int c = 0; c < map.length; c++) {
+					int s = map[c];
+					if (s < 0) {
+						fill(out, c, map.length, s == ONE ? 1 : 0);
+						continue;
+					}
+					float[] lut = sRGB && isColor(s, sourceCount) ? SRGB_TO_LINEAR : UNORM_TO_FLOAT;
+					for (int x = 0, i = s, o = c; x < width; x++, i += sourceCount, o += map.length)
+						out[o] = lut[in[i] & 0xff];
+				}
+				put(target, row * out.length, out);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Convert float image to byte image, components are clamped to [0, 1]
+	 * and rounded
+	 */
+	public OGLTexImageByte toByte(OGLTexImageFloat image) {
+		int sourceCount = image.getFormat().getComponentCount();
+		int[] map = swizzle(sourceCount);
+		OGLTexImageByte result = new OGLTexImageByte(image.getWidth(), image.getHeight(), image.getDepth(),
+				map.length);
+		FloatBuffer source = image.getDataBuffer();
+		ByteBuffer target = result.getDataBuffer();
+		int width = image.getWidth();
+		forEachChunk(image, (first, count) -> {
+			float[] in = new float[width * sourceCount];
+			byte[] out = new byte[width * map.length];
+			for (int row = first; row < first + count; row++) {
+				get(source, row * in.length, in);
+				for (int c = 0; c < map.length; c++) {
+					int s = map[c];
+					if (s < 0) {
+						byte value = (byte) (s == ONE ? 255 : 0);
+						for (int o = c; o < out.length; o += map.length)
+							out[o] = value;
+					} else if (sRGB && isColor(s, sourceCount)) {
+						for (int x = 0, i = s, o = c; x < width; x++, i += sourceCount, o += map.length)
+							out[o] = LINEAR_TO_SRGB[(int) (clamp(in[i]) * LINEAR_TO_SRGB_SIZE + 0.5f)];
+					} else {
+						for (int x = 0, i = s, o = c; x < width; x++, i += sourceCount, o += map.length)
+							out[o] = (byte) (int) (clamp(in[i]) * 255 + 0.5f);
+					}
+				}
+				put(target, row * out.length, out);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Swizzle components of byte image, sRGB is not applied
+	 */
+	public OGLTexImageByte convert(OGLTexImageByte image) {
+		int sourceCount = image.getFormat().getComponentCount();
+		int[] map = swizzle(sourceCount);
+		OGLTexImageByte result = new OGLTexImageByte(image.getWidth(), image.getHeight(), image.getDepth(),
+				map.length);
+		ByteBuffer source = image.getDataBuffer();
+		ByteBuffer target = result.getDataBuffer();
+		int width = image.getWidth();
+		forEachChunk(image, (first, count) -> {
+			byte[] in = new byte[width * sourceCount];
+			byte[] out = new byte[width * map.length];
+			for (int row = first; row < first + count; row++) {
+				get(source, row * in.length, in);
+				for (int c = 0; c < map.length; c++) {
+					int s = map[c];
+					for (int x = 0, i = s, o = c; x < width; x++, i += sourceCount, o += map.length)
+						out[o] = s >= 0 ? in[i] : (byte) (s == ONE ? 255 : 0);
+				}
+				put(target, row * out.length, out);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Swizzle components of float image, sRGB is not applied
+	 */
+	public OGLTexImageFloat convert(OGLTexImageFloat image) {
+		int sourceCount = image.getFormat().getComponentCount();
+		int[] map = swizzle(sourceCount);
+		OGLTexImageFloat result = new OGLTexImageFloat(image.getWidth(), image.getHeight(), image.getDepth(),
+				map.length);
+		FloatBuffer source = image.getDataBuffer();
+		FloatBuffer target = result.getDataBuffer();
+		int width = image.getWidth();
+		forEachChunk(image, (first, count) -> {
+			float[] in = new float[width * sourceCount];
+			float[] out = new float[width * map.length];
+			for (int row = first; row < first + count; row++) {
+				get(source, row * in.length, in);
+				for (int c = 0; c < map.length; c++)
+					swizzleRow(in, sourceCount, out, map.length, c, map[c], width);
+				put(target, row * out.length, out);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Convert float image to half floats, e.g. for GL_RGBA16F textures
+	 * uploaded with pixel type GL_HALF_FLOAT
+	 *
+	 * @return direct buffer with components in the order of the image
+	 */
+	public ShortBuffer toHalf(OGLTexImageFloat image) {
+		int sourceCount = image.getFormat().getComponentCount();
+		int[] map = swizzle(sourceCount);
+		int width = image.getWidth();
+		ShortBuffer target = BufferUtils
+				.createShortBuffer(width * image.getHeight() * image.getDepth() * map.length);
+		FloatBuffer source = image.getDataBuffer();
+		forEachChunk(image, (first, count) -> {
+			float[] in = new float[width * sourceCount];
+			float[] swizzled = new float[width * map.length];
+			short[] out = new short[swizzled.length];
+			for (int row = first; row < first + count; row++) {
+				get(source, row * in.length, in);
+				for (int c = 0; c < map.length; c++)
+					swizzleRow(in, sourceCount, swizzled, map.length, c, map[c], width);
+				for (int i = 0; i < out.length; i++)
+					out[i] = encodeHalf(swizzled[i]);
+				ShortBuffer rows = target.duplicate();
+				rows.position(row * out.length);
+				rows.put(out);
+			}
+		});
+		return target;
+	}
+
+	/**
+	 * Convert half floats to float image
+	 *
+	 * @param data
+	 *            half floats from position 0
+	 * @param componentCount
+	 *            components per texel in the data
+	 */
+	public OGLTexImageFloat fromHalf(ShortBuffer data, int width, int height, int depth, int componentCount) {
+		int[] map = swizzle(componentCount);
+		OGLTexImageFloat result = new OGLTexImageFloat(width, height, depth, map.length);
+		FloatBuffer target = result.getDataBuffer();
+		forEachChunk(height * depth, (first, count) -> {
+			short[] in = new short[width * componentCount];
+			float[] decoded = new float[in.length];
+			float[] out = new float[width * map.length];
+			for (int row = first; row < first + count; row++) {
+				ShortBuffer rows = data.duplicate();
+				rows.clear().position(row * in.length);
+				rows.get(in);
+				for (int i = 0; i < in.length; i++)
+					decoded[i] = HALF_TO_FLOAT[in[i] & 0xffff];
+				for (int c = 0; c < map.length; c++)
+					swizzleRow(decoded, componentCount, out, map.length, c, map[c], width);
+				put(target, row * out.length, out);
+			}
+		});
+		return result;
+	}
+
+	private static void swizzleRow(float[] in, int inStride, float[] out, int outStride, int c, int s, int width) {
+		if (s < 0) {
+			fill(out, c, outStride, s == ONE ? 1 : 0);
+			return;
+		}
+		for (int x = 0, i = s, o = c; x < width; x++, i += inStride, o += outStride)
+			out[o] = in[i];
+	}
+
+	private int[] swizzle(int sourceCount) {
+		if (swizzle == null) {
+			int[] identity = new int[sourceCount];
+			for (int i = 0; i < sourceCount; i++)
+				identity[i] = i;
+			return identity;
+		}
+		for (int s : swizzle)
+			if (s >= sourceCount || (s < 0 && s != ZERO && s != ONE))
+				throw new IllegalArgumentException(
+						"Invalid swizzle " + Arrays.toString(swizzle) + " of " + sourceCount + " components.");
+		return swizzle;
+	}
+
+	private interface Chunk {
+		void convert(int firstRow, int rowCount);
+	}
+
+	private static void forEachChunk(OGLTexImage<?> image, Chunk chunk) {
+		forEachChunk(image.getHeight() * image.getDepth(), chunk);
+	}
+
+	private static void forEachChunk(int rows, Chunk chunk) {
+		// a few chunks per worker keep the load balanced, row arrays are
+		// allocated once per chunk
+		int chunks = Math.max(1, Math.min(rows, ForkJoinPool.getCommonPoolParallelism() * 4));
+		IntStream.range(0, chunks).parallel().forEach(i -> {
+			int first = (int) ((long) rows * i / chunks), last = (int) ((long) rows * (i + 1) / chunks);
+			chunk.convert(first, last - first);
+		});
+	}
+
+	private static void get(ByteBuffer buffer, int offset, byte[] row) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(row);
+	}
+
+	private static void get(FloatBuffer buffer, int offset, float[] row) {
+		FloatBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(row);
+	}
+
+	private static void put(ByteBuffer buffer, int offset, byte[] row) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.put(row);
+	}
+
+	private static void put(FloatBuffer buffer, int offset, float[] row) {
+		FloatBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.put(row);
+	}
+
+	private static void fill(float[] row, int first, int stride, float value) {
+		for (int o = first; o < row.length; o += stride)
+			row[o] = value;
+	}
+
+	private static float clamp(float value) {
+		// NaN becomes 0
+		return value > 0 ? (value < 1 ? value : 1) : 0;
+	}
+
+	static boolean isColor(int component, int components) {
+		// alpha of RGBA and LA images is linear
+		return !(components == 4 && component == 3) && !(components == 2 && component == 1);
+	}
+
+	/**
+	 * @param value
+	 *            sRGB encoded byte
+	 * @return linear value in [0, 1]
+	 */
+	public static float srgbToLinear(byte value) {
+		return SRGB_TO_LINEAR[value & 0xff];
+	}
+
+	/**
+	 * @param value
+	 *            linear value, clamped to [0, 1]
+	 * @return sRGB encoded byte
+	 */
+	public static byte linearToSrgb(float value) {
+		return LINEAR_TO_SRGB[(int) (clamp(value) * LINEAR_TO_SRGB_SIZE + 0.5f)];
+	}
+
+	/**
+	 * Convert float to IEEE half float with rounding to nearest even,
+	 * overflow gives infinity
+	 */
+	public static short encodeHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff) // infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+		int e = exponent - 127 + 15;
+		if (e >= 0x1f)
+			return (short) (sign | 0x7c00);
+		if (e <= 0) {
+			if (e < -10)
+				return (short) sign;
+			// subnormal half, the implicit bit becomes explicit
+			mantissa |= 0x800000;
+			int shift = 14 - e;
+			int half = mantissa >>> shift;
+			int rest = mantissa & ((1 << shift) - 1), midpoint = 1 << (shift - 1);
+			if (rest > midpoint || (rest == midpoint && (half & 1) != 0))
+				half++;
+			return (short) (sign | half);
+		}
+		int half = (e << 10) | (mantissa >>> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			half++; // may carry into the exponent, which is correct
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Convert IEEE half float to float
+	 */
+	public static float halfToFloat(short value) {
+		return HALF_TO_FLOAT[value & 0xffff];
+	}
+
+	private static float decodeHalf(short value) {
+		int bits = value & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if (exponent == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		if (exponent == 0) {
+			float magnitude = mantissa / 1024.0f / 16384.0f; // 2^-14
+			return sign != 0 ? -magnitude : magnitude;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLTexImageConverter: swizzle: %s, sRGB: %b",
+				swizzle == null ? "identity" : Arrays.toString(swizzle), sRGB);
+	}
+}
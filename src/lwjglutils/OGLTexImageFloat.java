@@ -6,11 +6,21 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Locale;
 
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL33.*;
 
+/**
+ * Float image stored in a direct buffer, so that it is passed to OpenGL
+ * without copying. The data are allocated by the constructors and released by
+ * the garbage collector, images created by allocate or wrap with a free action
+ * own native memory which is released by close.
+ */
 public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
-	private float[] data;
+	private FloatBuffer data;
+	private Runnable free;
 	private final int width, height, depth;
 	private final OGLTexImage.Format<OGLTexImageFloat> format;
 
@@ -159,7 +169,7 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 	}
 
 	public OGLTexImageFloat(int width, int height, OGLTexImage.Format<OGLTexImageFloat> format) {
-		this(width, height, 1, format, new float[width * height * format.getComponentCount()]);
+		this(width, height, 1, format);
 	}
 
 	public OGLTexImageFloat(int width, int height, OGLTexImage.Format<OGLTexImageFloat> format, float[] data) {
@@ -167,16 +177,63 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 	}
 
 	public OGLTexImageFloat(int width, int height, int depth, OGLTexImage.Format<OGLTexImageFloat> format) {
-		this(width, height, depth, format, new float[width * height * depth * format.getComponentCount()]);
+		this(width, height, depth, format,
+				BufferUtils.createFloatBuffer(width * height * depth * format.getComponentCount()));
 	}
 
+	/**
+	 * Create image with copy of the array
+	 */
 	public OGLTexImageFloat(int width, int height, int depth, OGLTexImage.Format<OGLTexImageFloat> format,
 			float[] data) {
+		this(width, height, depth, format, BufferUtils.createFloatBuffer(data.length).put(data));
+	}
+
+	/**
+	 * Create image viewing the buffer, no data are copied
+	 * 
+	 * @param data
+	 *            direct buffer in native order, its content from position 0
+	 *            is used
+	 */
+	public OGLTexImageFloat(int width, int height, int depth, OGLTexImage.Format<OGLTexImageFloat> format,
+			FloatBuffer data) {
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
 		this.format = format;
-		this.data = data;
+		int size = width * height * depth * format.getComponentCount();
+		if (data.capacity() < size)
+			throw new IllegalArgumentException("Buffer of " + data.capacity() + " floats is smaller than the image.");
+		FloatBuffer view = data.duplicate();
+		view.clear().limit(size);
+		this.data = view.slice();
+	}
+
+	/**
+	 * Create zeroed image in native memory which must be released by close
+	 */
+	public static OGLTexImageFloat allocate(int width, int height, int depth,
+			OGLTexImage.Format<OGLTexImageFloat> format) {
+		FloatBuffer data = MemoryUtil.memCallocFloat(width * height * depth * format.getComponentCount());
+		return wrap(width, height, depth, format, data, () -> MemoryUtil.memFree(data));
+	}
+
+	/**
+	 * Create image viewing the buffer owned by the image
+	 * 
+	 * @param data
+	 *            direct buffer in native order, its content from position 0
+	 *            is used
+	 * @param free
+	 *            action releasing the buffer run by close, e.g. memFree
+	 * @return image owning the buffer
+	 */
+	public static OGLTexImageFloat wrap(int width, int height, int depth,
+			OGLTexImage.Format<OGLTexImageFloat> format, FloatBuffer data, Runnable free) {
+		OGLTexImageFloat image = new OGLTexImageFloat(width, height, depth, format, data);
+		image.free = free;
+		return image;
 	}
 
 	@Override
@@ -194,25 +251,38 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 		return depth;
 	}
 
+	/**
+	 * Copy content of the buffer into the image, no memory is allocated
+	 */
 	@Override
 	public void setDataBuffer(Buffer buffer) {
-		if (buffer instanceof FloatBuffer && buffer.capacity() == width * height * depth * format.getComponentCount()) {
-			buffer.rewind();
-			data = new float[buffer.capacity()];
-			((FloatBuffer) buffer).get(data);
+		if (buffer instanceof FloatBuffer && buffer.capacity() == data.capacity()) {
+			FloatBuffer source = ((FloatBuffer) buffer).duplicate();
+			source.clear();
+			getDataBuffer().put(source);
 		}
 	}
 
+	/**
+	 * @return view of the data from position 0, writes change the image
+	 */
 	@Override
 	public FloatBuffer getDataBuffer() {
-		ByteBuffer byteBuf = ByteBuffer.allocateDirect(data.length * Float.BYTES); 
-		// 4  bytes per float
-		byteBuf.order(ByteOrder.nativeOrder());
-		FloatBuffer buffer = byteBuf.asFloatBuffer();
-		buffer.put(data);
-		buffer.position(0);
+		FloatBuffer view = data.duplicate();
+		view.clear();
+		return view;
+	}
 
-		return buffer;
+	/**
+	 * Release native memory owned by the image, the image must not be used
+	 * afterwards; images not owning their memory only drop the reference
+	 */
+	@Override
+	public void close() {
+		if (free != null)
+			free.run();
+		free = null;
+		data = null;
 	}
 
 	@Override
@@ -220,29 +290,21 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 		return format;
 	}
 
-	public float[] getData() {
-		return data;
-	}
-
 	public OGLTexImageByte toOGLTexImageByte() {
 		return toOGLTexImageByte(format.getComponentCount());
 
 	}
 
+	/**
+	 * Convert to byte image, target component i is taken from source
+	 * component i modulo the source component count, values are clamped to
+	 * [0, 1]
+	 */
 	public OGLTexImageByte toOGLTexImageByte(int componentCount) {
-		byte[] array = new byte[width * height * componentCount];
-		for (int z = 0; z < depth; z++)
-			for (int y = 0; y < height; y++)
-				for (int x = 0; x < width; x++)
-					for (int i = 0; i < componentCount; i++)
-						array[z * width * height * componentCount + y * width * componentCount + x * componentCount
-								+ i] = (byte) (Math
-										.min(data[z * width * height * format.getComponentCount()
-												+ y * width * format.getComponentCount()
-												+ x * format.getComponentCount() + i % format.getComponentCount()], 1.0)
-										* 255.0);
-
-		return new OGLTexImageByte(width, height, depth, new OGLTexImageByte.Format(componentCount), array);
+		int[] swizzle = new int[componentCount];
+		for (int i = 0; i < componentCount; i++)
+			swizzle[i] = i % format.getComponentCount();
+		return new OGLTexImageConverter().setSwizzle(swizzle).toByte(this);
 	}
 
 	public void setPixel(int x, int y, float value) {
@@ -260,7 +322,7 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 	public void setVoxel(int x, int y, int z, int component, float value) {
 		if (x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth && component >= 0
 				&& component < format.getComponentCount()) {
-			data[(z * width * height + y * width + x) * format.getComponentCount() + component] = value;
+			data.put((z * width * height + y * width + x) * format.getComponentCount() + component, value);
 		}
 	}
 
@@ -280,7 +342,7 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 		float value = 0;
 		if (x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth && component >= 0
 				&& component < format.getComponentCount())
-			value = data[(z * width * height + y * width + x) * format.getComponentCount() + component];
+			value = data.get((z * width * height + y * width + x) * format.getComponentCount() + component);
 		return value;
 	}
 	
@@ -289,7 +351,7 @@ public class OGLTexImageFloat implements OGLTexImage<OGLTexImageFloat> {
 		return String.format(Locale.US, 
 				 "OGLTexImageFloat: " + "[" + getWidth() + "x" +
 						 getHeight() + "x" + getDepth() + 
-						 "] length:" + data.length + "x4 B, " +
+						 "] length:" + data.capacity() + "x4 B, " +
 						 "format: " + getFormat().toString());
 	}
 }
@@ -1,119 +1,93 @@
 package lwjglutils;
 
-import org.lwjgl.BufferUtils;
-import transforms.Mat4Scale;
-
 import java.awt.*;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-import java.nio.ByteBuffer;
-
-import static org.lwjgl.opengl.ARBClearTexture.glClearTexImage;
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL12.*;
-import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
-import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.opengl.GL33.glPopAttrib;
-import static org.lwjgl.opengl.GL33.glPushAttrib;
-
-public class OGLTextRenderer {
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Text drawn as textured quads of glyphs from an OGLGlyphAtlas. Strings added
+ * during the frame are laid out into one per-instance buffer, a glyph is an
+ * instance of a quad, and the whole text is drawn by one instanced call.
+ * Layouts of recently drawn strings are cached and the buffer is uploaded
+ * only when the text of the frame differs from the previous one.
+ * <p>
+ * With a distance field atlas the text is scaled by setFontSize and the
+ * outline is antialiased by smoothstep over the screen space derivative of
+ * the distance, e.g.
+ *
+ * <pre>
+ * OGLTextRenderer text = new OGLTextRenderer(width, height,
+ * 		OGLGlyphAtlas.createDistanceField(new Font("SansSerif", Font.PLAIN, 32), 4, "sansserif.glyphs"));
+ * text.setFontSize(12);
+ * </pre>
+ */
+public class OGLTextRenderer implements AutoCloseable {
+	// rectangle, texture coordinates, color
+	private static final int FLOATS_PER_GLYPH = 12;
+	private static final int CACHED_STRINGS = 64;
+
+	private static final String[] SHADER_VERT_SRC = {
+			"#version 330\n",
+			"in vec2 inCorner;",
+			"in vec4 inRect;",
+			"in vec4 inTexCoords;",
+			"in vec4 inColor;",
+			"uniform vec2 viewSize;",
+			"out vec2 texCoords;",
+			"out vec4 color;",
+			"void main() {",
+			"	vec2 pixel = inRect.xy + inCorner * inRect.zw;",
+			"	gl_Position = vec4(pixel.x / viewSize.x * 2.0 - 1.0, 1.0 - pixel.y / viewSize.y * 2.0, 0.0, 1.0);",
+			"	texCoords = mix(inTexCoords.xy, inTexCoords.zw, inCorner);",
+			"	color = inColor;",
+			"}"
+		};
+
+	private static final String[] SHADER_FRAG_SRC = {
+			"#version 330\n",
+			"in vec2 texCoords;",
+			"in vec4 color;",
+			"out vec4 fragColor;",
+			"uniform sampler2D glyphs;",
+			"uniform bool distanceField;",
+			"void main() {",
+			"	float value = texture(glyphs, texCoords).r;",
+			"	if (distanceField) {",
+			"		float edge = 0.7 * fwidth(value);",
+			"		value = smoothstep(0.5 - edge, 0.5 + edge, value);",
+			"	}",
+			"	fragColor = vec4(color.rgb, color.a * value);",
+			"}"
+		};
+
 	private int width;
 	private int height;
 	private Color color = new Color(1.0f, 1.0f, 1.0f, 1.0f);
-	private Font font;
-	int textureID;
-	BufferedImage img;
-	private Viewer viewer;
-	private ByteBuffer clearTexBuffer = BufferUtils.createByteBuffer(4);
-	
-	
-	private class Viewer {
-		protected final int shaderProgram;
-		protected final OGLBuffers buffers;
-		protected final int locMat;
-		
-		private  final String[] SHADER_VERT_SRC = {
-				"#version 330\n",
-				"in vec2 inPosition;", 
-				"in vec2 inTexCoord;", 
-				"uniform mat4 matTrans;",
-				"out vec2 texCoords;", 
-				"void main() {",
-				"	gl_Position = vec4(inPosition , 0.0f, 1.0f);",
-				"   texCoords = inTexCoord;",
-				"}"
-			};
-		
-		private  final String[] SHADER_FRAG_SRC = { 
-				"#version 330\n",
-				"in vec2 texCoords;", 
-				"out vec4 fragColor;", 
-				"uniform sampler2D drawTexture;",
-				"void main() {",
-				" 	fragColor = texture(drawTexture, texCoords);", 
-				" 	if (length(fragColor.rgb) == 0)", 
-				" 		fragColor.a = 0.0;", 
-				"}" 
-			};
-
-		private OGLBuffers createBuffers() {
-			float[] vertexBufferData = { 
-					-1, -1, 0, 1, 
-					1, -1, 1, 1, 
-					-1, 1, 0, 0,
-					1, 1, 1, 0 };
-			int[] indexBufferData = { 0, 1, 2, 3 };
-
-			OGLBuffers.Attrib[] attributes = { 
-					new OGLBuffers.Attrib("inPosition", 2),
-					new OGLBuffers.Attrib("inTexCoord", 2) };
-
-			return new OGLBuffers(vertexBufferData, attributes, indexBufferData);
-		}
+	private final OGLGlyphAtlas atlas;
+	private final OGLBuffers buffers;
+	private final int instanceBuffer;
+	private final int shaderProgram;
+	private final int locViewSize, locDistanceField;
+	private float scale = 1;
+	// glyphs of the frame and glyphs in the buffer
+	private float[] data = new float[256 * FLOATS_PER_GLYPH], uploaded = new float[0];
+	private int count = 0, uploadedCount = 0;
+	// string -> glyph rectangles relative to the pen and texture coordinates
+	private final Map<String, float[]> layouts = new LinkedHashMap<String, float[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
 
-		private Viewer() {
-			buffers = createBuffers();
-			this.shaderProgram = ShaderUtils.loadProgram(SHADER_VERT_SRC, SHADER_FRAG_SRC, null, null, null, null); 
-			locMat = glGetUniformLocation(shaderProgram, "matTrans");
-		}
-
-		private void view(int textureID, double aspectXY) {
-			if (glIsProgram(shaderProgram)) {
-				glPushAttrib(GL_DEPTH_BUFFER_BIT|GL_ENABLE_BIT);
-				int sp[] = {'0'};
-				glGetIntegerv(GL_CURRENT_PROGRAM, sp);
-				glUseProgram(shaderProgram);
-				glActiveTexture(GL_TEXTURE0);
-				glEnable(GL_TEXTURE_2D);
-				glEnable(GL_BLEND);
-				glDisable(GL_DEPTH_TEST);
-				glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
-				glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-				glUniformMatrix4fv(locMat, false, ToFloatArray
-						.convert(new Mat4Scale(1, 1/aspectXY, 1)));
-				glBindTexture(GL_TEXTURE_2D, textureID);
-				glUniform1i(glGetUniformLocation(shaderProgram, "drawTexture"), 0);
-				buffers.draw(GL_TRIANGLE_STRIP, shaderProgram);
-				glDisable(GL_TEXTURE_2D);
-				glDisable(GL_BLEND);
-				glUseProgram(sp[0]);
-				glPopAttrib();
-
-			}
-		}
-		
 		@Override
-		public void finalize() throws Throwable {
-			super.finalize();
-			//if (glIsProgram(shaderProgram))
-			//	glDeleteProgram(shaderProgram);
+		protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+			return size() > CACHED_STRINGS;
 		}
-	}
-	
+	};
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLTextRenderer");
+
 	/**
 	 * Create TextRenderer object
-	 * 
+	 *
 	 * @param width
 	 *            width of output rendering frame
 	 * @param height
@@ -122,14 +96,12 @@ public class OGLTextRenderer {
 	 * 			  font
 	 */
 	public OGLTextRenderer(int width, int height, Font font) {
-		this.font = font;
-		resize(width, height);
-		viewer = new Viewer();
+		this(width, height, new OGLGlyphAtlas(font));
 	}
 
 	/**
 	 * Create TextRenderer object
-	 * 
+	 *
 	 * @param width
 	 *            width of output rendering frame
 	 * @param height
@@ -139,9 +111,34 @@ public class OGLTextRenderer {
 		this(width, height, new Font("SansSerif", Font.PLAIN, 12));
 	}
 
+	/**
+	 * Create TextRenderer object
+	 *
+	 * @param width
+	 *            width of output rendering frame
+	 * @param height
+	 *            height of output rendering frame
+	 * @param atlas
+	 *            glyphs of the font, closed with the renderer
+	 */
+	public OGLTextRenderer(int width, int height, OGLGlyphAtlas atlas) {
+		this.atlas = atlas;
+		resize(width, height);
+		float[] corners = { 0, 0, 1, 0, 0, 1, 1, 1 };
+		buffers = new OGLBuffers(corners, new OGLBuffers.Attrib[] { new OGLBuffers.Attrib("inCorner", 2) }, null);
+		instanceBuffer = buffers.addInstanceBuffer(256, new OGLBuffers.Attrib[] {
+				new OGLBuffers.Attrib("inRect", 4, 0, 1),
+				new OGLBuffers.Attrib("inTexCoords", 4, 4, 1),
+				new OGLBuffers.Attrib("inColor", 4, 8, 1) });
+		shaderProgram = ShaderUtils.loadProgram(SHADER_VERT_SRC, SHADER_FRAG_SRC, null, null, null, null);
+		handle.add(OGLResourceTracker.PROGRAM, shaderProgram, 0);
+		locViewSize = glGetUniformLocation(shaderProgram, "viewSize");
+		locDistanceField = glGetUniformLocation(shaderProgram, "distanceField");
+	}
+
 	/**
 	 * Update size of output rendering frame
-	 * 
+	 *
 	 * @param width
 	 *            updated width of output rendering frame
 	 * @param height
@@ -150,86 +147,153 @@ public class OGLTextRenderer {
 	public void resize(int width, int height) {
 		this.width = width;
 		this.height = height;
-		if (glIsTexture(textureID))
-			glDeleteTextures(textureID);
-		textureID = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, textureID);
-		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		img = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR_PRE);
 	}
 
 	/**
 	 * Changes the current color. The default color is opaque white.
-	 * 
+	 *
 	 * @param color
 	 *            the new color to use for rendering text
 	 */
 	public void setColor(Color color) {
 		this.color = color;
 	}
-	 
+
+	/**
+	 * Set size of the following strings, sharp for distance field atlases
+	 * only
+	 *
+	 * @param pixels
+	 *            font size in pixels, the size of the atlas font by default
+	 */
+	public void setFontSize(float pixels) {
+		this.scale = pixels / atlas.getFont().getSize2D();
+	}
+
 	/**
 	 * Draw string on 2D coordinates of the raster frame
-	 * 
-	 * @param gl
+	 *
 	 * @param x
 	 *            x position of string in range <0, width-1> of raster frame
 	 * @param y
-	 *            y position of string in range <0, height-1> of raster frame
+	 *            y position of the baseline in range <0, height-1> of raster
+	 *            frame
 	 * @param s
 	 *            string to draw
 	 */
 	public void addStr2D(int x, int y, String s) {
-		if (s != null){
-			Graphics gr = img.getGraphics();
-			gr.setColor(color);
-			gr.setFont(font);
-			gr.drawString(s, x, y);
-			Rectangle2D textBox = gr.getFontMetrics().getStringBounds(s, 0,
-					s.length(), gr);
-			glBindTexture(GL_TEXTURE_2D, textureID);
-			
-			int x1 = Math.max(0, x + (int)textBox.getMinX());
-			x1 = Math.min(width, x1);
-			int x2 = Math.max(0, x+(int)textBox.getMaxX());
-			x2 = Math.min(width, x2);
-			int y1 = Math.max(0, y+ (int)textBox.getMinY());
-			y1 = Math.min(height, y1 );
-			int y2 = Math.max(0, y+(int)textBox.getMaxY());
-			y2 = Math.min(height, y2);
-			int w = x2-x1;
-			int h = y2-y1;
-			
-			int[] array = new int[w * h];
-			img.getRGB(x1, y1, w, h, array, 0, w);
-			glTexSubImage2D(GL_TEXTURE_2D, 0, x1, y1, w, h, GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV, array);
-	
+		if (s == null)
+			return;
+		float[] layout = layouts.get(s);
+		if (layout == null) {
+			layout = layout(s);
+			layouts.put(s, layout);
+		}
+		int glyphs = layout.length / 8;
+		if ((count + glyphs) * FLOATS_PER_GLYPH > data.length) {
+			float[] larger = new float[Math.max(data.length * 2, (count + glyphs) * FLOATS_PER_GLYPH)];
+			System.arraycopy(data, 0, larger, 0, count * FLOATS_PER_GLYPH);
+			data = larger;
+		}
+		float[] rgba = color.getRGBComponents(null);
+		for (int i = 0; i < glyphs; i++) {
+			int o = count++ * FLOATS_PER_GLYPH;
+			data[o] = x + layout[i * 8] * scale;
+			data[o + 1] = y + layout[i * 8 + 1] * scale;
+			data[o + 2] = layout[i * 8 + 2] * scale;
+			data[o + 3] = layout[i * 8 + 3] * scale;
+			System.arraycopy(layout, i * 8 + 4, data, o + 4, 4);
+			System.arraycopy(rgba, 0, data, o + 8, 4);
+		}
+	}
+
+	/**
+	 * Quads of visible glyphs, x, y, width, height, u0, v0, u1, v1 each
+	 */
+	private float[] layout(String s) {
+		float[] layout = new float[s.length() * 8];
+		int glyphs = 0;
+		float pen = 0;
+		for (int i = 0; i < s.length(); i++) {
+			OGLGlyphAtlas.Glyph glyph = atlas.getGlyph(s.charAt(i));
+			if (glyph.width > 0) {
+				int o = glyphs++ * 8;
+				// bitmap glyphs start on whole pixels to keep them sharp
+				layout[o] = (atlas.isDistanceField() ? pen : Math.round(pen)) + glyph.x;
+				layout[o + 1] = glyph.y;
+				layout[o + 2] = glyph.width;
+				layout[o + 3] = glyph.height;
+				layout[o + 4] = glyph.u0;
+				layout[o + 5] = glyph.v0;
+				layout[o + 6] = glyph.u1;
+				layout[o + 7] = glyph.v1;
+			}
+			pen += glyph.advance;
 		}
+		float[] result = new float[glyphs * 8];
+		System.arraycopy(layout, 0, result, 0, result.length);
+		return result;
 	}
 
+	/**
+	 * Remove all strings, the next frame adds them again
+	 */
 	public void clear() {
-		//clear texture on GPU
-		glClearTexImage (textureID, 0, GL_RGBA, GL_UNSIGNED_BYTE, clearTexBuffer);
-		Graphics gr = img.getGraphics();
-		gr.clearRect(0, 0, width, height);
+		count = 0;
 	}
 
-	public void draw(){
-		glViewport(0, 0, width, height);
-		glBindTexture(GL_TEXTURE_2D, textureID);
-		viewer.view(textureID, (float)height/width);
+	public void draw() {
+		if (count == 0)
+			return;
+		if (!isUploaded()) {
+			buffers.setInstanceData(instanceBuffer, data, count);
+			if (uploaded.length < data.length)
+				uploaded = new float[data.length];
+			System.arraycopy(data, 0, uploaded, 0, count * FLOATS_PER_GLYPH);
+			uploadedCount = count;
+		}
+
+		OGLState state = OGLState.get();
+		glPushAttrib(GL_DEPTH_BUFFER_BIT | GL_ENABLE_BIT);
+		int sp = state.getProgram();
+		state.viewport(0, 0, width, height);
+		state.useProgram(shaderProgram);
+		state.enable(GL_BLEND);
+		state.disable(GL_DEPTH_TEST);
+		glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+		glUniform2f(locViewSize, width, height);
+		glUniform1i(locDistanceField, atlas.isDistanceField() ? 1 : 0);
+		atlas.bind(shaderProgram, "glyphs", 0);
+		buffers.drawInstanced(GL_TRIANGLE_STRIP, shaderProgram, count);
+		state.disable(GL_BLEND);
+		if (sp != OGLState.UNKNOWN)
+			state.useProgram(sp);
+		glPopAttrib();
+		state.invalidateCapabilities();
+	}
+
+	private boolean isUploaded() {
+		if (count != uploadedCount)
+			return false;
+		for (int i = 0; i < count * FLOATS_PER_GLYPH; i++)
+			if (data[i] != uploaded[i])
+				return false;
+		return true;
+	}
+
+	public OGLGlyphAtlas getAtlas() {
+		return atlas;
 	}
-	
-	@Override
-	public void finalize() throws Throwable{
-		super.finalize();
-		viewer.finalize();
-		//if (glIsTexture(textureID))
-		//	glDeleteTextures(textureID);
 
+	/**
+	 * Delete the glyph atlas, shader program and buffers, the object must not
+	 * be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+		buffers.close();
+		atlas.close();
 	}
 }
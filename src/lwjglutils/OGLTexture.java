@@ -1,7 +1,7 @@
 package lwjglutils;
 
-public interface OGLTexture {
-	interface Viewer {
+public interface OGLTexture extends AutoCloseable {
+	interface Viewer extends AutoCloseable {
 		default void view(OGLTexture texture) { view(texture.getTextureId()); }
 		default void view(OGLTexture texture, double x, double y){ view(texture.getTextureId(), x, y); }
 		default void view(OGLTexture texture, double x, double y, double scale){ view(texture.getTextureId(), x, y, scale); }
@@ -12,8 +12,12 @@ public interface OGLTexture {
 		void view(int textureID, double x, double y, double scale);
 		void view(int textureID, double x, double y, double scale, double aspectXY);
 		void view(int textureID, double x, double y, double scale, double aspectXY, int level);
+		@Override
+		void close();
 	}
 	void bind(int shaderProgram, String name, int slot);
 	void bind(int shaderProgram, String name);
 	int getTextureId();
+	@Override
+	void close();
 }
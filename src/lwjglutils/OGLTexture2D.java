@@ -2,32 +2,38 @@ package lwjglutils;
 
 
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 import transforms.Mat4Scale;
 import transforms.Mat4Transl;
 
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.URL;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL21.*;
 import static org.lwjgl.stb.STBImage.*;
 
 public class OGLTexture2D implements OGLTexture {
 	private final int textureID;
 	private final int width, height;
+	private final int internalFormat;
+	private int levels = 1;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLTexture2D");
 	
 	public static class Viewer implements OGLTexture.Viewer {
 		protected final int shaderProgram;
 		protected final OGLBuffers buffers;
 		protected final int locMat;
 		protected final int locLevel;
+		private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "Viewer");
 		
 		private static final String[] SHADER_VERT_SRC = {
 				"#version 330\n",
@@ -77,6 +83,7 @@ public class OGLTexture2D implements OGLTexture {
 			this.shaderProgram = shaderProgram; 
 			locMat = glGetUniformLocation(shaderProgram, "matTrans");
 			locLevel = glGetUniformLocation(shaderProgram, "level");
+			handle.add(OGLResourceTracker.PROGRAM, shaderProgram, 0);
 		}
 
 		@Override
@@ -101,90 +108,39 @@ public class OGLTexture2D implements OGLTexture {
 		@Override
 		public void view(int textureID, double x, double y, double scale, double aspectXY, int level) {
 			if (glIsProgram(shaderProgram)) {
+				OGLState state = OGLState.get();
 				glPushAttrib(GL_DEPTH_BUFFER_BIT|GL_ENABLE_BIT);
-				int sp[] = {'0'};
-				glGetIntegerv(GL_CURRENT_PROGRAM, sp);
-				glUseProgram(shaderProgram);
-				glActiveTexture(GL_TEXTURE0);
-				glEnable(GL_TEXTURE_2D);
+				int sp = state.getProgram();
+				state.useProgram(shaderProgram);
+				state.activeTexture(GL_TEXTURE0);
+				state.enable(GL_TEXTURE_2D);
 				glUniformMatrix4fv(locMat, false, ToFloatArray
 						.convert(new Mat4Scale(scale * aspectXY, scale, 1).mul(new Mat4Transl(x, y, 0))));
 				glUniform1i(locLevel, level);
-				glBindTexture(GL_TEXTURE_2D, textureID);
+				state.bindTexture(GL_TEXTURE_2D, textureID);
 				glUniform1i(glGetUniformLocation(shaderProgram, "drawTexture"), 0);
 				buffers.draw(GL_TRIANGLE_STRIP, shaderProgram);
-				glDisable(GL_TEXTURE_2D);
-				glUseProgram(sp[0]);
+				state.disable(GL_TEXTURE_2D);
+				if (sp != OGLState.UNKNOWN)
+					state.useProgram(sp);
 				glPopAttrib();
+				state.invalidateCapabilities();
 			}
 		}
 		
 		@Override
-		public void finalize() throws Throwable {
-			super.finalize();
-			//if (glIsProgram(shaderProgram))
-			//	glDeleteProgram(shaderProgram);
+		public void close() {
+			handle.close();
+			buffers.close();
 		}
-
 	}
-		
-	private static ByteBuffer resizeBuffer(ByteBuffer buffer, int newCapacity) {
-        ByteBuffer newBuffer = BufferUtils.createByteBuffer(newCapacity);
-        buffer.flip();
-        newBuffer.put(buffer);
-        return newBuffer;
-    }
-
-    /**
-     * Reads the specified resource and returns the raw data as a ByteBuffer.
-     *
-     * @param resource   the resource to read
-     * @param bufferSize the initial buffer size
-     *
-     * @return the resource data
-     *
-     * @throws IOException if an IO error occurs
-     */
-    static ByteBuffer ioResourceToByteBuffer(String resource, int bufferSize) throws IOException {
-        ByteBuffer buffer;
-        URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
-        if (url == null)
-            throw new IOException("Classpath resource not found: " + resource);
-        File file = new File(url.getFile());
-        if (file.isFile()) {
-            FileInputStream fis = new FileInputStream(file);
-            FileChannel fc = fis.getChannel();
-            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            fc.close();
-            fis.close();
-        } else {
-            buffer = BufferUtils.createByteBuffer(bufferSize);
-            InputStream source = url.openStream();
-            if (source == null)
-                throw new FileNotFoundException(resource);
-            try {
-                byte[] buf = new byte[8192];
-                while (true) {
-                    int bytes = source.read(buf, 0, buf.length);
-                    if (bytes == -1)
-                        break;
-                    if (buffer.remaining() < bytes)
-                        buffer = resizeBuffer(buffer, buffer.capacity() * 2);
-                    buffer.put(buf, 0, bytes);
-                }
-                buffer.flip();
-            } finally {
-                source.close();
-            }
-        }
-        return buffer;
-    }
-    
+
 	public OGLTexture2D(int width, int height, int internalFormat, int pixelFormat, int pixelType, Buffer buffer) {
 		this.width = width;
 		this.height = height;
+		this.internalFormat = internalFormat;
 		textureID = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, textureID);
+		bind();
 		if (pixelType == GL_FLOAT) {
 			glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, 
 					width, height, 0, 
@@ -193,10 +149,9 @@ public class OGLTexture2D implements OGLTexture {
 			glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, 
 				width, height, 0, 
 				pixelFormat, pixelType, (ByteBuffer) buffer);}	
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		setParameters(GL_CLAMP_TO_EDGE, GL_LINEAR, GL_LINEAR);
+		handle.add(OGLResourceTracker.TEXTURE, textureID,
+				(long) width * height * OGLResourceTracker.bytesPerTexel(internalFormat));
 	}
 	
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> 
@@ -217,7 +172,7 @@ public class OGLTexture2D implements OGLTexture {
         
         System.out.print("Reading texture file " + fileName);
 		
-        ByteBuffer imageBuffer  = ioResourceToByteBuffer(fileName, 8192);
+        ByteBuffer imageBuffer  = ResourceUtils.read(fileName);
         
         if (!stbi_info_from_memory(imageBuffer, width, height, components))
             throw new IOException("Failed to read image information: " + stbi_failure_reason());
@@ -233,18 +188,121 @@ public class OGLTexture2D implements OGLTexture {
 
         this.width =  width.get(0);
 		this.height = height.get(0);
+		this.internalFormat = GL_RGBA;
         textureID = glGenTextures();
 		
-		glBindTexture(GL_TEXTURE_2D, textureID);
+		bind();
 		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, 
 				this.width, this.height, 0, 
 				GL_RGBA, GL_UNSIGNED_BYTE, data);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		setParameters(GL_CLAMP_TO_EDGE, GL_LINEAR, GL_LINEAR);
+		handle.add(OGLResourceTracker.TEXTURE, textureID, 4L * this.width * this.height);
         stbi_image_free(data);
 	}
+
+	/**
+	 * Create texture from image file, optionally with mipmap chain built on
+	 * the CPU by OGLMipmapBuilder with sRGB-correct averaging
+	 * 
+	 * @param fileName
+	 *            resource path of the image
+	 * @param mipmaps
+	 *            true to build all mipmap levels and filter trilinearly
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public OGLTexture2D(String fileName, boolean mipmaps) throws IOException {
+		this(decode(fileName), mipmaps, true);
+	}
+
+	public OGLTexture2D(OGLTexImageByte image, boolean mipmaps) {
+		this(image, mipmaps, false);
+	}
+
+	private OGLTexture2D(OGLTexImageByte image, boolean mipmaps, boolean closeImage) {
+		this(image.getWidth(), image.getHeight(), image.getFormat(), null);
+		if (mipmaps) {
+			OGLMipmapBuilder builder = new OGLMipmapBuilder();
+			builder.upload(this, builder.build(image));
+		} else {
+			setTexImage(image);
+		}
+		if (closeImage)
+			image.close();
+	}
+
+	/**
+	 * Create texture from block-compressed image, all levels of the image are
+	 * uploaded without decompression; BC1 and BC3 levels are decompressed on
+	 * the CPU into RGBA8 if the driver does not support S3TC
+	 *
+	 * @param image
+	 *            compressed image read by OGLCompressedImage.read
+	 * @throws RuntimeException
+	 *             if the driver does not support BC7 of a BC7 image
+	 */
+	public OGLTexture2D(OGLCompressedImage image) {
+		int format = image.getInternalFormat();
+		GLCapabilities caps = GL.getCapabilities();
+		if (!OGLCompressedImage.isS3TC(format) && !caps.OpenGL42 && !caps.GL_ARB_texture_compression_bptc)
+			throw new RuntimeException("BC7 textures are not supported by the OpenGL driver.");
+		boolean decompress = OGLCompressedImage.isS3TC(format) && !caps.GL_EXT_texture_compression_s3tc;
+		if (decompress)
+			System.out.println("S3TC is not supported by the OpenGL driver, decompressing texture.");
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.internalFormat = !decompress ? format
+				: OGLCompressedImage.isSRGB(format) ? GL_SRGB8_ALPHA8 : GL_RGBA8;
+		this.levels = image.getLevelCount();
+		textureID = glGenTextures();
+		bind();
+		long size = 0;
+		for (int level = 0; level < levels; level++) {
+			int levelWidth = image.getWidth(level), levelHeight = image.getHeight(level);
+			if (decompress) {
+				OGLTexImageByte decoded = OGLBlockCompression.decode(image.getLevel(level), levelWidth, levelHeight,
+						OGLCompressedImage.blockSize(format) == 16);
+				glTexImage2D(GL_TEXTURE_2D, level, internalFormat, levelWidth, levelHeight, 0, GL_RGBA,
+						GL_UNSIGNED_BYTE, decoded.getDataBuffer());
+				size += 4L * levelWidth * levelHeight;
+			} else {
+				glCompressedTexImage2D(GL_TEXTURE_2D, level, internalFormat, levelWidth, levelHeight, 0,
+						image.getLevel(level));
+			}
+		}
+		OGLState state = OGLState.get();
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+		setParameters(GL_CLAMP_TO_EDGE, levels > 1 ? GL_LINEAR_MIPMAP_LINEAR : GL_LINEAR, GL_LINEAR);
+		handle.add(OGLResourceTracker.TEXTURE, textureID, decompress ? size : image.getSize());
+	}
+
+	/**
+	 * Decode image file into RGBA byte image, the image owns the decoded
+	 * memory and must be closed
+	 * 
+	 * @param fileName
+	 *            resource path of the image
+	 * @return decoded image
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	static OGLTexImageByte decode(String fileName) throws IOException {
+		IntBuffer width = BufferUtils.createIntBuffer(1);
+		IntBuffer height = BufferUtils.createIntBuffer(1);
+		IntBuffer components = BufferUtils.createIntBuffer(1);
+
+		ByteBuffer imageBuffer = ResourceUtils.read(fileName);
+		ByteBuffer data = stbi_load_from_memory(imageBuffer, width, height, components, 4);
+		if (data == null)
+			throw new IOException("Failed to load image " + fileName + ": " + stbi_failure_reason());
+		// one line, decoding may run on several threads
+		System.out.println("Reading texture file " + fileName + " ... OK [" + width.get(0) + "x" + height.get(0) + "]");
+
+		// the decoded memory is owned by the image, no copy
+		return OGLTexImageByte.wrap(width.get(0), height.get(0), 1, new OGLTexImageByte.Format(4), data,
+				() -> stbi_image_free(data));
+	}
 	
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void setTextureBuffer(
 			OGLTexImage.Format<OGLTexImageType> format, Buffer buffer) {
@@ -268,29 +326,44 @@ public class OGLTexture2D implements OGLTexture {
 			OGLTexImage.Format<OGLTexImageType> format, Buffer buffer, int level) {
 		bind();
 		buffer.rewind();
+		allocateLevels(level, format.getPixelFormat(), format.getPixelType());
 		if (format instanceof OGLTexImageFloat.Format) {
 			glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, 
-				getWidth() >> level, getHeight() >> level, 
+				getWidth(level), getHeight(level), 
 				format.getPixelFormat(), format.getPixelType(), (FloatBuffer) buffer);}
 		if (format instanceof OGLTexImageByte.Format) {
 			glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, 
-				getWidth() >> level, getHeight() >> level, 
+				getWidth(level), getHeight(level), 
 				format.getPixelFormat(), format.getPixelType(), (ByteBuffer) buffer);}
 		
 	}
 
+	/**
+	 * Create levels above the allocated ones up to the given level, the
+	 * texture must be bound
+	 */
+	void allocateLevels(int level, int pixelFormat, int pixelType) {
+		if (level < levels)
+			return;
+		for (; levels <= level; levels++)
+			glTexImage2D(GL_TEXTURE_2D, levels, internalFormat, getWidth(levels), getHeight(levels), 0,
+					pixelFormat, pixelType, (ByteBuffer) null);
+		handle.add(OGLResourceTracker.TEXTURE, textureID,
+				(long) width * height * OGLResourceTracker.bytesPerTexel(internalFormat) * 4 / 3);
+	}
+
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> Buffer getTextureBuffer(
 			OGLTexImage.Format<OGLTexImageType> format, int level) {
 		bind();
 		if (format instanceof OGLTexImageFloat.Format) {
-	    	FloatBuffer buffer = format.newBuffer(getWidth() >> level, getHeight() >> level);
+	    	FloatBuffer buffer = format.newBuffer(getWidth(level), getHeight(level));
 			glGetTexImage(GL_TEXTURE_2D, level, format.getPixelFormat(), format.getPixelType(), buffer);
 			buffer.rewind();
 			
 			return buffer;
 		}
 	    if (format instanceof OGLTexImageByte.Format) {
-			ByteBuffer buffer = format.newBuffer(getWidth() >> level, getHeight() >> level);
+			ByteBuffer buffer = format.newBuffer(getWidth(level), getHeight(level));
 			glGetTexImage(GL_TEXTURE_2D, level,  format.getPixelFormat(), format.getPixelType(), buffer);
 			buffer.rewind();
 			return buffer;
@@ -304,9 +377,7 @@ public class OGLTexture2D implements OGLTexture {
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTexImageType getTexImage(
 			OGLTexImage.Format<OGLTexImageType> format) {
-		OGLTexImageType image = format.newTexImage(getWidth(), getHeight());
-		image.setDataBuffer(getTextureBuffer(format));
-		return image;
+		return getTexImage(format, 0);
 	}
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void setTexImage(OGLTexImageType image, int level) {
@@ -315,18 +386,52 @@ public class OGLTexture2D implements OGLTexture {
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTexImageType getTexImage(
 			OGLTexImage.Format<OGLTexImageType> format, int level) {
-		OGLTexImageType image = format.newTexImage(getWidth() >> level, getHeight() >> level);
-		image.setDataBuffer(getTextureBuffer(format, level));
+		OGLTexImageType image = format.newTexImage(getWidth(level), getHeight(level));
+		bind();
+		getTexImage(GL_TEXTURE_2D, level, format, image.getDataBuffer());
 		return image;
 	}
 
+	/**
+	 * Read texture image directly into the buffer of an image, the texture
+	 * must be bound
+	 */
+	static <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void getTexImage(int target, int level,
+			OGLTexImage.Format<OGLTexImageType> format, Buffer buffer) {
+		glPixelStorei(GL_PACK_ALIGNMENT, 1);
+		if (buffer instanceof FloatBuffer)
+			glGetTexImage(target, level, format.getPixelFormat(), format.getPixelType(), (FloatBuffer) buffer);
+		else
+			glGetTexImage(target, level, format.getPixelFormat(), format.getPixelType(), (ByteBuffer) buffer);
+		glPixelStorei(GL_PACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Set wrapping and filtering of the texture, unchanged values are skipped
+	 * 
+	 * @param wrap
+	 *            wrap mode for both s and t coordinates
+	 * @param minFilter
+	 *            minifying filter
+	 * @param magFilter
+	 *            magnifying filter
+	 */
+	public void setParameters(int wrap, int minFilter, int magFilter) {
+		OGLState state = OGLState.get();
+		bind();
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, wrap);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, wrap);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, minFilter);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, magFilter);
+	}
+
 	public void bind() {
-		glBindTexture(GL_TEXTURE_2D, textureID);
+		OGLState.get().bindTexture(GL_TEXTURE_2D, textureID);
 	}
 
 	@Override
 	public void bind(int shaderProgram, String name, int slot) {
-		glActiveTexture(GL_TEXTURE0 + slot);
+		OGLState.get().activeTexture(GL_TEXTURE0 + slot);
 		bind();
 		glUniform1i(glGetUniformLocation(shaderProgram, name), slot);
 	}
@@ -349,6 +454,31 @@ public class OGLTexture2D implements OGLTexture {
 		return height;
 	}
 
+	/**
+	 * @param level
+	 *            mipmap level
+	 * @return width of the level
+	 */
+	public int getWidth(int level) {
+		return Math.max(1, width >> level);
+	}
+
+	/**
+	 * @param level
+	 *            mipmap level
+	 * @return height of the level
+	 */
+	public int getHeight(int level) {
+		return Math.max(1, height >> level);
+	}
+
+	/**
+	 * @return number of allocated mipmap levels
+	 */
+	public int getLevels() {
+		return levels;
+	}
+
 	public BufferedImage toBufferedImage() {
 		bind();
 		int[] arr = new int[width*height];
@@ -367,6 +497,14 @@ public class OGLTexture2D implements OGLTexture {
 				GL_UNSIGNED_INT_8_8_8_8_REV, array);
 	}
 
+	/**
+	 * Delete the texture, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
+
 	@Override
 	public String toString() {
 		String text = new String();
@@ -375,13 +513,4 @@ public class OGLTexture2D implements OGLTexture {
 						 getHeight() + "] ");
 		return  text;
 	}
-	
-	@Override
-	public void finalize() throws Throwable{
-		super.finalize();
-		//if (glIsTexture(textureID))
-		//	glDeleteTextures(textureID);
-	}
-	
-
 }
@@ -0,0 +1,417 @@
+package lwjglutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Atlas of many small images packed into one texture by skyline bin packing.
+ * Each image is surrounded by a gutter of padding texels repeating its
+ * edges, so that bilinear filtering does not mix neighbouring images.
+ * <p>
+ * Mipmaps: the padded rectangles are aligned to 2^maxLevel texels and the
+ * levels are box filtered, so every texel of a level covers one image only;
+ * maxLevel is the highest level whose gutter is still at least one texel
+ * wide, i.e. log2(padding).
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OGLTextureAtlas atlas = new OGLTextureAtlas(4096, 8);
+ * atlas.add("base", "textures/base.png");
+ * atlas.add("prop", "textures/prop.png");
+ * OGLTexture2D texture = atlas.build();
+ * OGLModelOBJ model = new OGLModelOBJ("/obj/model.obj", atlas); // texture coordinates remapped
+ * </pre>
+ * <p>
+ * The atlas owns the images decoded from files and the converted copies,
+ * they are released by build or close.
+ */
+public class OGLTextureAtlas implements AutoCloseable {
+
+	/**
+	 * Rectangle of one image in the atlas
+	 */
+	public static class Region {
+		final String name;
+		OGLTexImageByte image;
+		// image created by the atlas, closed when released
+		final boolean owned;
+		int x, y;
+		final int width, height;
+		float u0, v0, u1, v1;
+
+		Region(String name, OGLTexImageByte image, boolean owned) {
+			this.name = name;
+			this.image = image;
+			this.owned = owned;
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+		}
+
+		/**
+		 * @param u
+		 *            texture coordinate in the source image
+		 * @return texture coordinate in the atlas
+		 */
+		public float mapU(float u) {
+			return u0 + u * (u1 - u0);
+		}
+
+		/**
+		 * @param v
+		 *            texture coordinate in the source image
+		 * @return texture coordinate in the atlas
+		 */
+		public float mapV(float v) {
+			return v0 + v * (v1 - v0);
+		}
+
+		/**
+		 * @return offset and scale (u0, v0, u1 - u0, v1 - v0) for mapping in
+		 *         shaders, e.g. with fract for repeated coordinates
+		 */
+		public float[] getTransform() {
+			return new float[] { u0, v0, u1 - u0, v1 - v0 };
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s [%d, %d, %dx%d]", name, x, y, width, height);
+		}
+	}
+
+	/**
+	 * Bottom-left skyline, each node is a horizontal segment of the upper
+	 * boundary of the packed rectangles
+	 */
+	private static class Skyline {
+		final int width, height;
+		final List<int[]> nodes = new ArrayList<>(); // x, y, width
+
+		Skyline(int width, int height) {
+			this.width = width;
+			this.height = height;
+			nodes.add(new int[] { 0, 0, width });
+		}
+
+		/**
+		 * @return position x, y of the rectangle or null if it does not fit
+		 */
+		int[] insert(int w, int h) {
+			int best = -1, bestY = Integer.MAX_VALUE, bestWidth = Integer.MAX_VALUE;
+			for (int i = 0; i < nodes.size(); i++) {
+				int y = fit(i, w, h);
+				if (y >= 0 && (y < bestY || (y == bestY && nodes.get(i)[2] < bestWidth))) {
+					best = i;
+					bestY = y;
+					bestWidth = nodes.get(i)[2];
+				}
+			}
+			if (best < 0)
+				return null;
+			int x = nodes.get(best)[0];
+			nodes.add(best, new int[] { x, bestY + h, w });
+			// shrink or remove the nodes covered by the new one
+			for (int i = best + 1; i < nodes.size(); i++) {
+				int[] node = nodes.get(i), previous = nodes.get(i - 1);
+				int overlap = previous[0] + previous[2] - node[0];
+				if (overlap <= 0)
+					break;
+				node[0] += overlap;
+				node[2] -= overlap;
+				if (node[2] > 0)
+					break;
+				nodes.remove(i--);
+			}
+			for (int i = 0; i < nodes.size() - 1; i++) {
+				if (nodes.get(i)[1] == nodes.get(i + 1)[1]) {
+					nodes.get(i)[2] += nodes.get(i + 1)[2];
+					nodes.remove(i-- + 1);
+				}
+			}
+			return new int[] { x, bestY };
+		}
+
+		private int fit(int index, int w, int h) {
+			int x = nodes.get(index)[0];
+			if (x + w > width)
+				return -1;
+			int y = 0;
+			for (int i = index, remaining = w; remaining > 0; i++) {
+				int[] node = nodes.get(i);
+				y = Math.max(y, node[1]);
+				if (y + h > height)
+					return -1;
+				remaining -= node[2];
+			}
+			return y;
+		}
+	}
+
+	private final int maxSize;
+	private final int padding;
+	private final int maxLevel;
+	private final int alignment;
+	private final Map<String, Region> regions = new LinkedHashMap<>();
+	private int width, height;
+	private boolean packed = false;
+
+	/**
+	 * Create empty atlas
+	 *
+	 * @param maxSize
+	 *            maximal width and height of the atlas, e.g.
+	 *            GL_MAX_TEXTURE_SIZE
+	 * @param padding
+	 *            gutter around each image in texels
+	 */
+	public OGLTextureAtlas(int maxSize, int padding) {
+		this.maxSize = maxSize;
+		this.padding = padding;
+		this.maxLevel = padding > 0 ? 31 - Integer.numberOfLeadingZeros(padding) : 0;
+		this.alignment = 1 << maxLevel;
+	}
+
+	/**
+	 * Add image, it is converted to RGBA if needed
+	 *
+	 * @param name
+	 *            name of the region, e.g. material name
+	 * @param image
+	 *            image of the region
+	 */
+	public void add(String name, OGLTexImageByte image) {
+		add(name, image, false);
+	}
+
+	private void add(String name, OGLTexImageByte image, boolean owned) {
+		OGLTexImageByte source = image;
+		switch (image.getFormat().getComponentCount()) {
+		case 1:
+			image = new OGLTexImageConverter().setSwizzle(0, 0, 0, OGLTexImageConverter.ONE).convert(image);
+			break;
+		case 2:
+			image = new OGLTexImageConverter().setSwizzle(0, 0, 0, 1).convert(image);
+			break;
+		case 3:
+			image = new OGLTexImageConverter().setSwizzle(0, 1, 2, OGLTexImageConverter.ONE).convert(image);
+			break;
+		}
+		if (image != source && owned)
+			source.close();
+		Region previous = regions.put(name, new Region(name, image, owned || image != source));
+		if (previous != null)
+			release(previous);
+		packed = false;
+	}
+
+	/**
+	 * Add image file
+	 *
+	 * @param name
+	 *            name of the region, e.g. material name
+	 * @param fileName
+	 *            resource path of the image
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public void add(String name, String fileName) throws IOException {
+		add(name, OGLTexture2D.decode(fileName), true);
+	}
+
+	/**
+	 * Place all regions, the smallest power of two size that fits is chosen
+	 *
+	 * @throws RuntimeException
+	 *             if the images do not fit into maxSize
+	 */
+	public void pack() {
+		List<Region> sorted = new ArrayList<>(regions.values());
+		// taller images first leave a flatter skyline
+		Collections.sort(sorted, (a, b) -> b.height != a.height ? b.height - a.height : b.width - a.width);
+		long area = 0;
+		for (Region region : sorted)
+			area += (long) paddedSize(region.width) * paddedSize(region.height);
+		int size = alignment;
+		while ((long) size * size < area && size < maxSize)
+			size *= 2;
+		for (; size <= maxSize; size *= 2) {
+			// try a rectangle half as high before the square
+			for (int h = Math.max(alignment, size / 2); h <= size; h *= 2) {
+				if (place(sorted, size, h)) {
+					width = size;
+					height = h;
+					for (Region region : sorted) {
+						region.u0 = region.x / (float) width;
+						region.v0 = region.y / (float) height;
+						region.u1 = (region.x + region.width) / (float) width;
+						region.v1 = (region.y + region.height) / (float) height;
+					}
+					packed = true;
+					return;
+				}
+			}
+		}
+		throw new RuntimeException("Images do not fit into atlas of " + maxSize + "x" + maxSize + " texels.");
+	}
+
+	private boolean place(List<Region> sorted, int w, int h) {
+		Skyline skyline = new Skyline(w, h);
+		for (Region region : sorted) {
+			int[] position = skyline.insert(paddedSize(region.width), paddedSize(region.height));
+			if (position == null)
+				return false;
+			region.x = position[0] + padding;
+			region.y = position[1] + padding;
+		}
+		return true;
+	}
+
+	private int paddedSize(int size) {
+		return (size + 2 * padding + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Compose the atlas image, gutters repeat the edge texels of the images
+	 *
+	 * @return RGBA image of the atlas
+	 */
+	public OGLTexImageByte getImage() {
+		if (!packed)
+			pack();
+		for (Region region : regions.values())
+			if (region.image == null)
+				throw new IllegalStateException("Images of the atlas were released by build or close.");
+		OGLTexImageByte atlas = new OGLTexImageByte(width, height, 1, 4);
+		ByteBuffer target = atlas.getDataBuffer();
+		regions.values().parallelStream().forEach(region -> {
+			ByteBuffer source = region.image.getDataBuffer();
+			int right = paddedSize(region.width) - padding - region.width;
+			int bottom = paddedSize(region.height) - padding - region.height;
+			byte[] row = new byte[(padding + region.width + right) * 4];
+			for (int y = -padding; y < region.height + bottom; y++) {
+				int sy = Math.min(Math.max(y, 0), region.height - 1);
+				for (int x = -padding; x < region.width + right; x++) {
+					int sx = Math.min(Math.max(x, 0), region.width - 1);
+					for (int c = 0; c < 4; c++)
+						row[(x + padding) * 4 + c] = source.get((sy * region.width + sx) * 4 + c);
+				}
+				ByteBuffer line = target.duplicate();
+				line.position(((region.y + y) * width + region.x - padding) * 4);
+				line.put(row);
+			}
+		});
+		return atlas;
+	}
+
+	/**
+	 * Pack the images and create texture with mipmaps up to maxLevel, the
+	 * images are released after the upload, regions stay valid
+	 *
+	 * @return texture of the atlas
+	 */
+	public OGLTexture2D build() {
+		OGLTexImageByte image = getImage();
+		OGLTexture2D texture = new OGLTexture2D(width, height, image.getFormat(), null);
+		OGLMipmapBuilder builder = new OGLMipmapBuilder().setFilter(OGLMipmapBuilder.Filter.BOX);
+		List<OGLTexImageByte> levels = builder.build(image);
+		builder.upload(texture, levels.subList(0, Math.min(levels.size(), maxLevel + 1)));
+		for (Region region : regions.values())
+			release(region);
+		return texture;
+	}
+
+	private static void release(Region region) {
+		if (region.owned && region.image != null)
+			region.image.close();
+		region.image = null;
+	}
+
+	/**
+	 * @param name
+	 *            name of the region
+	 * @return region or null if no image of the name was added
+	 */
+	public Region getRegion(String name) {
+		if (!packed)
+			pack();
+		return regions.get(name);
+	}
+
+	public Collection<Region> getRegions() {
+		if (!packed)
+			pack();
+		return Collections.unmodifiableCollection(regions.values());
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getPadding() {
+		return padding;
+	}
+
+	/**
+	 * @return highest mipmap level free of bleeding between regions
+	 */
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * @return fraction of the atlas covered by images
+	 */
+	public float getOccupancy() {
+		long used = 0;
+		for (Region region : regions.values())
+			used += (long) region.width * region.height;
+		return width * height == 0 ? 0 : used / (float) ((long) width * height);
+	}
+
+	/**
+	 * Release the images not released by build yet, regions stay valid
+	 */
+	@Override
+	public void close() {
+		for (Region region : regions.values())
+			release(region);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLTextureAtlas: [%dx%d] regions: %d, occupancy: %.0f %%, padding: %d, "
+				+ "levels: %d", width, height, regions.size(), getOccupancy() * 100, padding, maxLevel + 1);
+	}
+}
@@ -0,0 +1,238 @@
+package lwjglutils;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Cache of textures loaded from resource files. Textures are shared per
+ * resource path and sampling parameters and reference counted; textures no
+ * longer referenced stay loaded until the estimated GPU memory of all cached
+ * textures exceeds the budget, then the least recently used of them are
+ * deleted.
+ * <p>
+ * Usage: acquire the texture instead of constructing OGLTexture2D, release it
+ * when it is not needed, never delete an acquired texture directly.
+ */
+public class OGLTextureCache {
+
+	/**
+	 * Resource path with sampling parameters
+	 */
+	public static class Key {
+		final String path;
+		final int wrap, minFilter, magFilter;
+
+		public Key(String path, int wrap, int minFilter, int magFilter) {
+			this.path = path;
+			this.wrap = wrap;
+			this.minFilter = minFilter;
+			this.magFilter = magFilter;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key) obj;
+			return path.equals(key.path) && wrap == key.wrap && minFilter == key.minFilter
+					&& magFilter == key.magFilter;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((path.hashCode() * 31 + wrap) * 31 + minFilter) * 31 + magFilter;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s [wrap: 0x%x, min: 0x%x, mag: 0x%x]", path, wrap, minFilter,
+					magFilter);
+		}
+	}
+
+	private static class Entry {
+		final Key key;
+		final OGLTexture2D texture;
+		final long bytes;
+		int references = 0;
+
+		Entry(Key key, OGLTexture2D texture, long bytes) {
+			this.key = key;
+			this.texture = texture;
+			this.bytes = bytes;
+		}
+	}
+
+	// access order, the first entry is the least recently used
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<OGLTexture2D, Entry> byTexture = new IdentityHashMap<>();
+	private long budget;
+	private long bytes = 0;
+	private int hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * Create cache
+	 *
+	 * @param budget
+	 *            estimated GPU memory in bytes kept by unreferenced textures
+	 *            at most
+	 */
+	public OGLTextureCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Get shared texture with clamped coordinates and linear filtering
+	 *
+	 * @param path
+	 *            resource path of the image
+	 * @return texture, to be released by release(OGLTexture2D)
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public OGLTexture2D acquire(String path) throws IOException {
+		return acquire(path, GL_CLAMP_TO_EDGE, GL_LINEAR, GL_LINEAR);
+	}
+
+	/**
+	 * Get shared texture, the image is loaded unless a texture with the same
+	 * path and sampling parameters is cached
+	 *
+	 * @param path
+	 *            resource path of the image
+	 * @param wrap
+	 *            wrap mode for both s and t coordinates
+	 * @param minFilter
+	 *            minifying filter, mipmaps are generated for mipmap filters
+	 * @param magFilter
+	 *            magnifying filter
+	 * @return texture, to be released by release(OGLTexture2D)
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public OGLTexture2D acquire(String path, int wrap, int minFilter, int magFilter) throws IOException {
+		Key key = new Key(path, wrap, minFilter, magFilter);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			OGLTexture2D texture = new OGLTexture2D(path);
+			texture.setParameters(wrap, minFilter, magFilter);
+			boolean mipmaps = minFilter != GL_LINEAR && minFilter != GL_NEAREST;
+			if (mipmaps)
+				glGenerateMipmap(GL_TEXTURE_2D);
+			// RGBA8, a full mipmap chain adds one third
+			long size = 4L * texture.getWidth() * texture.getHeight();
+			entry = new Entry(key, texture, mipmaps ? size * 4 / 3 : size);
+			entries.put(key, entry);
+			byTexture.put(texture, entry);
+			bytes += entry.bytes;
+		} else {
+			hits++;
+		}
+		entry.references++;
+		evict();
+		return entry.texture;
+	}
+
+	/**
+	 * Release texture obtained by acquire, the texture may be deleted when it
+	 * is not referenced any more
+	 *
+	 * @param texture
+	 *            released texture
+	 */
+	public void release(OGLTexture2D texture) {
+		Entry entry = byTexture.get(texture);
+		if (entry == null || entry.references == 0)
+			throw new RuntimeException("Texture not acquired from the cache: " + texture);
+		entry.references--;
+		// a texture just released is the most recently used one
+		entries.get(entry.key);
+		evict();
+	}
+
+	private void evict() {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && bytes > budget;) {
+			Entry entry = it.next();
+			if (entry.references == 0) {
+				it.remove();
+				remove(entry);
+			}
+		}
+	}
+
+	private void remove(Entry entry) {
+		byTexture.remove(entry.texture);
+		bytes -= entry.bytes;
+		evictions++;
+		entry.texture.close();
+	}
+
+	/**
+	 * Delete all unreferenced textures regardless of the budget
+	 */
+	public void trim() {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.references == 0) {
+				it.remove();
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Delete all textures including referenced ones
+	 */
+	public void clear() {
+		for (Entry entry : entries.values())
+			remove(entry);
+		entries.clear();
+	}
+
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return estimated GPU memory of all cached textures in bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	public int getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLTextureCache: textures: %d, %.1f/%.1f MB, hits: %d, misses: %d, "
+				+ "evictions: %d", entries.size(), bytes / 1048576.0, budget / 1048576.0, hits, misses, evictions);
+	}
+}
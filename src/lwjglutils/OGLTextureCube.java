@@ -1,7 +1,8 @@
 package lwjglutils;
 
 
-import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 import transforms.Mat4Scale;
 import transforms.Mat4Transl;
 
@@ -9,17 +10,20 @@ import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
-import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL42.glTexStorage2D;
 
 public class OGLTextureCube implements OGLTexture {
 	
 	private final int textureID;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLTextureCube");
+	private long bytes = 0;
 	
 	private class TargetSize {
 		private final int width, height;
@@ -113,30 +117,25 @@ public class OGLTextureCube implements OGLTexture {
 		@Override
 		public void view(int textureID, double x, double y, double scale, double aspectXY, int level) {
 			if (glIsProgram(shaderProgram)) {
+				OGLState state = OGLState.get();
 				glPushAttrib(GL_DEPTH_BUFFER_BIT|GL_ENABLE_BIT);
-				int sp[] = {'0'};
-				glGetIntegerv(GL_CURRENT_PROGRAM, sp);
-				glUseProgram(shaderProgram);
-				glActiveTexture(GL_TEXTURE0);
-				glEnable(GL_TEXTURE_CUBE_MAP);
+				int sp = state.getProgram();
+				state.useProgram(shaderProgram);
+				state.activeTexture(GL_TEXTURE0);
+				state.enable(GL_TEXTURE_CUBE_MAP);
 				glUniformMatrix4fv(locMat, false, ToFloatArray
 						.convert(new Mat4Scale(scale * aspectXY, scale, 1).mul(new Mat4Transl(x, y, 0))));
 				glUniform1i(locLevel, level);
-				glBindTexture(GL_TEXTURE_CUBE_MAP, textureID);
+				state.bindTexture(GL_TEXTURE_CUBE_MAP, textureID);
 				glUniform1i(glGetUniformLocation(shaderProgram, "drawTexture"), 0);
 				buffers.draw(GL_TRIANGLE_STRIP, shaderProgram);
-				glDisable(GL_TEXTURE_CUBE_MAP);
-				glUseProgram(sp[0]);
+				state.disable(GL_TEXTURE_CUBE_MAP);
+				if (sp != OGLState.UNKNOWN)
+					state.useProgram(sp);
 				glPopAttrib();
+				state.invalidateCapabilities();
 			}
 		}
-		
-		@Override
-		public void finalize() throws Throwable {
-			super.finalize();
-			//if (glIsProgram(shaderProgram))
-			//	glDeleteProgram(shaderProgram);
-		}
 	}
 	
 	private OGLTextureCube() {
@@ -145,65 +144,237 @@ public class OGLTextureCube implements OGLTexture {
 		bind();
 	}
 		
-	private void read(String fileName, int target) throws IOException {
-        IntBuffer width = BufferUtils.createIntBuffer(1);
-        IntBuffer height = BufferUtils.createIntBuffer(1);
-        IntBuffer components = BufferUtils.createIntBuffer(1);
-        
-        System.out.print("Reading texture file " + fileName);
-		
-        ByteBuffer imageBuffer  = OGLTexture2D.ioResourceToByteBuffer(fileName, 1024);
-        
-        if (!stbi_info_from_memory(imageBuffer, width, height, components))
-            throw new IOException("Failed to read image information: " + stbi_failure_reason());
+	private void setParameters() {
+		OGLState state = OGLState.get();
+		state.texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+	}
 
-        ByteBuffer data = stbi_load_from_memory(imageBuffer, width, height, components, 4);
-        
-        if (data == null)
-            throw new IOException("Failed to load image: " + stbi_failure_reason());
-        
-        System.out.println(" ... OK [" + width.get(0) + "x" + height.get(0) + "]");
-        
-        data.rewind();
+	/**
+	 * Create cube map from face images
+	 * 
+	 * @param faces
+	 *            six images in the order +x, -x, +y, -y, +z, -z
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTextureCube(OGLTexImageType[] faces) {
+		this(faces, false);
+	}
 
-        targetSize[target] = new TargetSize(width.get(0), height.get(0));
-        glBindTexture(GL_TEXTURE_CUBE_MAP, textureID);
-        glTexImage2D(TARGETS[target], 0, GL_RGBA, 
-				width.get(0), height.get(0), 0, 
-				GL_RGBA, GL_UNSIGNED_BYTE, data);
-		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		stbi_image_free(data);
+	/**
+	 * Create cube map from face images, with mipmaps the storage is immutable
+	 * (glTexStorage2D) if supported
+	 * 
+	 * @param faces
+	 *            six images in the order +x, -x, +y, -y, +z, -z
+	 * @param mipmaps
+	 *            true to generate mipmaps and filter trilinearly
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTextureCube(OGLTexImageType[] faces,
+			boolean mipmaps) {
+		this();
+		upload(faces, mipmaps);
 	}
-	
-	public OGLTextureCube(String[] fileNames) throws IOException {
+
+	private <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void upload(OGLTexImageType[] faces,
+			boolean mipmaps) {
+		OGLTexImage.Format<OGLTexImageType> format = faces[0].getFormat();
+		int width = faces[0].getWidth(), height = faces[0].getHeight();
+		int storageFormat = mipmaps ? sizedFormat(format.getInternalFormat()) : -1;
+		GLCapabilities caps = GL.getCapabilities();
+		boolean storage = storageFormat >= 0 && (caps.OpenGL42 || caps.GL_ARB_texture_storage);
+		for (OGLTexImageType face : faces)
+			if (face.getWidth() != width || face.getHeight() != height)
+				storage = false;
+		int levels = mipmaps ? 32 - Integer.numberOfLeadingZeros(Math.max(width, height)) : 1;
+		bind();
+		if (storage)
+			glTexStorage2D(GL_TEXTURE_CUBE_MAP, levels, storageFormat, width, height);
+		for (int i = 0; i < faces.length; i++) {
+			OGLTexImageType face = faces[i];
+			targetSize[i] = new TargetSize(face.getWidth(), face.getHeight());
+			Buffer data = face.getDataBuffer();
+			if (storage) {
+				if (data instanceof FloatBuffer)
+					glTexSubImage2D(TARGETS[i], 0, 0, 0, face.getWidth(), face.getHeight(),
+							format.getPixelFormat(), format.getPixelType(), (FloatBuffer) data);
+				else
+					glTexSubImage2D(TARGETS[i], 0, 0, 0, face.getWidth(), face.getHeight(),
+							format.getPixelFormat(), format.getPixelType(), (ByteBuffer) data);
+			} else {
+				if (data instanceof FloatBuffer)
+					glTexImage2D(TARGETS[i], 0, format.getInternalFormat(), face.getWidth(), face.getHeight(), 0,
+							format.getPixelFormat(), format.getPixelType(), (FloatBuffer) data);
+				else
+					glTexImage2D(TARGETS[i], 0, format.getInternalFormat(), face.getWidth(), face.getHeight(), 0,
+							format.getPixelFormat(), format.getPixelType(), (ByteBuffer) data);
+			}
+			bytes += (long) face.getWidth() * face.getHeight()
+					* OGLResourceTracker.bytesPerTexel(format.getInternalFormat());
+		}
+		setParameters();
+		if (mipmaps) {
+			glGenerateMipmap(GL_TEXTURE_CUBE_MAP);
+			OGLState.get().texParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+			bytes = bytes * 4 / 3;
+		}
+		handle.add(OGLResourceTracker.TEXTURE, textureID, bytes);
+	}
+
+	private static int sizedFormat(int internalFormat) {
+		switch (internalFormat) {
+		case GL_RED:
+			return GL_R8;
+		case GL_RG:
+			return GL_RG8;
+		case GL_RGB:
+			return GL_RGB8;
+		case GL_RGBA:
+			return GL_RGBA8;
+		case GL_R32F:
+		case GL_RG32F:
+		case GL_RGB32F:
+		case GL_RGBA32F:
+			return internalFormat;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Decode images on worker threads of the common pool
+	 * 
+	 * @return decoded images, closed by the caller
+	 */
+	private static OGLTexImageByte[] decode(String[] fileNames) throws IOException {
+		List<CompletableFuture<OGLTexImageByte>> futures = new ArrayList<>();
+		for (String fileName : fileNames)
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return OGLTexture2D.decode(fileName);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}));
+		OGLTexImageByte[] faces = new OGLTexImageByte[fileNames.length];
+		Throwable error = null;
+		for (int i = 0; i < faces.length; i++) {
+			try {
+				faces[i] = futures.get(i).join();
+			} catch (CompletionException e) {
+				error = e.getCause();
+			}
+		}
+		if (error != null) {
+			for (OGLTexImageByte face : faces)
+				if (face != null)
+					face.close();
+			if (error instanceof IOException)
+				throw (IOException) error;
+			throw new IOException(error);
+		}
+		return faces;
+	}
+
+	/**
+	 * Upload decoded faces and release them, the texture is created only
+	 * after all faces are decoded
+	 */
+	private OGLTextureCube(OGLTexImageByte[] decodedFaces, boolean mipmaps, boolean closeFaces) {
 		this();
-		for (int i = 0; i < fileNames.length; i++) {
-			read(fileNames[i],i);
+		try {
+			upload(decodedFaces, mipmaps);
+		} finally {
+			if (closeFaces)
+				for (OGLTexImageByte face : decodedFaces)
+					face.close();
+		}
+	}
+
+	private static String[] fileNames(String fileName, String[] suffixes) {
+		String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+		String suffix = fileName.substring(fileName.lastIndexOf('.') + 1, fileName.length());
+		String[] fileNames = new String[suffixes.length];
+		for (int i = 0; i < suffixes.length; i++)
+			fileNames[i] = baseName + suffixes[i] + "." + suffix;
+		return fileNames;
+	}
+
+	/**
+	 * Load equirectangular panorama into cube map
+	 * 
+	 * @param fileName
+	 *            resource path of the image with aspect ratio 2:1
+	 * @param faceSize
+	 *            width and height of the faces
+	 * @return cube map
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public static OGLTextureCube fromEquirectangular(String fileName, int faceSize) throws IOException {
+		try (OGLTexImageByte image = OGLTexture2D.decode(fileName)) {
+			return new OGLTextureCube(OGLCubeMapConverter.fromEquirectangular(image, faceSize));
 		}
-   }
+	}
+
+	/**
+	 * Load horizontal cross into cube map, see OGLCubeMapConverter.fromCross
+	 * 
+	 * @param fileName
+	 *            resource path of the image
+	 * @param x
+	 *            left of the cross in texels
+	 * @param y
+	 *            top of the cross in texels
+	 * @param faceSize
+	 *            width and height of the faces in the image
+	 * @return cube map
+	 * @throws IOException
+	 *             if the image cannot be read
+	 */
+	public static OGLTextureCube fromCross(String fileName, int x, int y, int faceSize) throws IOException {
+		try (OGLTexImageByte image = OGLTexture2D.decode(fileName)) {
+			return new OGLTextureCube(OGLCubeMapConverter.fromCross(image, x, y, faceSize));
+		}
+	}
+
+	public OGLTextureCube(String[] fileNames) throws IOException {
+		this(fileNames, false);
+	}
+
+	/**
+	 * Load six face images, decoded in parallel and uploaded on the calling
+	 * thread
+	 * 
+	 * @param fileNames
+	 *            resource paths of faces in the order +x, -x, +y, -y, +z, -z
+	 * @param mipmaps
+	 *            true to generate mipmaps in immutable storage if supported
+	 * @throws IOException
+	 *             if any of the images cannot be read
+	 */
+	public OGLTextureCube(String[] fileNames, boolean mipmaps) throws IOException {
+		this(decode(fileNames), mipmaps, true);
+	}
 
 	public OGLTextureCube(String fileName, String[] suffixes) throws IOException {
-		this();
-		String baseName=fileName.substring(0,fileName.lastIndexOf('.'));
-    	String suffix=fileName.substring(fileName.lastIndexOf('.')+1,fileName.length());
-    	for (int i = 0; i < suffixes.length; i++) {
-    		String fullName = new String(baseName + suffixes[i] + "." + suffix);
-    		read(fullName,i);
-    	}
-   }
+		this(fileName, suffixes, false);
+	}
+
+	public OGLTextureCube(String fileName, String[] suffixes, boolean mipmaps) throws IOException {
+		this(decode(fileNames(fileName, suffixes)), mipmaps, true);
+	}
 
 	public void bind() {
-		glBindTexture(GL_TEXTURE_CUBE_MAP, textureID);
+		OGLState.get().bindTexture(GL_TEXTURE_CUBE_MAP, textureID);
 	}
 
 	@Override
 	public void bind(int shaderProgram, String name, int slot) {
+		OGLState.get().activeTexture(GL_TEXTURE0 + slot);
 		bind();
-		glActiveTexture(GL_TEXTURE0 + slot);
 		glUniform1i(glGetUniformLocation(shaderProgram, name), slot);
 	}
 
@@ -257,7 +428,8 @@ public class OGLTextureCube implements OGLTexture {
 			OGLTexImage.Format<OGLTexImageType> format, int cubeFaceIndex) {
 		OGLTexImageType image = format.newTexImage(
 				 targetSize[cubeFaceIndex].getWidth(),  targetSize[cubeFaceIndex].getHeight());
-		image.setDataBuffer(getTextureBuffer(format, cubeFaceIndex));
+		bind();
+		OGLTexture2D.getTexImage(TARGETS[cubeFaceIndex], 0, format, image.getDataBuffer());
 		return image;
 	}
 	
@@ -269,11 +441,12 @@ public class OGLTextureCube implements OGLTexture {
 						 targetSize[0].getHeight() +  "x" +  targetSize[1].getHeight() + "] \n");
 		return  text;
 	}	
-	
+
+	/**
+	 * Delete the texture, the object must not be used any more
+	 */
 	@Override
-	public void finalize() throws Throwable {
-		super.finalize();
-		//if (glIsTexture(textureID))
-		//	glDeleteTextures(textureID);
+	public void close() {
+		handle.close();
 	}
 }
@@ -0,0 +1,485 @@
+package lwjglutils;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL44.GL_MAP_COHERENT_BIT;
+import static org.lwjgl.opengl.GL44.GL_MAP_PERSISTENT_BIT;
+import static org.lwjgl.opengl.GL44.glBufferStorage;
+
+/**
+ * Asynchronous uploader of texture images through a ring of pixel unpack
+ * buffers. Images are decoded and copied into mapped buffer memory by worker
+ * threads, the OpenGL thread only unmaps the buffer and issues
+ * glTexSubImage2D from it, which returns without waiting for the copy. A
+ * fence after each copy tells when the buffer may be written again. Large
+ * images are transferred in bands of rows fitting one buffer.
+ * <p>
+ * Buffers are mapped persistently when buffer storage (GL 4.4) is available,
+ * otherwise each buffer is mapped before it is handed to a worker.
+ * <p>
+ * update must be called on the OpenGL thread once per frame; returned futures
+ * are completed during update, so dependent actions attached to them run on
+ * the OpenGL thread too.
+ */
+public class OGLTextureStreamer implements AutoCloseable {
+
+	private interface RowWriter {
+		void write(ByteBuffer target, int row, int count);
+	}
+
+	private static class Request {
+		final CompletableFuture<OGLTexture2D> future = new CompletableFuture<>();
+		final List<? extends OGLTexImage<?>> images;
+		final int firstLevel, x, y;
+		OGLTexture2D texture;
+		boolean created = false;
+		boolean ownsImages = false;
+		int level = 0, row = 0;
+		int outstanding = 0;
+
+		Request(OGLTexture2D texture, List<? extends OGLTexImage<?>> images, int firstLevel, int x, int y) {
+			this.texture = texture;
+			this.images = images;
+			this.firstLevel = firstLevel;
+			this.x = x;
+			this.y = y;
+		}
+
+		boolean isDispatched() {
+			return level == images.size();
+		}
+	}
+
+	private static class Slot {
+		final int buffer;
+		ByteBuffer mapped;
+		long fence;
+		Request request;
+		int level, row, rows;
+		Throwable error;
+
+		Slot(int buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	private final int slotSize;
+	private final boolean persistent;
+	private final Executor executor;
+	private final List<Slot> slots = new ArrayList<>();
+	private final ArrayDeque<Slot> free = new ArrayDeque<>();
+	private final List<Slot> inFlight = new ArrayList<>();
+	private final ConcurrentLinkedQueue<Slot> written = new ConcurrentLinkedQueue<>();
+	private final ArrayDeque<Request> pending = new ArrayDeque<>();
+	// loads failed on a worker, completed by update
+	private final ConcurrentLinkedQueue<Runnable> failed = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger writing = new AtomicInteger();
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLTextureStreamer");
+	private long frameBudget = Long.MAX_VALUE;
+	private long uploadedBytes = 0;
+	private int uploadedTextures = 0;
+
+	/**
+	 * Create streamer with 4 buffers of 4 MB using the common fork-join pool
+	 */
+	public OGLTextureStreamer() {
+		this(4, 4 << 20, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create streamer
+	 *
+	 * @param slotCount
+	 *            number of pixel buffers in the ring
+	 * @param slotSize
+	 *            size of each buffer in bytes, one row of an image must fit
+	 * @param executor
+	 *            worker threads decoding and copying images
+	 */
+	public OGLTextureStreamer(int slotCount, int slotSize, Executor executor) {
+		this.slotSize = slotSize;
+		this.executor = executor;
+		GLCapabilities caps = GL.getCapabilities();
+		this.persistent = caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+		OGLState state = OGLState.get();
+		for (int i = 0; i < slotCount; i++) {
+			Slot slot = new Slot(glGenBuffers());
+			state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.buffer);
+			if (persistent) {
+				int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+				glBufferStorage(GL_PIXEL_UNPACK_BUFFER, slotSize, flags);
+				slot.mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, slotSize, flags);
+			} else {
+				glBufferData(GL_PIXEL_UNPACK_BUFFER, slotSize, GL_STREAM_DRAW);
+			}
+			handle.add(OGLResourceTracker.BUFFER, slot.buffer, slotSize);
+			slots.add(slot);
+			free.add(slot);
+		}
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+	/**
+	 * Load image file into a new texture, decoding runs on a worker thread
+	 *
+	 * @param fileName
+	 *            resource path of the image
+	 * @param mipmaps
+	 *            true to build the mipmap chain on the worker thread and
+	 *            filter trilinearly
+	 * @return future completed with the texture on the OpenGL thread
+	 */
+	public CompletableFuture<OGLTexture2D> load(String fileName, boolean mipmaps) {
+		CompletableFuture<OGLTexture2D> result = new CompletableFuture<>();
+		CompletableFuture.supplyAsync(() -> {
+			try {
+				OGLTexImageByte image = OGLTexture2D.decode(fileName);
+				return mipmaps ? new OGLMipmapBuilder().build(image) : Collections.singletonList(image);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor).whenComplete((images, error) -> {
+			if (error != null) {
+				failed.add(() -> result.completeExceptionally(error));
+			} else {
+				Request request = new Request(null, images, 0, 0, 0);
+				request.ownsImages = true;
+				request.future.whenComplete((texture, e) -> {
+					if (e != null)
+						result.completeExceptionally(e);
+					else
+						result.complete(texture);
+				});
+				// workers only append, update on the OpenGL thread consumes
+				synchronized (pending) {
+					pending.add(request);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Upload image into a level of an existing texture
+	 *
+	 * @param texture
+	 *            target texture
+	 * @param image
+	 *            image of the size of the level
+	 * @param level
+	 *            mipmap level
+	 * @return future completed with the texture when the copy is issued
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> CompletableFuture<OGLTexture2D> upload(
+			OGLTexture2D texture, OGLTexImageType image, int level) {
+		return upload(texture, image, level, 0, 0);
+	}
+
+	/**
+	 * Upload image into a rectangle of a level of an existing texture
+	 *
+	 * @param texture
+	 *            target texture
+	 * @param image
+	 *            image of the size of the rectangle
+	 * @param level
+	 *            mipmap level
+	 * @param x
+	 *            left of the rectangle in texels
+	 * @param y
+	 *            top of the rectangle in texels
+	 * @return future completed with the texture when the copy is issued
+	 */
+	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> CompletableFuture<OGLTexture2D> upload(
+			OGLTexture2D texture, OGLTexImageType image, int level, int x, int y) {
+		Request request = new Request(texture, Collections.singletonList(image), level, x, y);
+		synchronized (pending) {
+			pending.add(request);
+		}
+		return request.future;
+	}
+
+	/**
+	 * Recycle buffers whose copies are finished, issue copies of written
+	 * buffers and hand free buffers to workers, must be called on the OpenGL
+	 * thread
+	 */
+	public void update() {
+		OGLState state = OGLState.get();
+		Runnable failure;
+		while ((failure = failed.poll()) != null)
+			failure.run();
+		for (Iterator<Slot> it = inFlight.iterator(); it.hasNext();) {
+			Slot slot = it.next();
+			int status = glClientWaitSync(slot.fence, 0, 0);
+			if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED) {
+				glDeleteSync(slot.fence);
+				slot.fence = 0;
+				it.remove();
+				free.add(slot);
+			}
+		}
+
+		Slot slot;
+		boolean copied = false;
+		while ((slot = written.poll()) != null) {
+			copy(slot);
+			copied = true;
+		}
+
+		long budget = frameBudget;
+		while (budget > 0 && !free.isEmpty()) {
+			Request request;
+			synchronized (pending) {
+				request = pending.peek();
+			}
+			if (request == null)
+				break;
+			budget -= dispatch(request);
+		}
+
+		if (copied || budget != frameBudget) {
+			glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+			state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		}
+	}
+
+	private long dispatch(Request request) {
+		OGLTexImage<?> image = request.images.get(request.level);
+		int rowBytes = image.getWidth() * image.getFormat().getComponentCount() * bytesPerComponent(image);
+		if (rowBytes > slotSize) {
+			fail(request, new RuntimeException("Row of " + rowBytes + " B does not fit the streaming buffer of "
+					+ slotSize + " B."));
+			return 0;
+		}
+		if (request.texture == null) {
+			request.texture = new OGLTexture2D(image.getWidth(), image.getHeight(),
+					image.getFormat().getInternalFormat(), image.getFormat().getPixelFormat(),
+					image.getFormat().getPixelType(), null);
+			request.created = true;
+		}
+
+		Slot slot = free.poll();
+		slot.request = request;
+		slot.level = request.level;
+		slot.row = request.row;
+		slot.rows = Math.min(image.getHeight() - request.row, slotSize / rowBytes);
+		slot.error = null;
+		request.outstanding++;
+		request.row += slot.rows;
+		if (request.row == image.getHeight()) {
+			request.row = 0;
+			request.level++;
+			if (request.isDispatched())
+				synchronized (pending) {
+					pending.poll();
+				}
+		}
+
+		int bytes = slot.rows * rowBytes;
+		ByteBuffer target;
+		if (persistent) {
+			target = slot.mapped;
+		} else {
+			OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.buffer);
+			// the fence of the previous copy is signaled, no need to synchronize
+			target = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+					GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+		}
+		ByteBuffer destination = target.duplicate().order(ByteOrder.nativeOrder());
+		destination.clear();
+		RowWriter writer = writer(image, rowBytes);
+		writing.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				writer.write(destination, slot.row, slot.rows);
+			} catch (Throwable e) {
+				slot.error = e;
+			}
+			written.add(slot);
+			writing.decrementAndGet();
+		});
+		return bytes;
+	}
+
+	private void copy(Slot slot) {
+		Request request = slot.request;
+		OGLState state = OGLState.get();
+		state.bindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.buffer);
+		if (!persistent)
+			glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+		request.outstanding--;
+
+		if (slot.error != null) {
+			fail(request, slot.error);
+		} else if (!request.future.isDone()) {
+			OGLTexImage<?> image = request.images.get(slot.level);
+			int level = request.firstLevel + slot.level;
+			OGLTexImage.Format<?> format = image.getFormat();
+			request.texture.bind();
+			request.texture.allocateLevels(level, format.getPixelFormat(), format.getPixelType());
+			glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+			glTexSubImage2D(GL_TEXTURE_2D, level, request.x, request.y + slot.row, image.getWidth(), slot.rows,
+					format.getPixelFormat(), format.getPixelType(), 0L);
+			uploadedBytes += (long) slot.rows * image.getWidth() * format.getComponentCount()
+					* bytesPerComponent(image);
+			if (request.outstanding == 0 && request.isDispatched())
+				finish(request);
+		} else if (request.outstanding == 0) {
+			// last band of a failed request
+			release(request);
+		}
+		slot.request = null;
+		slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		inFlight.add(slot);
+	}
+
+	private void finish(Request request) {
+		if (request.created && request.images.size() > 1) {
+			OGLState state = OGLState.get();
+			request.texture.bind();
+			state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+			state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, request.images.size() - 1);
+			state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+		}
+		uploadedTextures++;
+		request.future.complete(request.texture);
+		release(request);
+	}
+
+	private void fail(Request request, Throwable error) {
+		synchronized (pending) {
+			pending.remove(request);
+		}
+		request.future.completeExceptionally(error);
+		if (request.outstanding == 0)
+			release(request);
+	}
+
+	/**
+	 * Close decoded images and the texture of a failed request, no worker may
+	 * use them
+	 */
+	private static void release(Request request) {
+		if (request.ownsImages)
+			for (OGLTexImage<?> image : request.images)
+				image.close();
+		if (request.created && request.future.isCompletedExceptionally())
+			request.texture.close();
+	}
+
+	private static int bytesPerComponent(OGLTexImage<?> image) {
+		return image instanceof OGLTexImageFloat ? 4 : 1;
+	}
+
+	private static RowWriter writer(OGLTexImage<?> image, int rowBytes) {
+		if (image instanceof OGLTexImageByte) {
+			ByteBuffer data = ((OGLTexImageByte) image).getDataBuffer();
+			return (target, row, count) -> {
+				ByteBuffer rows = data.duplicate();
+				rows.position(row * rowBytes).limit((row + count) * rowBytes);
+				target.put(rows);
+			};
+		}
+		if (image instanceof OGLTexImageFloat) {
+			FloatBuffer data = ((OGLTexImageFloat) image).getDataBuffer();
+			int rowFloats = rowBytes / 4;
+			return (target, row, count) -> {
+				FloatBuffer rows = data.duplicate();
+				rows.position(row * rowFloats).limit((row + count) * rowFloats);
+				target.asFloatBuffer().put(rows);
+			};
+		}
+		throw new RuntimeException("Unsupported image type " + image.getClass().getName());
+	}
+
+	/**
+	 * @param frameBudget
+	 *            bytes handed to workers per update at most, at least one
+	 *            band is always transferred
+	 */
+	public void setFrameBudget(long frameBudget) {
+		this.frameBudget = frameBudget;
+	}
+
+	public long getFrameBudget() {
+		return frameBudget;
+	}
+
+	/**
+	 * @return number of requests waiting for a free buffer
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	public int getUploadedTextures() {
+		return uploadedTextures;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Wait for workers, fail pending requests and delete the buffers
+	 */
+	@Override
+	public void close() {
+		while (writing.get() > 0)
+			Thread.yield();
+		Slot slot;
+		while ((slot = written.poll()) != null) {
+			OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.buffer);
+			if (!persistent)
+				glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+			slot.request.outstanding--;
+			fail(slot.request, new IllegalStateException("Streamer closed."));
+		}
+		synchronized (pending) {
+			for (Request request : new ArrayList<>(pending))
+				fail(request, new IllegalStateException("Streamer closed."));
+		}
+		Runnable failure;
+		while ((failure = failed.poll()) != null)
+			failure.run();
+		for (Slot s : inFlight)
+			glDeleteSync(s.fence);
+		inFlight.clear();
+		OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		// deleting a buffer unmaps it
+		handle.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLTextureStreamer: %d x %.1f MB %s, pending: %d, uploaded: %d, %.1f MB",
+				slots.size(), slotSize / 1048576.0, persistent ? "persistent" : "mapped", getPendingCount(),
+				uploadedTextures, uploadedBytes / 1048576.0);
+	}
+}
@@ -15,6 +15,7 @@ import static org.lwjgl.opengl.GL20.*;
 public class OGLTextureVolume implements OGLTexture {
 	private final int volumeTextureID;
 	private final int width, height, depth;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLTextureVolume");
 	
 	public static class Viewer extends OGLTexture2D.Viewer {
 		private static final String shaderVertSrc[] = {
@@ -55,30 +56,25 @@ public class OGLTextureVolume implements OGLTexture {
 		@Override
 		public void view(int textureID, double x, double y, double scale, double aspectXY, int level) {
 			if (glIsProgram(shaderProgram)) {
+				OGLState state = OGLState.get();
 				glPushAttrib(GL_DEPTH_BUFFER_BIT|GL_ENABLE_BIT);
-				int sp[] = {'0'};
-				glGetIntegerv(GL_CURRENT_PROGRAM, sp);
-				glUseProgram(shaderProgram);
-				glActiveTexture(GL_TEXTURE0);
-				glEnable(GL_TEXTURE_3D);
+				int sp = state.getProgram();
+				state.useProgram(shaderProgram);
+				state.activeTexture(GL_TEXTURE0);
+				state.enable(GL_TEXTURE_3D);
 				glUniformMatrix4fv(locMat, false, ToFloatArray
 						.convert(new Mat4Scale(scale * aspectXY, scale, 1).mul(new Mat4Transl(x, y, 0))));
 				glUniform1i(locLevel, level);
-				glBindTexture(GL_TEXTURE_3D, textureID);
+				state.bindTexture(GL_TEXTURE_3D, textureID);
 				glUniform1i(glGetUniformLocation(shaderProgram, "drawTexture"), 0);
 				buffers.draw(GL_TRIANGLE_STRIP, shaderProgram);
-				glDisable(GL_TEXTURE_3D);
-				glUseProgram(sp[0]);
+				state.disable(GL_TEXTURE_3D);
+				if (sp != OGLState.UNKNOWN)
+					state.useProgram(sp);
 				glPopAttrib();
+				state.invalidateCapabilities();
 			}
 		}
-		
-		@Override
-		public void finalize() throws Throwable {
-			super.finalize();
-			//if (glIsProgram(shaderProgram))
-			//	glDeleteProgram(shaderProgram);
-		}
 	}
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTextureVolume(OGLTexImageType volume) {
@@ -87,7 +83,7 @@ public class OGLTextureVolume implements OGLTexture {
 		this.depth = volume.getDepth();
 		Buffer buffer = volume.getDataBuffer();
 		volumeTextureID = glGenTextures();
-		glBindTexture(GL_TEXTURE_3D, volumeTextureID);
+		bind();
 		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
 		if (volume.getFormat() instanceof OGLTexImageByte.Format) {
@@ -102,17 +98,20 @@ public class OGLTextureVolume implements OGLTexture {
 					volume.getFormat().getPixelType(), (FloatBuffer) buffer);
 		}
 		
-		glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-		glTexParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+		OGLState state = OGLState.get();
+		state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_3D, GL_TEXTURE_WRAP_R, GL_CLAMP_TO_EDGE);
+		handle.add(OGLResourceTracker.TEXTURE, volumeTextureID, (long) width * height * depth
+				* OGLResourceTracker.bytesPerTexel(volume.getFormat().getInternalFormat()));
 	}
 
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> void setTextureBuffer(
 			OGLTexImage.Format<OGLTexImageType> format, Buffer buffer) {
-		glBindTexture(GL_TEXTURE_3D, volumeTextureID);
+		bind();
 		glTexSubImage3D(GL_TEXTURE_3D, 0, 0, 0, 0, 
 				width, height, depth, 
 				format.getPixelFormat(), format.getPixelType(), (ByteBuffer) buffer);
@@ -120,7 +119,7 @@ public class OGLTextureVolume implements OGLTexture {
 
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> Buffer getTextureBuffer(
 			OGLTexImage.Format<OGLTexImageType> format) {
-		glBindTexture(GL_TEXTURE_3D, volumeTextureID);
+		bind();
 		Buffer buffer = format.newBuffer(width, height, depth);
 		glGetTexImage(GL_TEXTURE_3D, 0, format.getPixelFormat(), format.getPixelType(), (ByteBuffer) buffer);
 		return buffer;
@@ -133,14 +132,19 @@ public class OGLTextureVolume implements OGLTexture {
 	public <OGLTexImageType extends OGLTexImage<OGLTexImageType>> OGLTexImageType getTexImage(
 			OGLTexImage.Format<OGLTexImageType> format) {
 		OGLTexImageType image = format.newTexImage(width, height, depth);
-		image.setDataBuffer(getTextureBuffer(format));
+		bind();
+		OGLTexture2D.getTexImage(GL_TEXTURE_3D, 0, format, image.getDataBuffer());
 		return image;
 	}
 	
+	public void bind() {
+		OGLState.get().bindTexture(GL_TEXTURE_3D, volumeTextureID);
+	}
+
 	@Override
 	public void bind(int shaderProgram, String name, int slot) {
-		glActiveTexture(GL_TEXTURE0 + slot);
-		glBindTexture(GL_TEXTURE_3D, volumeTextureID);
+		OGLState.get().activeTexture(GL_TEXTURE0 + slot);
+		bind();
 		glUniform1i(glGetUniformLocation(shaderProgram, name), slot);
 	}
 	
@@ -175,11 +179,13 @@ public class OGLTextureVolume implements OGLTexture {
 						 getHeight() + "x" + getDepth() + "] \n");
 		return  text;
 	}
-		
+
+
+	/**
+	 * Delete the texture, the object must not be used any more
+	 */
 	@Override
-	public void finalize() throws Throwable {
-		super.finalize();
-		//if (glIsTexture(volumeTextureID))
-		//	glDeleteTextures(volumeTextureID);
+	public void close() {
+		handle.close();
 	}
 }
@@ -0,0 +1,334 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+import transforms.Mat4;
+import transforms.Point3D;
+import transforms.Vec3D;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Uniform buffer object holding one or more instances of a std140 uniform
+ * block. A buffer created with capacity greater than one acts as a ring of
+ * per-object slots: each frame the slots are filled on the CPU side, uploaded
+ * with a single glBufferSubData call and bound to the block binding point by
+ * glBindBufferRange before each draw. The buffer is split into several frame
+ * segments so that the segment being written is not the one still read by
+ * the GPU; reset moves to the next segment and must be called every frame,
+ * also for a block of a single slot set once per frame.
+ */
+public class OGLUniformBuffer implements AutoCloseable {
+	public static final int FRAMES_IN_FLIGHT = 3;
+
+	public enum Type {
+		INT(4, 4), FLOAT(4, 4), VEC2(8, 8), VEC3(16, 12), VEC4(16, 16), MAT3(16, 48), MAT4(16, 64);
+
+		private final int alignment, size;
+
+		Type(int alignment, int size) {
+			this.alignment = alignment;
+			this.size = size;
+		}
+
+		public String toGLSL() {
+			return name().toLowerCase(Locale.US);
+		}
+	}
+
+	static public class Member {
+		final String name;
+		final Type type;
+		final int arrayLength;
+
+		public Member(String name, Type type) {
+			this(name, type, 0);
+		}
+
+		public Member(String name, Type type, int arrayLength) {
+			this.name = name;
+			this.type = type;
+			this.arrayLength = arrayLength;
+		}
+	}
+
+	/**
+	 * Java-side descriptor of a uniform block, computes member offsets
+	 * according to the std140 layout rules
+	 */
+	static public class Layout {
+		private final Member[] members;
+		private final Map<String, Integer> offsets = new HashMap<>();
+		private final Map<String, Integer> strides = new HashMap<>();
+		private final int size;
+
+		public Layout(Member... members) {
+			this.members = members;
+			int offset = 0;
+			for (Member member : members) {
+				int alignment = member.type.alignment;
+				int stride = member.type.size;
+				if (member.arrayLength > 0) {
+					// array elements are aligned and padded to vec4
+					alignment = roundUp(alignment, 16);
+					stride = roundUp(stride, 16);
+				}
+				offset = roundUp(offset, alignment);
+				offsets.put(member.name, offset);
+				strides.put(member.name, stride);
+				offset += stride * Math.max(1, member.arrayLength);
+			}
+			size = roundUp(offset, 16);
+		}
+
+		public int getOffset(String name) {
+			Integer offset = offsets.get(name);
+			if (offset == null)
+				throw new IllegalArgumentException("Unknown uniform block member: " + name);
+			return offset;
+		}
+
+		public int getArrayStride(String name) {
+			getOffset(name);
+			return strides.get(name);
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Create GLSL declaration of the block with this layout
+		 *
+		 * @param blockName
+		 *            name of the uniform block
+		 * @return GLSL source of the block declaration
+		 */
+		public String toGLSL(String blockName) {
+			StringBuilder text = new StringBuilder();
+			text.append("layout(std140) uniform ").append(blockName).append(" {\n");
+			for (Member member : members) {
+				text.append("\t").append(member.type.toGLSL()).append(" ").append(member.name);
+				if (member.arrayLength > 0)
+					text.append("[").append(member.arrayLength).append("]");
+				text.append(";\n");
+			}
+			return text.append("};\n").toString();
+		}
+
+		@Override
+		public String toString() {
+			String text = "Layout std140, size: " + size;
+			for (Member member : members)
+				text += "\n\t" + member.type.toGLSL() + " " + member.name + ", offset: " + offsets.get(member.name);
+			return text;
+		}
+	}
+
+	private final Layout layout;
+	private final int bufferID;
+	private final int capacity, stride;
+	private final ByteBuffer data;
+	private int frame = 0;
+	private int count = 0;
+	private final OGLResourceTracker.Handle handle = OGLResourceTracker.register(this, "OGLUniformBuffer");
+
+	/**
+	 * Create uniform buffer holding a single instance of the block
+	 *
+	 * @param layout
+	 *            layout of the block
+	 */
+	public OGLUniformBuffer(Layout layout) {
+		this(layout, 1);
+	}
+
+	/**
+	 * Create uniform buffer holding up to capacity instances of the block per
+	 * frame
+	 *
+	 * @param layout
+	 *            layout of the block
+	 * @param capacity
+	 *            maximum number of slots used in one frame
+	 */
+	public OGLUniformBuffer(Layout layout, int capacity) {
+		this.layout = layout;
+		this.capacity = capacity;
+		this.stride = roundUp(layout.getSize(), glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT));
+		this.data = BufferUtils.createByteBuffer(capacity * stride);
+		bufferID = glGenBuffers();
+		OGLState.get().bindBuffer(GL_UNIFORM_BUFFER, bufferID);
+		glBufferData(GL_UNIFORM_BUFFER, (long) FRAMES_IN_FLIGHT * capacity * stride, GL_DYNAMIC_DRAW);
+		handle.add(OGLResourceTracker.BUFFER, bufferID, (long) FRAMES_IN_FLIGHT * capacity * stride);
+	}
+
+	/**
+	 * Start filling the next frame segment, all slots become free; called
+	 * once per frame before the slots are set
+	 */
+	public void reset() {
+		frame = (frame + 1) % FRAMES_IN_FLIGHT;
+		count = 0;
+	}
+
+	/**
+	 * Allocate next slot in the current frame segment
+	 *
+	 * @return index of the slot
+	 */
+	public int add() {
+		if (count >= capacity)
+			throw new RuntimeException("Uniform buffer capacity (" + capacity + " slots) exceeded.");
+		return count++;
+	}
+
+	public void set(int slot, String name, Mat4 mat) {
+		int offset = slot * stride + layout.getOffset(name);
+		// column-major storage of the transposed (row-vector) matrix is its row-wise storage
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				data.putFloat(offset + (i * 4 + j) * 4, (float) mat.get(i, j));
+	}
+
+	public void set(int slot, String name, Vec3D vec) {
+		int offset = slot * stride + layout.getOffset(name);
+		data.putFloat(offset, (float) vec.getX());
+		data.putFloat(offset + 4, (float) vec.getY());
+		data.putFloat(offset + 8, (float) vec.getZ());
+	}
+
+	public void set(int slot, String name, Point3D point) {
+		int offset = slot * stride + layout.getOffset(name);
+		data.putFloat(offset, (float) point.getX());
+		data.putFloat(offset + 4, (float) point.getY());
+		data.putFloat(offset + 8, (float) point.getZ());
+		data.putFloat(offset + 12, (float) point.getW());
+	}
+
+	public void set(int slot, String name, float value) {
+		data.putFloat(slot * stride + layout.getOffset(name), value);
+	}
+
+	public void set(int slot, String name, int value) {
+		data.putInt(slot * stride + layout.getOffset(name), value);
+	}
+
+	public void set(int slot, String name, float[] values) {
+		int offset = slot * stride + layout.getOffset(name);
+		for (int i = 0; i < values.length; i++)
+			data.putFloat(offset + i * 4, values[i]);
+	}
+
+	public void set(String name, Mat4 mat) {
+		set(0, name, mat);
+	}
+
+	public void set(String name, Vec3D vec) {
+		set(0, name, vec);
+	}
+
+	public void set(String name, Point3D point) {
+		set(0, name, point);
+	}
+
+	public void set(String name, float value) {
+		set(0, name, value);
+	}
+
+	public void set(String name, int value) {
+		set(0, name, value);
+	}
+
+	/**
+	 * Upload all slots used in the current frame by a single call
+	 */
+	public void upload() {
+		int used = Math.max(count, 1);
+		data.position(0).limit(used * stride);
+		OGLState.get().bindBuffer(GL_UNIFORM_BUFFER, bufferID);
+		glBufferSubData(GL_UNIFORM_BUFFER, getFrameOffset(), data);
+		data.clear();
+	}
+
+	/**
+	 * Bind the first slot of the current frame to the binding point
+	 *
+	 * @param binding
+	 *            uniform block binding point
+	 */
+	public void bind(int binding) {
+		bind(binding, 0);
+	}
+
+	/**
+	 * Bind the slot of the current frame to the binding point
+	 *
+	 * @param binding
+	 *            uniform block binding point
+	 * @param slot
+	 *            index of the slot
+	 */
+	public void bind(int binding, int slot) {
+		OGLState.get().bindBufferRange(GL_UNIFORM_BUFFER, binding, bufferID,
+				getFrameOffset() + (long) slot * stride, layout.getSize());
+	}
+
+	/**
+	 * Assign binding point to the uniform block of the shader program
+	 *
+	 * @param shaderProgram
+	 *            id of shader program
+	 * @param blockName
+	 *            name of the uniform block in GLSL
+	 * @param binding
+	 *            uniform block binding point
+	 */
+	public static void bindBlock(int shaderProgram, String blockName, int binding) {
+		int index = glGetUniformBlockIndex(shaderProgram, blockName);
+		if (index != GL_INVALID_INDEX)
+			glUniformBlockBinding(shaderProgram, index, binding);
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public int getBufferId() {
+		return bufferID;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Delete the buffer, the object must not be used any more
+	 */
+	@Override
+	public void close() {
+		handle.close();
+	}
+
+	private long getFrameOffset() {
+		return (long) frame * capacity * stride;
+	}
+
+	private static int roundUp(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLUniformBuffer ID: " + bufferID + ", capacity: " + capacity
+				+ ", stride: " + stride + "\n\t" + layout.toString());
+	}
+}
@@ -0,0 +1,683 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.stb.STBImage.*;
+
+/**
+ * Virtual texture for images larger than GL_MAX_TEXTURE_SIZE. The image and
+ * its mipmaps are tiled offline into a page file (writePageFile), at run
+ * time only the pages seen on screen are kept in a physical cache texture of
+ * fixed size, so memory use does not depend on the size of the image.
+ * <p>
+ * Each frame the scene is rendered with the feedback function into a small
+ * render target which is read back asynchronously; the page ids found there
+ * are loaded from the page file by worker threads and uploaded through the
+ * streamer into cache slots, the least recently seen pages are evicted. The
+ * page table texture maps each virtual page to its cache slot or to the
+ * nearest resident coarser page, the top level page is always resident.
+ * <p>
+ * Shaders include the functions of GLSL after the version directive:
+ * vtFeedback(uv) is written by the feedback pass, vtSample(uv) returns the
+ * color. Sampling is bilinear within the selected level.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OGLVirtualTexture.writePageFile(image, "aerial.vtp", 128, 1); // offline
+ * OGLVirtualTexture vt = new OGLVirtualTexture("aerial.vtp", 16, streamer, readback);
+ * OGLRenderTarget feedback = OGLVirtualTexture.createFeedbackTarget(width / 8, height / 8);
+ * // every frame
+ * feedback.bind(); vt.bindFeedback(feedbackProgram, 8); draw();
+ * vt.requestFeedback(feedback);
+ * readback.update(); streamer.update(); vt.update();
+ * vt.bind(program, 0, 1); draw();
+ * </pre>
+ */
+public class OGLVirtualTexture implements AutoCloseable {
+
+	/**
+	 * Functions for feedback and sampling, the uniforms are set by bind and
+	 * bindFeedback
+	 */
+	public static final String GLSL = ""
+			+ "uniform sampler2D vtPageTable;\n"
+			+ "uniform sampler2D vtCache;\n"
+			+ "uniform vec4 vtSize; // virtual width, height, page size, top level\n"
+			+ "uniform vec4 vtCacheSize; // padded page size, border, cache width, height\n"
+			+ "uniform float vtFeedbackBias;\n"
+			+ "\n"
+			+ "float vtLevel(vec2 uv, float bias) {\n"
+			+ "	vec2 dx = dFdx(uv * vtSize.xy), dy = dFdy(uv * vtSize.xy);\n"
+			+ "	return clamp(floor(0.5 * log2(max(dot(dx, dx), dot(dy, dy))) + bias), 0.0, vtSize.w);\n"
+			+ "}\n"
+			+ "\n"
+			+ "vec2 vtPageCoord(vec2 uv, float level) {\n"
+			+ "	return fract(uv) * max(floor(vtSize.xy / exp2(level)), 1.0) / vtSize.z;\n"
+			+ "}\n"
+			+ "\n"
+			+ "vec4 vtFeedback(vec2 uv) {\n"
+			+ "	float level = vtLevel(uv, vtFeedbackBias);\n"
+			+ "	ivec2 page = ivec2(vtPageCoord(uv, level));\n"
+			+ "	return vec4(page & 255, (page.x >> 8) | (page.y >> 8 << 4), level + 1.0) / 255.0;\n"
+			+ "}\n"
+			+ "\n"
+			+ "vec4 vtSample(vec2 uv) {\n"
+			+ "	float level = vtLevel(uv, 0.0);\n"
+			+ "	vec4 entry = floor(texelFetch(vtPageTable, ivec2(vtPageCoord(uv, level)), int(level)) * 255.0 + 0.5);\n"
+			+ "	if (entry.a == 0.0)\n"
+			+ "		return vec4(0.0);\n"
+			+ "	// the entry may map a coarser page\n"
+			+ "	vec2 texel = entry.rg * vtCacheSize.x + vtCacheSize.y + fract(vtPageCoord(uv, entry.b)) * vtSize.z;\n"
+			+ "	return textureLod(vtCache, texel / vtCacheSize.zw, 0.0);\n"
+			+ "}\n";
+
+	private static final int MAGIC = 0x4f565450; // OVTP
+	private static final int HEADER_SIZE = 32;
+
+	private static class Page {
+		final int level, x, y;
+		int slot;
+		boolean resident = false;
+		long seen;
+		// read by a worker, waiting for the upload
+		OGLTexImageByte image;
+
+		Page(int level, int x, int y, int slot) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.slot = slot;
+		}
+	}
+
+	private final FileChannel channel;
+	private final int width, height, pageSize, border, levels;
+	private final int paddedSize, pageBytes;
+	private final int[] pagesX, pagesY;
+	private final long[] levelOffsets;
+	private final int cachePages;
+	private final OGLTexture2D cache, pageTable;
+	private final ByteBuffer[] tableLevels;
+	private final int[][] residentSlots;
+	private final OGLTextureStreamer streamer;
+	private final OGLReadback readback;
+	private final Executor executor;
+	// access order, the eldest resident page is evicted first
+	private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(64, 0.75f, true);
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+	private final ConcurrentLinkedQueue<Page> failed = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Page> read = new ConcurrentLinkedQueue<>();
+	private final List<Page> missing = new ArrayList<>();
+	private CompletableFuture<OGLTexImageByte> feedback;
+	private int maxLoads = 16, loading = 0;
+	private long frame = 0;
+	private long loadedPages = 0, evictedPages = 0;
+	private boolean dirty = true;
+	// written on the OpenGL thread, read by the workers too
+	private volatile boolean closed = false;
+
+	/**
+	 * Open page file, loading uses the common fork-join pool
+	 *
+	 * @param pageFileName
+	 *            path of the page file
+	 * @param cachePages
+	 *            width and height of the physical cache in pages, at most 256
+	 * @param streamer
+	 *            streamer uploading the pages
+	 * @param readback
+	 *            readback of the feedback
+	 * @throws IOException
+	 *             if the page file cannot be read
+	 */
+	public OGLVirtualTexture(String pageFileName, int cachePages, OGLTextureStreamer streamer,
+			OGLReadback readback) throws IOException {
+		this(pageFileName, cachePages, streamer, readback, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Open page file
+	 *
+	 * @param pageFileName
+	 *            path of the page file
+	 * @param cachePages
+	 *            width and height of the physical cache in pages, at most 256
+	 * @param streamer
+	 *            streamer uploading the pages
+	 * @param readback
+	 *            readback of the feedback
+	 * @param executor
+	 *            threads reading the page file
+	 * @throws IOException
+	 *             if the page file cannot be read
+	 */
+	public OGLVirtualTexture(String pageFileName, int cachePages, OGLTextureStreamer streamer,
+			OGLReadback readback, Executor executor) throws IOException {
+		if (cachePages < 2 || cachePages > 256)
+			throw new IllegalArgumentException("Cache of " + cachePages + " pages per side, 2 to 256 supported.");
+		this.streamer = streamer;
+		this.readback = readback;
+		this.executor = executor;
+		this.cachePages = cachePages;
+
+		channel = FileChannel.open(Paths.get(pageFileName), StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a page file: " + pageFileName);
+		}
+		width = header.getInt();
+		height = header.getInt();
+		pageSize = header.getInt();
+		border = header.getInt();
+		levels = header.getInt();
+		paddedSize = pageSize + 2 * border;
+		pageBytes = paddedSize * paddedSize * 4;
+
+		pagesX = new int[levels];
+		pagesY = new int[levels];
+		levelOffsets = new long[levels];
+		long offset = HEADER_SIZE;
+		for (int level = 0; level < levels; level++) {
+			pagesX[level] = pageCount(width, level, pageSize);
+			pagesY[level] = pageCount(height, level, pageSize);
+			levelOffsets[level] = offset;
+			offset += (long) pagesX[level] * pagesY[level] * pageBytes;
+		}
+		if (channel.size() < offset) {
+			channel.close();
+			throw new IOException("Page file " + pageFileName + " is truncated.");
+		}
+
+		OGLState state = OGLState.get();
+		int cacheSize = cachePages * paddedSize;
+		cache = new OGLTexture2D(cacheSize, cacheSize, GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE, null);
+		cache.bind();
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+		// power of two size, so that the pages of each level fit its mipmap
+		int tableWidth = Integer.highestOneBit(pagesX[0] * 2 - 1);
+		int tableHeight = Integer.highestOneBit(pagesY[0] * 2 - 1);
+		pageTable = new OGLTexture2D(tableWidth, tableHeight, GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE, null);
+		pageTable.bind();
+		pageTable.allocateLevels(levels - 1, GL_RGBA, GL_UNSIGNED_BYTE);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+		state.texParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+		tableLevels = new ByteBuffer[levels];
+		residentSlots = new int[levels][];
+		for (int level = 0; level < levels; level++) {
+			tableLevels[level] = BufferUtils.createByteBuffer(
+					pageTable.getWidth(level) * pageTable.getHeight(level) * 4);
+			residentSlots[level] = new int[pagesX[level] * pagesY[level]];
+			Arrays.fill(residentSlots[level], -1);
+		}
+
+		for (int i = 0; i < cachePages * cachePages; i++)
+			freeSlots.add(i);
+		// the top level page is never evicted, it is the fallback of all pages
+		load(new Page(levels - 1, 0, 0, freeSlots.poll()));
+	}
+
+	private static int pageCount(int size, int level, int pageSize) {
+		return (Math.max(1, size >> level) + pageSize - 1) / pageSize;
+	}
+
+	private static long key(int level, int x, int y) {
+		return (long) level << 48 | (long) y << 24 | x;
+	}
+
+	/**
+	 * Create render target for the feedback pass
+	 *
+	 * @param width
+	 *            width, typically a fraction of the screen
+	 * @param height
+	 *            height, typically a fraction of the screen
+	 * @return render target with RGBA8 color buffer
+	 */
+	public static OGLRenderTarget createFeedbackTarget(int width, int height) {
+		return new OGLRenderTarget(width, height, 1, new OGLTexImageByte.Format(4));
+	}
+
+	/**
+	 * Read the feedback pass, ignored while the previous readback is pending
+	 *
+	 * @param target
+	 *            render target of the feedback pass, cleared to zero
+	 * @return true if the readback was issued
+	 */
+	public boolean requestFeedback(OGLRenderTarget target) {
+		if (feedback != null && !feedback.isDone())
+			return false;
+		feedback = readback.read(target, 0, new OGLTexImageByte.Format(4));
+		feedback.thenAccept(this::processFeedback);
+		return true;
+	}
+
+	private void processFeedback(OGLTexImageByte image) {
+		if (closed)
+			return;
+		ByteBuffer data = image.getDataBuffer();
+		Set<Long> needed = new HashSet<>();
+		for (int i = 0; i < data.limit(); i += 4) {
+			int level = (data.get(i + 3) & 0xff) - 1;
+			if (level < 0 || level >= levels)
+				continue;
+			int high = data.get(i + 2) & 0xff;
+			int x = (data.get(i) & 0xff) | (high & 15) << 8;
+			int y = (data.get(i + 1) & 0xff) | (high >> 4) << 8;
+			// the ancestors are needed as fallback while the page is loading
+			for (; level < levels; level++, x /= 2, y /= 2) {
+				if (!needed.add(key(level, Math.min(x, pagesX[level] - 1), Math.min(y, pagesY[level] - 1))))
+					break;
+			}
+		}
+
+		missing.clear();
+		for (long key : needed) {
+			Page page = pages.get(key);
+			if (page != null) {
+				page.seen = frame;
+			} else {
+				int level = (int) (key >>> 48), y = (int) (key >>> 24) & 0xffffff, x = (int) key & 0xffffff;
+				missing.add(new Page(level, x, y, -1));
+			}
+		}
+		// coarse pages first, they replace the largest areas
+		Collections.sort(missing, (a, b) -> b.level - a.level);
+		for (Page page : missing) {
+			if (loading >= maxLoads)
+				break;
+			page.slot = allocateSlot();
+			if (page.slot < 0)
+				break;
+			page.seen = frame;
+			load(page);
+		}
+	}
+
+	/**
+	 * @return free slot or slot of the least recently seen page not seen in
+	 *         the current frame, -1 if all pages are in use
+	 */
+	private int allocateSlot() {
+		if (!freeSlots.isEmpty())
+			return freeSlots.poll();
+		for (Iterator<Page> it = pages.values().iterator(); it.hasNext();) {
+			Page page = it.next();
+			if (!page.resident || page.level == levels - 1)
+				continue;
+			if (page.seen >= frame)
+				break;
+			it.remove();
+			residentSlots[page.level][page.y * pagesX[page.level] + page.x] = -1;
+			evictedPages++;
+			dirty = true;
+			return page.slot;
+		}
+		return -1;
+	}
+
+	private void load(Page page) {
+		pages.put(key(page.level, page.x, page.y), page);
+		loading++;
+		long offset = levelOffsets[page.level] + ((long) page.y * pagesX[page.level] + page.x) * pageBytes;
+		executor.execute(() -> {
+			OGLTexImageByte image = OGLTexImageByte.allocate(paddedSize, paddedSize, 1,
+					new OGLTexImageByte.Format(4));
+			try {
+				ByteBuffer target = image.getDataBuffer();
+				while (target.hasRemaining())
+					if (channel.read(target, offset + target.position()) < 0)
+						throw new IOException("Unexpected end of page file.");
+			} catch (IOException e) {
+				// reads fail with ClosedChannelException after close
+				if (!closed)
+					System.err.println(e);
+				image.close();
+				failed.add(page);
+				return;
+			}
+			page.image = image;
+			read.add(page);
+			// close may have drained the queue before the page was added
+			if (closed)
+				release();
+		});
+	}
+
+	/**
+	 * Close the images of pages read but not uploaded, each page is polled by
+	 * exactly one caller
+	 */
+	private void release() {
+		Page page;
+		while ((page = read.poll()) != null)
+			page.image.close();
+	}
+
+	/**
+	 * Upload page read by a worker, called on the OpenGL thread so that the
+	 * streamer completes the upload on it too
+	 */
+	private void upload(Page page) {
+		OGLTexImageByte image = page.image;
+		page.image = null;
+		int slotX = page.slot % cachePages * paddedSize, slotY = page.slot / cachePages * paddedSize;
+		streamer.upload(cache, image, 0, slotX, slotY).whenComplete((texture, error) -> {
+			image.close();
+			loading--;
+			if (closed)
+				return;
+			if (error != null) {
+				System.err.println(error);
+				remove(page);
+			} else {
+				page.resident = true;
+				residentSlots[page.level][page.y * pagesX[page.level] + page.x] = page.slot;
+				loadedPages++;
+				dirty = true;
+			}
+		});
+	}
+
+	private void remove(Page page) {
+		pages.remove(key(page.level, page.x, page.y));
+		freeSlots.add(page.slot);
+	}
+
+	/**
+	 * Upload pages read by the workers, release slots of failed loads and
+	 * update the page table, must be called on the OpenGL thread once per
+	 * frame after readback and streamer updates
+	 */
+	public void update() {
+		frame++;
+		Page page;
+		while ((page = read.poll()) != null)
+			upload(page);
+		while ((page = failed.poll()) != null) {
+			loading--;
+			remove(page);
+		}
+		if (dirty) {
+			updatePageTable();
+			dirty = false;
+		}
+	}
+
+	private void updatePageTable() {
+		for (int level = levels - 1; level >= 0; level--) {
+			ByteBuffer table = tableLevels[level];
+			int tableWidth = pageTable.getWidth(level);
+			int parentWidth = level + 1 < levels ? pageTable.getWidth(level + 1) : 0;
+			for (int y = 0; y < pagesY[level]; y++) {
+				for (int x = 0; x < pagesX[level]; x++) {
+					int i = (y * tableWidth + x) * 4;
+					int slot = residentSlots[level][y * pagesX[level] + x];
+					if (slot >= 0) {
+						table.put(i, (byte) (slot % cachePages));
+						table.put(i + 1, (byte) (slot / cachePages));
+						table.put(i + 2, (byte) level);
+						table.put(i + 3, (byte) 255);
+					} else if (parentWidth > 0) {
+						table.putInt(i, tableLevels[level + 1].getInt(((y / 2) * parentWidth + x / 2) * 4));
+					} else {
+						table.putInt(i, 0);
+					}
+				}
+			}
+		}
+		OGLState.get().bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		pageTable.bind();
+		for (int level = 0; level < levels; level++)
+			glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, pageTable.getWidth(level), pageTable.getHeight(level),
+					GL_RGBA, GL_UNSIGNED_BYTE, tableLevels[level]);
+	}
+
+	/**
+	 * Bind textures and uniforms of vtSample
+	 *
+	 * @param shaderProgram
+	 *            shader program including GLSL
+	 * @param pageTableSlot
+	 *            texture unit of the page table
+	 * @param cacheSlot
+	 *            texture unit of the physical cache
+	 */
+	public void bind(int shaderProgram, int pageTableSlot, int cacheSlot) {
+		pageTable.bind(shaderProgram, "vtPageTable", pageTableSlot);
+		cache.bind(shaderProgram, "vtCache", cacheSlot);
+		bindSize(shaderProgram);
+		glUniform4f(glGetUniformLocation(shaderProgram, "vtCacheSize"), paddedSize, border, cache.getWidth(),
+				cache.getHeight());
+	}
+
+	/**
+	 * Set uniforms of vtFeedback
+	 *
+	 * @param shaderProgram
+	 *            shader program including GLSL
+	 * @param downscale
+	 *            ratio of the screen and feedback target resolution
+	 */
+	public void bindFeedback(int shaderProgram, float downscale) {
+		bindSize(shaderProgram);
+		glUniform1f(glGetUniformLocation(shaderProgram, "vtFeedbackBias"),
+				(float) (-Math.log(downscale) / Math.log(2)));
+	}
+
+	private void bindSize(int shaderProgram) {
+		glUniform4f(glGetUniformLocation(shaderProgram, "vtSize"), width, height, pageSize, levels - 1);
+	}
+
+	/**
+	 * Tile image and its mipmaps into a page file, levels are box filtered in
+	 * linear space, the coarsest level fits one page
+	 *
+	 * @param image
+	 *            RGBA image
+	 * @param pageFileName
+	 *            path of the created file
+	 * @param pageSize
+	 *            width and height of a page in texels
+	 * @param border
+	 *            texels repeated from the neighbouring pages around each
+	 *            page, at least 1 for bilinear filtering
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static void writePageFile(OGLTexImageByte image, String pageFileName, int pageSize, int border)
+			throws IOException {
+		if (image.getFormat().getComponentCount() != 4)
+			throw new IllegalArgumentException("RGBA image expected.");
+		int width = image.getWidth(), height = image.getHeight();
+		int levels = 1;
+		while (Math.max(width >> (levels - 1), height >> (levels - 1)) > pageSize)
+			levels++;
+		int paddedSize = pageSize + 2 * border;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(pageFileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(width).putInt(height).putInt(pageSize).putInt(border).putInt(levels);
+			header.clear();
+			channel.write(header);
+
+			ByteBuffer page = BufferUtils.createByteBuffer(paddedSize * paddedSize * 4); // native order
+			OGLTexImageByte level = image;
+			for (int l = 0; l < levels; l++) {
+				if (l > 0) {
+					OGLTexImageByte next = downsample(level);
+					if (level != image)
+						level.close();
+					level = next;
+				}
+				ByteBuffer source = level.getDataBuffer().duplicate().order(ByteOrder.nativeOrder());
+				int levelWidth = level.getWidth(), levelHeight = level.getHeight();
+				for (int py = 0; py < pageCount(height, l, pageSize); py++) {
+					for (int px = 0; px < pageCount(width, l, pageSize); px++) {
+						page.clear();
+						for (int y = 0; y < paddedSize; y++) {
+							int sy = Math.min(Math.max(py * pageSize + y - border, 0), levelHeight - 1);
+							for (int x = 0; x < paddedSize; x++) {
+								int sx = Math.min(Math.max(px * pageSize + x - border, 0), levelWidth - 1);
+								page.putInt(source.getInt((sy * levelWidth + sx) * 4));
+							}
+						}
+						page.flip();
+						while (page.hasRemaining())
+							channel.write(page);
+					}
+				}
+			}
+			if (level != image)
+				level.close();
+		}
+	}
+
+	private static OGLTexImageByte downsample(OGLTexImageByte image) {
+		int width = image.getWidth(), height = image.getHeight();
+		int nextWidth = Math.max(1, width / 2), nextHeight = Math.max(1, height / 2);
+		OGLTexImageByte next = OGLTexImageByte.allocate(nextWidth, nextHeight, 1, new OGLTexImageByte.Format(4));
+		ByteBuffer source = image.getDataBuffer(), target = next.getDataBuffer();
+		float[] toLinear = OGLTexImageConverter.SRGB_TO_LINEAR;
+		IntStream.range(0, nextHeight).parallel().forEach(y -> {
+			int y0 = Math.min(y * 2, height - 1), y1 = Math.min(y * 2 + 1, height - 1);
+			for (int x = 0; x < nextWidth; x++) {
+				int x0 = Math.min(x * 2, width - 1), x1 = Math.min(x * 2 + 1, width - 1);
+				int[] texels = { (y0 * width + x0) * 4, (y0 * width + x1) * 4, (y1 * width + x0) * 4,
+						(y1 * width + x1) * 4 };
+				for (int c = 0; c < 4; c++) {
+					float sum = 0;
+					for (int texel : texels)
+						sum += c < 3 ? toLinear[source.get(texel + c) & 0xff] : (source.get(texel + c) & 0xff);
+					byte value = c < 3
+							? OGLTexImageConverter.LINEAR_TO_SRGB[(int) (sum / 4
+									* OGLTexImageConverter.LINEAR_TO_SRGB_SIZE + 0.5f)]
+							: (byte) Math.round(sum / 4);
+					target.put((y * nextWidth + x) * 4 + c, value);
+				}
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * @param maxLoads
+	 *            pages loaded at the same time at most
+	 */
+	public void setMaxLoads(int maxLoads) {
+		this.maxLoads = maxLoads;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @return number of pages in the cache
+	 */
+	public int getResidentCount() {
+		return cachePages * cachePages - freeSlots.size() - loading;
+	}
+
+	/**
+	 * Close the page file and delete the textures, must be called on the
+	 * OpenGL thread and no page may be uploading by the streamer. Pages read
+	 * but not uploaded yet are released here; workers still reading see the
+	 * closed page file or the closed flag and release their page themselves,
+	 * so update must not be called any more.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (feedback != null)
+			feedback.cancel(false);
+		release();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+		cache.close();
+		pageTable.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "OGLVirtualTexture: [%dx%d] pages: %d texels, %d levels, cache: %dx%d "
+				+ "pages, resident: %d, loaded: %d, evicted: %d", width, height, pageSize, levels, cachePages,
+				cachePages, getResidentCount(), loadedPages, evictedPages);
+	}
+
+	/**
+	 * Create page file from image file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: OGLVirtualTexture input output.vtp [pageSize] [border]");
+			return;
+		}
+		int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+		int border = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		long start = System.nanoTime();
+		try (MemoryStack stack = MemoryStack.stackPush()) {
+			IntBuffer width = stack.mallocInt(1), height = stack.mallocInt(1), components = stack.mallocInt(1);
+			ByteBuffer data = stbi_load(args[0], width, height, components, 4);
+			if (data == null)
+				throw new IOException("Failed to load image: " + stbi_failure_reason());
+			try (OGLTexImageByte image = OGLTexImageByte.wrap(width.get(0), height.get(0), 1,
+					new OGLTexImageByte.Format(4), data, () -> stbi_image_free(data))) {
+				writePageFile(image, args[1], pageSize, border);
+			}
+			System.out.printf("%s [%dx%d] -> %s in %.0f ms%n", args[0], width.get(0), height.get(0), args[1],
+					(System.nanoTime() - start) / 1e6);
+		}
+	}
+}
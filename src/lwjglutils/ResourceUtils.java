@@ -0,0 +1,317 @@
+package lwjglutils;
+
+import org.lwjgl.BufferUtils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reading of classpath resources into direct buffers with a single
+ * allocation. Files of an exploded classpath and entries stored uncompressed
+ * in a jar are memory mapped if larger than MAP_THRESHOLD, smaller ones are
+ * read, since a mapping lives until garbage collection and locks the file on
+ * Windows. Compressed jar entries are inflated into a buffer of the entry
+ * size known from the jar directory.
+ * <p>
+ * Opened jars are kept for the following reads and closed by close, at the
+ * latest on exit.
+ * <p>
+ * Resource names are absolute, a leading slash is optional, so that
+ * "/shaders/model.vert" and "shaders/model.vert" are the same resource. Names
+ * not found on the classpath are tried as file system paths.
+ */
+public final class ResourceUtils {
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	/**
+	 * Size in bytes from which files are memory mapped
+	 */
+	public static final int MAP_THRESHOLD = 1 << 20;
+
+	/**
+	 * Offsets of uncompressed entries of an opened jar
+	 */
+	private static class JarIndex implements Closeable {
+		final JarFile jar;
+		final FileChannel channel;
+		// name -> offset of the local header, size
+		final Map<String, long[]> stored = new HashMap<>();
+
+		JarIndex(Path path) throws IOException {
+			jar = new JarFile(path.toFile());
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				readDirectory();
+			} catch (IOException | RuntimeException e) {
+				// e.g. zip64, the entries are read by the jar file
+				stored.clear();
+			}
+		}
+
+		private void readDirectory() throws IOException {
+			long size = channel.size();
+			int tail = (int) Math.min(size, 0xffff + 22);
+			ByteBuffer end = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(end, size - tail);
+			int eocd = -1;
+			for (int i = tail - 22; i >= 0 && eocd < 0; i--)
+				if (end.getInt(i) == EOCD_SIGNATURE)
+					eocd = i;
+			if (eocd < 0)
+				throw new IOException("End of central directory not found");
+			int count = end.getShort(eocd + 10) & 0xffff;
+			long directorySize = end.getInt(eocd + 12) & 0xffffffffL;
+			long directoryOffset = end.getInt(eocd + 16) & 0xffffffffL;
+			ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(directory, directoryOffset);
+			int position = 0;
+			for (int i = 0; i < count; i++) {
+				if (directory.getInt(position) != CENTRAL_SIGNATURE)
+					throw new IOException("Corrupted central directory");
+				int method = directory.getShort(position + 10) & 0xffff;
+				long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+				int nameLength = directory.getShort(position + 28) & 0xffff;
+				int extraLength = directory.getShort(position + 30) & 0xffff;
+				int commentLength = directory.getShort(position + 32) & 0xffff;
+				long localOffset = directory.getInt(position + 42) & 0xffffffffL;
+				byte[] name = new byte[nameLength];
+				((ByteBuffer) directory.duplicate().position(position + 46)).get(name);
+				if (method == ZipEntry.STORED && compressedSize != 0xffffffffL && localOffset != 0xffffffffL)
+					stored.put(new String(name, StandardCharsets.UTF_8), new long[] { localOffset, compressedSize });
+				position += 46 + nameLength + extraLength + commentLength;
+			}
+		}
+
+		ByteBuffer read(String name) throws IOException {
+			long[] entry = stored.get(name);
+			if (entry == null)
+				return null;
+			ByteBuffer local = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(local, entry[0]);
+			if (local.getInt(0) != LOCAL_SIGNATURE)
+				return null;
+			// the extra field of the local header may differ from the central one
+			long data = entry[0] + 30 + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+			return readChannel(channel, data, entry[1]);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				jar.close();
+			}
+		}
+	}
+
+	private static final Map<String, JarIndex> jars = new ConcurrentHashMap<>();
+	private static Thread closeOnExit;
+
+	private ResourceUtils() {
+	}
+
+	/**
+	 * @param resource
+	 *            resource name with or without leading slash
+	 * @return URL of the resource or null if it does not exist
+	 */
+	public static URL getURL(String resource) {
+		String name = resource.startsWith("/") ? resource.substring(1) : resource;
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		URL url = loader == null ? null : loader.getResource(name);
+		if (url == null)
+			url = ResourceUtils.class.getClassLoader().getResource(name);
+		return url;
+	}
+
+	/**
+	 * Read resource into a direct buffer, mapped if possible
+	 *
+	 * @param resource
+	 *            resource name or file path
+	 * @return read only content of the resource
+	 * @throws IOException
+	 *             if the resource does not exist or cannot be read
+	 */
+	public static ByteBuffer read(String resource) throws IOException {
+		URL url = getURL(resource);
+		if (url == null) {
+			Path path = Paths.get(resource);
+			if (Files.isRegularFile(path))
+				return readFile(path);
+			throw new FileNotFoundException("Classpath resource not found: " + resource);
+		}
+		if (url.getProtocol().equals("file"))
+			return readFile(toPath(url));
+		URLConnection connection = url.openConnection();
+		if (connection instanceof JarURLConnection) {
+			JarURLConnection jarConnection = (JarURLConnection) connection;
+			URL jarURL = jarConnection.getJarFileURL();
+			if (jarURL.getProtocol().equals("file")) {
+				JarIndex index = getIndex(toPath(jarURL));
+				String name = jarConnection.getEntryName();
+				ByteBuffer stored = index.read(name);
+				if (stored != null)
+					return stored;
+				ZipEntry entry = index.jar.getEntry(name);
+				if (entry == null)
+					throw new FileNotFoundException("Jar entry not found: " + name);
+				try (InputStream source = index.jar.getInputStream(entry)) {
+					return readStream(source, entry.getSize());
+				}
+			}
+		}
+		try (InputStream source = connection.getInputStream()) {
+			return readStream(source, connection.getContentLengthLong());
+		}
+	}
+
+	/**
+	 * Read text resource
+	 *
+	 * @param resource
+	 *            resource name or file path
+	 * @return content decoded as UTF-8
+	 * @throws IOException
+	 *             if the resource does not exist or cannot be read
+	 */
+	public static String readString(String resource) throws IOException {
+		return StandardCharsets.UTF_8.decode(read(resource)).toString();
+	}
+
+	/**
+	 * Open text resource for reading lines
+	 *
+	 * @param resource
+	 *            resource name or file path
+	 * @return reader of the content decoded as UTF-8
+	 * @throws IOException
+	 *             if the resource does not exist or cannot be read
+	 */
+	public static BufferedReader openReader(String resource) throws IOException {
+		return new BufferedReader(new StringReader(readString(resource)));
+	}
+
+	private static Path toPath(URL url) throws IOException {
+		try {
+			// decodes escaped characters, e.g. spaces in the path
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid resource URL " + url, e);
+		}
+	}
+
+	private static JarIndex getIndex(Path path) throws IOException {
+		String key = path.toAbsolutePath().toString();
+		JarIndex index = jars.get(key);
+		if (index == null) {
+			synchronized (jars) {
+				index = jars.get(key);
+				if (index == null) {
+					index = new JarIndex(path);
+					jars.put(key, index);
+					if (closeOnExit == null) {
+						closeOnExit = new Thread(ResourceUtils::closeJars, "ResourceUtils close");
+						Runtime.getRuntime().addShutdownHook(closeOnExit);
+					}
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Close the jars opened by read, they are opened again when needed
+	 */
+	public static void close() {
+		synchronized (jars) {
+			closeJars();
+			if (closeOnExit != null) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(closeOnExit);
+				} catch (IllegalStateException e) {
+					// already exiting
+				}
+				closeOnExit = null;
+			}
+		}
+	}
+
+	private static void closeJars() {
+		for (JarIndex index : jars.values()) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				System.err.println("Jar " + index.jar.getName() + " not closed: " + e.getMessage());
+			}
+		}
+		jars.clear();
+	}
+
+	private static ByteBuffer readFile(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return readChannel(channel, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Map or read range of the channel depending on its size
+	 */
+	private static ByteBuffer readChannel(FileChannel channel, long offset, long size) throws IOException {
+		if (size >= MAP_THRESHOLD)
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		ByteBuffer buffer = BufferUtils.createByteBuffer((int) size);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file.");
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param size
+	 *            size of the content if known, otherwise negative
+	 */
+	private static ByteBuffer readStream(InputStream source, long size) throws IOException {
+		ByteBuffer buffer = BufferUtils.createByteBuffer(size >= 0 ? (int) size : 1 << 16);
+		byte[] chunk = new byte[8192];
+		int bytes;
+		while ((bytes = source.read(chunk)) != -1) {
+			if (buffer.remaining() < bytes) {
+				// unknown or wrong size only
+				ByteBuffer larger = BufferUtils.createByteBuffer(Math.max(buffer.capacity() * 2,
+						buffer.position() + bytes));
+				buffer.flip();
+				buffer = larger.put(buffer);
+			}
+			buffer.put(chunk, 0, bytes);
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
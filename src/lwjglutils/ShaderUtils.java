@@ -27,16 +27,38 @@ public final class ShaderUtils {
 			GEOMETRY_SHADER_EXTENSION, TESS_CONTROL_SHADER_EXTENSION, TESS_EVALUATION_SHADER_EXTENSION,
 			COMPUTE_SHADER_EXTENSION };
 
-	private static final int[] SHADER_SUPPORT_EXTENSIONS = { VERTEX_SHADER_SUPPORT_VERSION,
+	static final int[] SHADER_SUPPORT_EXTENSIONS = { VERTEX_SHADER_SUPPORT_VERSION,
 			FRAGMENT_SHADER_SUPPORT_VERSION, GEOMETRY_SHADER_SUPPORT_VERSION, TESSELATION_SUPPORT_VERSION,
 			TESSELATION_SUPPORT_VERSION, COMPUTE_SHADER_SUPPORT_VERSION };
 
-	private static final int[] SHADER_NAME_CONSTANTS = { GL_VERTEX_SHADER, GL_FRAGMENT_SHADER,
+	static final int[] SHADER_NAME_CONSTANTS = { GL_VERTEX_SHADER, GL_FRAGMENT_SHADER,
 			GL_GEOMETRY_SHADER, GL_TESS_CONTROL_SHADER, GL_TESS_EVALUATION_SHADER, GL_COMPUTE_SHADER };
 
 	private static final String[] SHADER_NAMES = { "Vertex", "Fragment", "Geometry", "Control", "Evaluation",
 			"Compute" };
 
+	private static OGLProgramCache programCache;
+	/**
+	 * Function before linking doing nothing, programs loaded with other
+	 * functions are not cached since the state they set before linking is
+	 * not part of the cache key
+	 */
+	public static final IntConsumer NO_LINK_SETUP = shaderProgram -> {};
+
+	/**
+	 * Set cache of program binaries used by loadProgram
+	 * 
+	 * @param cache
+	 *            program cache or null to always compile the sources
+	 */
+	public static void setProgramCache(OGLProgramCache cache) {
+		programCache = cache;
+	}
+
+	public static OGLProgramCache getProgramCache() {
+		return programCache;
+	}
+
 	/**
 	 * Load, create, compile, attach and link shader sources defined as files
 	 * 
@@ -108,7 +130,7 @@ public final class ShaderUtils {
 			String computeShaderFileName) {
 		return loadProgram(vertexShaderFileName, fragmentShaderFileName,
 				geometryShaderFileName, tessControlShaderFileName, tessEvaluationShaderFileName,
-				computeShaderFileName, (shaderProgram)->{});
+				computeShaderFileName, NO_LINK_SETUP);
 	}
 
 	/**
@@ -121,7 +143,7 @@ public final class ShaderUtils {
 	 * @return new id of shader program
 	 */
 	public static int loadProgram(String shaderFileName) {
-		return loadProgram(shaderFileName, (shaderProgram)->{});
+		return loadProgram(shaderFileName, NO_LINK_SETUP);
 	}
 	
 	/**
@@ -156,7 +178,7 @@ public final class ShaderUtils {
 	 * @return new id of shader program
 	 */
 	public static int loadProgram(String[] shaderFileNames) {
-			return loadProgram(shaderFileNames, (shaderProgram) -> {});
+			return loadProgram(shaderFileNames, NO_LINK_SETUP);
 	}
 	
 	/**
@@ -178,6 +200,33 @@ public final class ShaderUtils {
 			System.err.println("Number of shader sources is bigger than number of shaders");
 			return -1;
 		}
+		return loadProgram(readShaderSources(shaderFileNames), functionBeforeLinking);
+	}
+
+	/**
+	 * @param shaderFileName
+	 *            full path name of shader file with/without file extension
+	 * @return names of the files of all stages, the extensions of the stages
+	 *         are added to names without extension
+	 */
+	static String[] getShaderFileNames(String shaderFileName) {
+		String[] shaderFileNames = new String[SHADER_FILE_EXTENSIONS.length];
+		for (int i = 0; i < SHADER_FILE_EXTENSIONS.length; i++)
+			shaderFileNames[i] = shaderFileName.indexOf(".") < 0 ? shaderFileName + SHADER_FILE_EXTENSIONS[i]
+					: shaderFileName;
+		return shaderFileNames;
+	}
+
+	/**
+	 * Read shader files, missing files are skipped
+	 * 
+	 * @param shaderFileNames
+	 *            array of full path name of shader files with/without file
+	 *            extension in order vertex, fragment, geometry, control,
+	 *            evaluation and compute shader or null
+	 * @return array of arrays of Strings with GLSL codes for shaders
+	 */
+	static String[][] readShaderSources(String[] shaderFileNames) {
 		String[][] shaderSrcArray = new String[SHADER_FILE_EXTENSIONS.length][];
 		for (int i = 0; i < shaderFileNames.length; i++) {
 			if (shaderFileNames[i] == null)
@@ -198,7 +247,7 @@ public final class ShaderUtils {
 			}
 			shaderSrcArray[i] = shaderSrc;
 		}
-		return loadProgram(shaderSrcArray, functionBeforeLinking);
+		return shaderSrcArray;
 	}
 	
 	/**
@@ -263,7 +312,7 @@ public final class ShaderUtils {
 			String[] computeShaderSrc) {
 		return loadProgram(vertexShaderSrc, fragmentShaderSrc,
 				geometryShaderSrc, tessControlShaderSrc, tessEvaluationShaderSrc,
-				computeShaderSrc, (shaderProgram)->{});
+				computeShaderSrc, NO_LINK_SETUP);
 	}
 
 	/**
@@ -279,7 +328,7 @@ public final class ShaderUtils {
 	 * @return new id of shader program
 	 */
 	public static int loadProgram(String[][] shaderSrcArray) {
-		return loadProgram(shaderSrcArray, (shaderProgram) -> {});
+		return loadProgram(shaderSrcArray, NO_LINK_SETUP);
 	}
 	
 	/**
@@ -294,7 +343,8 @@ public final class ShaderUtils {
 	 *            compute shader or null
 	 * @param functionBeforeLinking
 	 * 			  function called before linking shader program, 
-	 * 			  int-valued argument defines shader program id 
+	 * 			  int-valued argument defines shader program id,
+	 * 			  the program cache is used only with NO_LINK_SETUP
 	 * @return new id of shader program
 	 */
 	public static int loadProgram(String[][] shaderSrcArray, IntConsumer functionBeforeLinking) {
@@ -304,6 +354,13 @@ public final class ShaderUtils {
 			return -1;
 		}
 
+		OGLProgramCache cache = functionBeforeLinking == NO_LINK_SETUP ? programCache : null;
+		if (cache != null) {
+			int cached = cache.load(shaderSrcArray);
+			if (cached > 0)
+				return cached;
+		}
+
 		int shaderProgram = glCreateProgram();
 		if (shaderProgram < 0) {
 			System.err.println("Unable create new shader program ");
@@ -351,10 +408,14 @@ public final class ShaderUtils {
 		}
 		
 		functionBeforeLinking.accept(shaderProgram);
+		if (cache != null)
+			cache.prepare(shaderProgram);
 		
 		System.out.print("  Linking shader program '" + shaderProgram + "' ... ");
 		if (linkProgram(shaderProgram)) {
 			System.out.println("OK");
+			if (cache != null)
+				cache.store(shaderSrcArray, shaderProgram);
 		} else {
 			// We don't need the program anymore
 			glDeleteProgram(shaderProgram);
@@ -382,30 +443,17 @@ public final class ShaderUtils {
 	 */
 	static public String[] readShaderProgram(String streamFileName) {
 
-		InputStream is = ShaderUtils.class.getResourceAsStream(streamFileName);
-		if (is == null) {
-			System.out.println("File not found ");
-			return null;
-		}
-
-		BufferedReader brv = null;
-		try {
-			brv = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-			return null;
-		}
-
 		String line;
 		ArrayList<String> shader = new ArrayList<>();
-		try {
+		try (BufferedReader brv = ResourceUtils.openReader(streamFileName)) {
 			while ((line = brv.readLine()) != null) {
-				shader.add(new String(line));
+				shader.add(line);
 			}
-			is.close();
-			brv.close();
+		} catch (FileNotFoundException e) {
+			System.out.println("File not found " + streamFileName);
+			return null;
 		} catch (IOException e) {
-			System.err.println("Read error in ");
+			System.err.println("Read error in " + streamFileName);
 			e.printStackTrace();
 		}
 
@@ -497,7 +545,7 @@ public final class ShaderUtils {
 		}
 	}
 
-	static private String checkLogInfo(int programObject, int mode) {
+	static String checkLogInfo(int programObject, int mode) {
 		switch (mode) {
 		case GL_COMPILE_STATUS:
 			return checkLogInfoShader(programObject, mode);